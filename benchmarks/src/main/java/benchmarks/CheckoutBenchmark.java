@@ -0,0 +1,94 @@
+package benchmarks;
+
+import controllers.Node;
+import org.openjdk.jmh.annotations.*;
+import storage.FileManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * "FileManager.checkout()" on a generated tree, once the index knows it:
+ * with nothing changed, and with every 100th file appended to before each call.
+ * The first (full) checkout is done by "getInstance()" in the setup, see "ScanBenchmark" for that part.
+ * <p>
+ * The file manager is a singleton, so every fork gets a fresh root directory under java.io.tmpdir.
+ * Its watcher runs too and picks up the modified files, as it would on a running node.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CheckoutBenchmark {
+	@Param({"10000", "100000"})
+	public int files;
+
+	// Files per directory, directories are nested 3 levels deep.
+	private static final int FANOUT = 100;
+
+	private Path root;
+	private Path userDir;
+	private FileManager fileManager;
+
+	@Setup(Level.Trial)
+	public void generate() throws IOException {
+		root = Files.createTempDirectory("checkout-benchmark");
+		userDir = root.resolve(Node.getInstance().getUsername());
+		for (int i = 0; i < files; i++) {
+			Path path = userDir.resolve(relativePath(i));
+			Files.createDirectories(path.getParent());
+			Files.write(path, ("file" + i).getBytes(StandardCharsets.UTF_8));
+		}
+
+		FileManager.setRootDir(root.toString());
+		fileManager = FileManager.getInstance();
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() throws IOException {
+		try (java.util.stream.Stream<Path> paths = Files.walk(root)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	/**
+	 * Appends to every 100th file before each call, a different one each time
+	 * so their last modified times always change.
+	 */
+	@State(Scope.Benchmark)
+	public static class Modified {
+		private int round = 0;
+
+		@Setup(Level.Invocation)
+		public void modify(CheckoutBenchmark benchmark) throws IOException {
+			round++;
+			for (int i = round % 100; i < benchmark.files; i += 100)
+				Files.write(benchmark.userDir.resolve(benchmark.relativePath(i)),
+						new byte[]{(byte) round}, StandardOpenOption.APPEND);
+		}
+	}
+
+	@Benchmark
+	public void checkoutUnchanged() {
+		fileManager.checkout();
+	}
+
+	@Benchmark
+	public void checkoutModified(Modified modified) {
+		fileManager.checkout();
+	}
+
+	private String relativePath(int i) {
+		int directory = i / FANOUT;
+		return "d" + (directory / (FANOUT * FANOUT)) + "/d" + (directory / FANOUT % FANOUT)
+				+ "/d" + (directory % FANOUT) + "/file" + i;
+	}
+}
@@ -0,0 +1,124 @@
+package benchmarks;
+
+import controllers.Helpers;
+import controllers.MessageReader;
+import controllers.MessageType;
+import controllers.MessageWriter;
+import org.openjdk.jmh.annotations.*;
+import storage.MerkleListing;
+import storage.MerkleTree;
+import storage.Version;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Finding the files a peer is missing, the old way ("compareWithPeer": the whole
+ * file list serialized, sent and diffed) against the top-down "MerkleTree" exchange,
+ * every listing going through "MessageWriter"/"MessageReader" as it would on the wire.
+ * <p>
+ * The peer is missing either one file or every 100th file,
+ * scattered so most directories differ.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CompareBenchmark {
+	@Param({"10000", "100000", "1000000"})
+	public int files;
+
+	// Files per directory, directories are nested 3 levels deep.
+	private static final int FANOUT = 100;
+
+	// The node that changed every file once.
+	private static final UUID NODE = new UUID(0, 1);
+
+	private ArrayList<String> fileList;
+	private ArrayList<String> peerFileList;
+
+	private MerkleTree tree;
+	private MerkleTree peerTreeOneMissing;
+	private MerkleTree peerTreeManyMissing;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		fileList = new ArrayList<>(files);
+		peerFileList = new ArrayList<>(files);
+		tree = new MerkleTree();
+		peerTreeOneMissing = new MerkleTree();
+		peerTreeManyMissing = new MerkleTree();
+
+		for (int i = 0; i < files; i++) {
+			int directory = i / FANOUT;
+			String path = "/d" + (directory / (FANOUT * FANOUT)) + "/d" + (directory / FANOUT % FANOUT)
+					+ "/d" + (directory % FANOUT) + "/file" + i;
+			Version version = Version.changed(null, NODE, digest(i));
+
+			fileList.add(path);
+			tree.add(path, version);
+			if (i != files / 2)
+				peerTreeOneMissing.add(path, version);
+			if (i % 100 != 0) {
+				peerFileList.add(path);
+				peerTreeManyMissing.add(path, version);
+			}
+		}
+
+		// Hashes are computed lazily, they are already there on a running node.
+		tree.hash("");
+		peerTreeOneMissing.hash("");
+		peerTreeManyMissing.hash("");
+	}
+
+	@Benchmark
+	public List<String> fileListDiff() {
+		@SuppressWarnings("unchecked")
+		Collection<String> received = (Collection<String>) Helpers.deserialize(
+				Helpers.serialize(peerFileList));
+		Set<String> peerFiles = new HashSet<>(received);
+		return fileList.stream().filter(x -> !peerFiles.contains(x)).collect(Collectors.toList());
+	}
+
+	@Benchmark
+	public Collection<String> merkleCompareOneMissing() throws IOException {
+		return merkleCompare(peerTreeOneMissing);
+	}
+
+	@Benchmark
+	public Collection<String> merkleCompareManyMissing() throws IOException {
+		return merkleCompare(peerTreeManyMissing);
+	}
+
+	/**
+	 * Same rounds as "FileManager.receiveFileList()": starting from the root,
+	 * the peer lists each directory I ask for and I compare it with mine.
+	 */
+	private Collection<String> merkleCompare(MerkleTree peerTree) throws IOException {
+		Collection<String> missing = new ArrayList<>();
+		Collection<String> newer = new ArrayList<>();
+		Collection<String> versions = new ArrayList<>();
+		Deque<String> requested = new ArrayDeque<>();
+		requested.add("");
+		while (!requested.isEmpty()) {
+			MerkleListing listing = peerTree.list(requested.poll());
+			MessageWriter writer = new MessageWriter(MessageType.MERKLE_LISTING, 64 + listing.size() * 48);
+			listing.write(writer);
+			ByteBuffer msg = writer.finish();
+
+			tree.compare(MerkleListing.read(new MessageReader(msg)), missing, newer, versions, requested);
+		}
+		return missing;
+	}
+
+	private static byte[] digest(int i) {
+		byte[] digest = new byte[16];
+		new Random(i).nextBytes(digest);
+		return digest;
+	}
+}
@@ -0,0 +1,100 @@
+package benchmarks;
+
+import controllers.Helpers;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The "Helpers" a file chunk used to go through: Java serialization of the chunk,
+ * "concatenate" to prepend the type byte, and "readData"/"writeData" on the file,
+ * at the chunk sizes jReto and the transfers use.
+ * <p>
+ * The file is 64 MB, read and written at rolling positions so it mostly
+ * stays in the page cache, this measures the copies and allocations, not the disk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HelpersBenchmark {
+	private static final long FILE_SIZE = 64 << 20;
+
+	@Param({"4096", "65536", "1048576"})
+	public int chunkSize;
+
+	private byte[] chunk;
+	private byte[] serializedChunk;
+	private ByteBuffer writeBuffer;
+
+	private Path file;
+	private FileChannel readChannel;
+	private FileChannel writeChannel;
+	private long readPosition = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		chunk = new byte[chunkSize];
+		new Random(42).nextBytes(chunk);
+		serializedChunk = Helpers.serialize(chunk);
+		writeBuffer = ByteBuffer.wrap(chunk);
+
+		file = Files.createTempFile("helpers-benchmark", ".bin");
+		byte[] block = new byte[1 << 20];
+		new Random(7).nextBytes(block);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			for (long written = 0; written < FILE_SIZE; written += block.length)
+				channel.write(ByteBuffer.wrap(block));
+		}
+		readChannel = FileChannel.open(file, StandardOpenOption.READ);
+		writeChannel = FileChannel.open(file, StandardOpenOption.WRITE);
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() throws IOException {
+		readChannel.close();
+		writeChannel.close();
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public byte[] serialize() {
+		return Helpers.serialize(chunk);
+	}
+
+	@Benchmark
+	public Object deserialize() {
+		return Helpers.deserialize(serializedChunk);
+	}
+
+	@Benchmark
+	public byte[] concatenate() {
+		return Helpers.concatenate(new byte[]{2}, chunk);
+	}
+
+	@Benchmark
+	public ByteBuffer readData() {
+		ByteBuffer data = Helpers.readData(readChannel, readPosition, chunkSize);
+		readPosition += chunkSize;
+		if (readPosition + chunkSize > FILE_SIZE)
+			readPosition = 0;
+		return data;
+	}
+
+	@Benchmark
+	public void writeData() throws IOException {
+		if (writeChannel.position() + chunkSize > FILE_SIZE)
+			writeChannel.position(0);
+		writeBuffer.clear();
+		Helpers.writeData(writeChannel, writeBuffer);
+	}
+}
@@ -0,0 +1,23 @@
+package benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Same as JMH's own main, with the same options, but always adds the GC profiler
+ * so every result comes with its allocation rate ("gc.alloc.rate.norm" is bytes per operation).
+ */
+public class Main {
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions options = new CommandLineOptions(args);
+		new Runner(new OptionsBuilder()
+				.parent(options)
+				.addProfiler(GCProfiler.class)
+				.build())
+				.run();
+	}
+}
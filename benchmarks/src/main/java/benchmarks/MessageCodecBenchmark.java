@@ -0,0 +1,98 @@
+package benchmarks;
+
+import controllers.Helpers;
+import controllers.MessageReader;
+import controllers.MessageType;
+import controllers.MessageWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Control msgs, the old way (Java serialization + a type byte prepended by "Helpers.concatenate")
+ * against "MessageWriter"/"MessageReader".
+ * The allocation rate of each is reported next to it (see "Main").
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageCodecBenchmark {
+	@Param({"1", "1000"})
+	public int paths;
+
+	private String username = "some user name";
+	private ArrayList<String> fileList;
+
+	private byte[] serializedLogin;
+	private ByteBuffer encodedLogin;
+	private byte[] serializedFileList;
+	private ByteBuffer encodedFileList;
+
+	@Setup
+	public void setup() {
+		fileList = new ArrayList<>();
+		for (int i = 0; i < paths; i++)
+			fileList.add("/folder" + (i % 17) + "/subfolder" + (i % 5) + "/file" + i + ".txt");
+
+		serializedLogin = serializedLogin();
+		encodedLogin = encodedLogin();
+		serializedFileList = serializedFileList();
+		encodedFileList = encodedFileList();
+	}
+
+	@Benchmark
+	public byte[] serializedLogin() {
+		return Helpers.concatenate(new byte[]{0}, Helpers.serialize(username));
+	}
+
+	@Benchmark
+	public ByteBuffer encodedLogin() {
+		return new MessageWriter(MessageType.LOGIN).writeString(username).finish();
+	}
+
+	@Benchmark
+	public Object deserializedLogin() {
+		return Helpers.deserialize(Arrays.copyOfRange(serializedLogin, 1, serializedLogin.length));
+	}
+
+	@Benchmark
+	public String decodedLogin() throws IOException {
+		return new MessageReader(encodedLogin.duplicate()).readString();
+	}
+
+	@Benchmark
+	public byte[] serializedFileList() {
+		return Helpers.concatenate(new byte[]{1}, Helpers.serialize(fileList));
+	}
+
+	@Benchmark
+	public ByteBuffer encodedFileList() {
+		MessageWriter writer = new MessageWriter(MessageType.MERKLE_LISTING, paths * 48);
+		writer.writeVarInt(fileList.size());
+		for (String path : fileList)
+			writer.writeString(path);
+		return writer.finish();
+	}
+
+	@Benchmark
+	public Object deserializedFileList() {
+		return Helpers.deserialize(Arrays.copyOfRange(serializedFileList, 1, serializedFileList.length));
+	}
+
+	@Benchmark
+	public ArrayList<String> decodedFileList() throws IOException {
+		MessageReader reader = new MessageReader(encodedFileList.duplicate());
+		int size = reader.readVarInt();
+		ArrayList<String> paths = new ArrayList<>(size);
+		for (int i = 0; i < size; i++)
+			paths.add(reader.readString());
+		return paths;
+	}
+}
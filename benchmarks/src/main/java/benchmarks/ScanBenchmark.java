@@ -0,0 +1,89 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import storage.DirectoryScan;
+import storage.FileIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Scanning and diffing a generated tree, the old way ("File.listFiles()" recursion
+ * into an ArrayList, diffed with "contains()") against "DirectoryScan" into a set.
+ * The tree is generated once per fork under java.io.tmpdir, e.g.
+ * "-p files=1000000" for the 1M file case (needs a few GB of inodes).
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+	@Param({"10000", "100000"})
+	public int files;
+
+	// Files per directory, directories are nested 3 levels deep.
+	private static final int FANOUT = 100;
+
+	private Path root;
+	private Set<String> fileList;
+
+	@Setup(Level.Trial)
+	public void generate() throws IOException {
+		root = Files.createTempDirectory("scan-benchmark");
+		fileList = new HashSet<>();
+		for (int i = 0; i < files; i++) {
+			int directory = i / FANOUT;
+			String relativePath = "/d" + (directory / (FANOUT * FANOUT)) + "/d" + (directory / FANOUT % FANOUT)
+					+ "/d" + (directory % FANOUT) + "/file" + i;
+			Path path = root.resolve(relativePath.substring(1));
+			Files.createDirectories(path.getParent());
+			Files.createFile(path);
+			// The previous state is missing every 100th file, the diff has some work to do.
+			if (i % 100 != 0)
+				fileList.add(relativePath);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() throws IOException {
+		try (java.util.stream.Stream<Path> paths = Files.walk(root)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	@Benchmark
+	public Collection<String> sequentialScanAndListDiff() {
+		Collection<String> directory = new ArrayList<>();
+		listFiles(root.toFile(), "", directory);
+		// Quadratic, skip it on big trees or it never ends.
+		if (files > 20000)
+			return directory;
+		return fileList.stream().filter(x -> !directory.contains(x)).collect(Collectors.toList());
+	}
+
+	@Benchmark
+	public Collection<String> parallelScanAndSetDiff() throws IOException {
+		FileIndex index = FileIndex.open(Files.createTempDirectory("scan-benchmark-index").resolve("index"));
+		Set<String> directory = ConcurrentHashMap.newKeySet();
+		DirectoryScan.scan(root, "", directory, index);
+		return fileList.stream().filter(x -> !directory.contains(x)).collect(Collectors.toList());
+	}
+
+	private static void listFiles(File file, String rootPath, Collection<String> paths) {
+		for (File curFile : file.listFiles()) {
+			String fileRelativePath = rootPath + "/" + curFile.getName();
+			if (curFile.isDirectory())
+				listFiles(curFile, fileRelativePath, paths);
+			else
+				paths.add(fileRelativePath);
+		}
+	}
+}
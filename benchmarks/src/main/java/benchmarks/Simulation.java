@@ -0,0 +1,369 @@
+package benchmarks;
+
+import transport.LoopbackNetwork;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Starts N nodes in this JVM on a "LoopbackNetwork", each with its own root directory,
+ * writes a scripted workload into the first one and measures how long it takes
+ * until every node has the same files, how many bytes went over the network,
+ * how many the first node sent itself (new files are relayed by the others),
+ * and how many it read from the files it sent (once per file, not once per peer).
+ * <p>
+ * "Node" and "FileManager" are singletons, so each node gets its own class loader
+ * for the "controllers", "storage" and "forms" classes, jReto and the network are shared.
+ * <p>
+ * java -cp target/benchmarks.jar benchmarks.Simulation 2 4 8
+ * <p>
+ * -Dfiles=200        files created in the first phase
+ * -Dsize=64          size of each file in KB
+ * -Dlatency=2        one way latency in ms
+ * -Dbandwidth=12500  uplink of each node in KB/s, 0 for unlimited
+ * -Dloss=0           probability of a packet being lost
+ * -Dverbose=false    prints the output of the nodes too
+ * -Ddrds.relay.fanout=2  peers the first node sends new files to, 0 to send them to all
+ * -Dquota=0          MB of content the last node keeps (see "storage.ContentCache"), 0 to keep it all,
+ *                    it only has placeholders of the files until it opens a tenth of them in the "open" phase
+ */
+public class Simulation {
+	private static final String USERNAME = "simulation";
+
+	private static final int FILES = Integer.getInteger("files", 200);
+	private static final int SIZE = Integer.getInteger("size", 64) << 10;
+	private static final long QUOTA = Long.getLong("quota", 0);
+	private static final long TIMEOUT = TimeUnit.MINUTES.toNanos(5);
+
+	// The nodes' output goes to "System.out", which is turned off unless -Dverbose=true.
+	private static PrintStream report = System.out;
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("drds.transport", "loopback");
+		if (System.getProperty("drds.metrics.dump") == null)
+			System.setProperty("drds.metrics.dump", "0");
+
+		LoopbackNetwork network = LoopbackNetwork.getInstance();
+		network.setLatency(Long.getLong("latency", 2));
+		network.setBandwidth(Long.getLong("bandwidth", 12500) << 10);
+		network.setLoss(Double.parseDouble(System.getProperty("loss", "0")));
+
+		if (!Boolean.getBoolean("verbose"))
+			System.setOut(new PrintStream(new OutputStream() {
+				@Override
+				public void write(int b) {
+				}
+			}));
+
+		int[] sizes = args.length == 0 ? new int[]{2, 4, 8} : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+		report.printf("%d files of %d KB, latency %s ms, bandwidth %s KB/s, loss %s%n", FILES, SIZE >> 10,
+				System.getProperty("latency", "2"), System.getProperty("bandwidth", "12500"),
+				System.getProperty("loss", "0"));
+		report.printf("%6s %-8s %10s %12s %10s %12s %12s%n", "nodes", "phase", "ms", "bytes", "lost", "sent", "read");
+
+		for (int n : sizes)
+			run(network, n);
+		System.exit(0);
+	}
+
+	private static void run(LoopbackNetwork network, int n) throws Exception {
+		Path base = Files.createTempDirectory("simulation");
+		List<Object> nodes = new ArrayList<>();
+		for (int i = 0; i < n; i++)
+			nodes.add(startNode(base.resolve("node" + i), QUOTA > 0 && i == n - 1));
+
+		// Everyone has to know everyone before the files are written, or there's no one to send them to.
+		for (Object node : nodes)
+			awaitPeers(node, n);
+
+		// The first node's own "Metrics", in its class loader.
+		Object metrics = nodes.get(0).getClass().getClassLoader().loadClass("controllers.Metrics")
+				.getMethod("getInstance").invoke(null);
+
+		List<Path> userDirs = new ArrayList<>();
+		for (int i = 0; i < n; i++)
+			userDirs.add(base.resolve("node" + i).resolve(USERNAME));
+		// The last node's placeholders only have the size of the files.
+		Path placeholders = QUOTA > 0 ? base.resolve("node" + (n - 1)).resolve(".placeholders").resolve(USERNAME) : null;
+		Random random = new Random(n);
+
+		phase(network, metrics, n, placeholders, "create", userDirs, () -> {
+			byte[] data = new byte[SIZE];
+			for (int i = 0; i < FILES; i++) {
+				random.nextBytes(data);
+				Path path = userDirs.get(0).resolve("d" + (i % 10)).resolve("file" + i);
+				Files.createDirectories(path.getParent());
+				Files.write(path, data);
+			}
+		});
+
+		// Changes a few KB in the middle of every 10th file, they're sent as deltas.
+		phase(network, metrics, n, placeholders, "modify", userDirs, () -> {
+			byte[] data = new byte[Math.min(4 << 10, SIZE)];
+			for (int i = 0; i < FILES; i += 10) {
+				random.nextBytes(data);
+				Path path = userDirs.get(0).resolve("d" + (i % 10)).resolve("file" + i);
+				byte[] content = Files.readAllBytes(path);
+				System.arraycopy(data, 0, content, (content.length - data.length) / 2, data.length);
+				Files.write(path, content);
+			}
+		});
+
+		// The last node opens a tenth of the files, their content is fetched from the others,
+		// then it evicts the least recently used content until it's under the quota again.
+		Object last = nodes.get(n - 1);
+		if (QUOTA > 0) {
+			phase(network, metrics, n, placeholders, "open", userDirs, () -> {
+				try {
+					List<CompletableFuture<?>> opened = new ArrayList<>();
+					for (int i = 2; i < FILES; i += 10)
+						opened.add((CompletableFuture<?>) call(last, "openFile", "/d2/file" + i));
+					CompletableFuture.allOf(opened.toArray(new CompletableFuture[0])).get(TIMEOUT, TimeUnit.NANOSECONDS);
+				} catch (Exception e) {
+					throw new IOException(e);
+				}
+			});
+			reportCache(n, userDirs.get(n - 1), placeholders);
+		}
+
+		// Moves a tenth of the files to another directory, the others copy them from what they have.
+		phase(network, metrics, n, placeholders, "rename", userDirs, () -> {
+			Path from = userDirs.get(0).resolve("d0");
+			Files.move(from, from.resolveSibling("moved"));
+		});
+
+		// Deletes a tenth of the files, the others delete them too.
+		phase(network, metrics, n, placeholders, "delete", userDirs, () -> {
+			try (Stream<Path> paths = Files.walk(userDirs.get(0).resolve("d1"))) {
+				for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+					Files.delete(path);
+			}
+		});
+
+		// The last node goes away while files are added, and only asks for the changes it missed when it's back.
+		phase(network, metrics, n, placeholders, "rejoin", userDirs, () -> {
+			try {
+				// Marks where it's at in the others' journals.
+				call(last, "scanDirectory");
+				Thread.sleep(500);
+				call(last, "logout");
+				byte[] data = new byte[SIZE];
+				for (int i = 0; i < FILES / 10; i++) {
+					random.nextBytes(data);
+					Path path = userDirs.get(0).resolve("rejoin").resolve("file" + i);
+					Files.createDirectories(path.getParent());
+					Files.write(path, data);
+				}
+				// Long enough for the others to get them first.
+				Thread.sleep(2000);
+
+				call(last, "login", USERNAME);
+				awaitPeers(last, n);
+				call(last, "scanDirectory");
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		});
+
+		for (Object node : nodes)
+			call(node, "logout");
+	}
+
+	private static void awaitPeers(Object node, int n) throws Exception {
+		long deadline = System.nanoTime() + TIMEOUT;
+		while (((List<?>) call(node, "getPeers", USERNAME)).size() < n - 1) {
+			if (System.nanoTime() > deadline)
+				throw new IllegalStateException("Nodes didn't discover each other");
+			Thread.sleep(50);
+		}
+	}
+
+	private interface Workload {
+		void apply() throws IOException;
+	}
+
+	/**
+	 * Applies the workload to the first node and waits until all the others have its files.
+	 */
+	private static void phase(LoopbackNetwork network, Object metrics, int n, Path placeholders, String name,
+	                          List<Path> userDirs, Workload workload) throws Exception {
+		long bytes = network.getBytes();
+		long sent = (long) call(metrics, "getBytesSent");
+		long read = (long) call(metrics, "getBytesRead");
+		long lost = network.getLost();
+		long start = System.nanoTime();
+
+		workload.apply();
+		Map<String, Long> sizes = sizes(userDirs.get(0));
+		Map<String, String> digests = digests(userDirs.get(0), sizes.keySet());
+
+		for (int i = 1; i < userDirs.size(); i++) {
+			Path userDir = userDirs.get(i);
+			while (!converged(userDir, i == userDirs.size() - 1 ? placeholders : null, sizes, digests)) {
+				if (System.nanoTime() - start > TIMEOUT) {
+					report.printf("%6d %-8s %10s%n", n, name, "timed out");
+					report.flush();
+					return;
+				}
+				Thread.sleep(20);
+			}
+		}
+
+		report.printf("%6d %-8s %10d %12d %10d %12d %12d%n", n, name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+				network.getBytes() - bytes, network.getLost() - lost, (long) call(metrics, "getBytesSent") - sent,
+				(long) call(metrics, "getBytesRead") - read);
+		report.flush();
+
+		// The nodes index what they received once their watchers catch up, before the next phase starts.
+		Thread.sleep(1000);
+	}
+
+	/**
+	 * @param placeholders Where the node keeps track of its placeholders, null if it keeps all the content.
+	 * @return True if "userDir" has the same files as the first node, with the same content
+	 * unless they're placeholders.
+	 */
+	private static boolean converged(Path userDir, Path placeholders, Map<String, Long> sizes,
+	                                 Map<String, String> digests) throws IOException {
+		// Sizes first, hashing every file on every poll would slow the nodes down.
+		if (!sizes.equals(sizes(userDir)))
+			return false;
+		Map<String, String> content = new HashMap<>(digests);
+		if (placeholders != null)
+			content.keySet().removeIf(file -> Files.exists(placeholders.resolve(file)));
+		return content.equals(digests(userDir, content.keySet()));
+	}
+
+	/**
+	 * Waits for the selective node to evict what's over its quota, and prints what it kept.
+	 */
+	private static void reportCache(int n, Path userDir, Path placeholders) throws Exception {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		Map<String, Long> sizes;
+		long content;
+		do {
+			Thread.sleep(200);
+			sizes = sizes(userDir);
+			sizes.keySet().removeIf(file -> Files.exists(placeholders.resolve(file)));
+			content = sizes.values().stream().mapToLong(Long::longValue).sum();
+		} while (content > QUOTA << 20 && System.nanoTime() < deadline);
+
+		report.printf("%6d %-8s %d files with content, %d KB (quota %d KB), the others are placeholders%n",
+				n, "cache", sizes.size(), content >> 10, QUOTA << 10);
+		report.flush();
+	}
+
+	private static Map<String, Long> sizes(Path userDir) throws IOException {
+		Map<String, Long> sizes = new HashMap<>();
+		try (Stream<Path> paths = Files.walk(userDir)) {
+			for (Path path : paths.filter(Files::isRegularFile).collect(Collectors.toList())) {
+				try {
+					sizes.put(userDir.relativize(path).toString(), Files.size(path));
+				} catch (NoSuchFileException e) {
+					// Renamed or deleted by the node since it was listed, not converged yet.
+					sizes.put(userDir.relativize(path).toString(), -1L);
+				}
+			}
+		}
+		return sizes;
+	}
+
+	private static Map<String, String> digests(Path userDir, Collection<String> files) throws IOException {
+		Map<String, String> digests = new HashMap<>();
+		for (String file : files) {
+			Path path = userDir.resolve(file);
+			try {
+				digests.put(file, Base64.getEncoder().encodeToString(md5(Files.readAllBytes(path))));
+			} catch (NoSuchFileException e) {
+				// Not there yet, or deleted while the node is catching up.
+				digests.put(file, "");
+			}
+		}
+		return digests;
+	}
+
+	private static byte[] md5(byte[] data) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Logs a new node in, with "root" as its root directory.
+	 *
+	 * @param selective True if it only keeps "QUOTA" MB of content.
+	 * @return Its "Node".
+	 */
+	private static Object startNode(Path root, boolean selective) throws Exception {
+		ClassLoader loader = new NodeClassLoader(Simulation.class.getClassLoader());
+		loader.loadClass("storage.FileManager").getMethod("setRootDir", String.class).invoke(null, root.toString());
+
+		Object node = loader.loadClass("controllers.Node").getMethod("getInstance").invoke(null);
+		if (!selective) {
+			call(node, "login", USERNAME);
+			return node;
+		}
+
+		// Its own "ContentCache" class reads the quota once it's loaded, when it logs in.
+		System.setProperty("drds.cache.quota", Long.toString(QUOTA));
+		try {
+			call(node, "login", USERNAME);
+		} finally {
+			System.clearProperty("drds.cache.quota");
+		}
+		return node;
+	}
+
+	private static Object call(Object target, String name, Object... args) throws Exception {
+		for (Method method : target.getClass().getMethods())
+			if (method.getName().equals(name) && method.getParameterCount() == args.length)
+				return method.invoke(target, args);
+		throw new NoSuchMethodException(name);
+	}
+
+	/**
+	 * Loads its own copy of the node's classes, and everything else from the parent.
+	 */
+	private static class NodeClassLoader extends URLClassLoader {
+		private static final String[] ISOLATED = {"controllers.", "storage.", "forms."};
+
+		NodeClassLoader(ClassLoader parent) throws ClassNotFoundException {
+			super(new URL[]{location(parent)}, parent);
+		}
+
+		private static URL location(ClassLoader parent) throws ClassNotFoundException {
+			return parent.loadClass("controllers.Node").getProtectionDomain().getCodeSource().getLocation();
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (Arrays.stream(ISOLATED).noneMatch(name::startsWith))
+				return super.loadClass(name, resolve);
+
+			synchronized (getClassLoadingLock(name)) {
+				Class<?> loaded = findLoadedClass(name);
+				if (loaded == null)
+					loaded = findClass(name);
+				if (resolve)
+					resolveClass(loaded);
+				return loaded;
+			}
+		}
+	}
+}
@@ -2,9 +2,17 @@ import forms.LoginForm;
 import storage.FileManager;
 
 import javax.swing.*;
+import java.io.IOException;
+import java.util.Arrays;
 
 public class App {
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
+		// e.g. "App --headless --username alice", see "Daemon".
+		if (args.length > 0 && args[0].equals("--headless")) {
+			Daemon.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+
 		System.out.println("DEVELOPMENT: Enter working Directory (e.g \"Data**\" )");
 		FileManager.setRootDir();
 		JFrame frame = new LoginForm();
@@ -0,0 +1,103 @@
+import controllers.Node;
+import controllers.TransferListener;
+import storage.FileManager;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a node without the GUI and without asking anything on stdin, e.g. on a server.
+ * <p>
+ * Configured with a properties file, the args override it:
+ * <pre>
+ * java Daemon --config drds.properties
+ * java Daemon --root /srv/drds --username alice --network myNet --sync 300
+ * </pre>
+ * root      Root directory, the files are in root/username (default ./Data)
+ * username  Files are replicated between the nodes with the same username
+ * network   Name of the network the peers are discovered on (default myNet)
+ * sync      Seconds between two syncs with the peers, 0 to only sync at start (default 300)
+ */
+public class Daemon {
+	public static void main(String[] args) throws IOException {
+		Properties config = new Properties();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].startsWith("--")) {
+				usage();
+				return;
+			}
+			if (args[i].equals("--config")) {
+				try (InputStream in = new FileInputStream(args[i + 1])) {
+					Properties file = new Properties();
+					file.load(in);
+					// The args override the file whatever their order.
+					file.putAll(config);
+					config = file;
+				}
+			} else
+				config.setProperty(args[i].substring(2), args[i + 1]);
+		}
+		if (args.length % 2 != 0 || config.getProperty("username") == null) {
+			usage();
+			return;
+		}
+
+		if (config.getProperty("root") != null)
+			FileManager.setRootDir(config.getProperty("root"));
+
+		Node node = Node.getInstance();
+		node.setNetworkName(config.getProperty("network", node.getNetworkName()));
+		node.addTransferListener(new LogListener());
+		node.login(config.getProperty("username"));
+		Runtime.getRuntime().addShutdownHook(new Thread(node::logout));
+
+		// New and modified files are picked up by the watcher, syncing catches
+		// what the peers changed while they weren't connected.
+		long sync = Long.parseLong(config.getProperty("sync", "300"));
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		if (sync > 0)
+			scheduler.scheduleWithFixedDelay(node::scanDirectory, 10, sync, TimeUnit.SECONDS);
+		else
+			scheduler.schedule(node::scanDirectory, 10, TimeUnit.SECONDS);
+
+		System.out.println("Running as " + node.getUsername() + " on " + node.getNetworkName()
+				+ ", files in " + node.fileManager.getUserDir());
+	}
+
+	private static void usage() {
+		System.out.println("Usage: Daemon [--config file] [--root dir] --username name [--network name] [--sync seconds]");
+	}
+
+	/**
+	 * Logs the start and end of each transfer, not their progress.
+	 */
+	private static class LogListener implements TransferListener {
+		@Override
+		public void sending(String filename) {
+			System.out.println("Sending: " + filename);
+		}
+
+		@Override
+		public void sent(String filename, boolean completed) {
+			System.out.println((completed ? "Sent: " : "Interrupted sending: ") + filename);
+		}
+
+		@Override
+		public void receiving(String filename, boolean delta) {
+			System.out.println((delta ? "Receiving changes: " : "Receiving: ") + filename);
+		}
+
+		@Override
+		public void received(String filename, boolean delta, boolean completed, long written) {
+			if (!completed)
+				System.out.println("Interrupted at " + written + " bytes: " + filename);
+			else
+				System.out.println((delta ? "Updated: " : "Received: ") + filename);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package controllers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Splits an outgoing transfer into blocks and deflates each one (at the fastest level),
+ * only if the peer said it can inflate them (see "PeerConnection").
+ * <p>
+ * A block that doesn't get at least 10% smaller is sent as is, and the next
+ * "SKIP_LENGTH" bytes are sent without even trying, so already compressed
+ * content only costs a deflate every few MBs. Files that are already compressed
+ * by their extension (media, archives) are never tried.
+ */
+public class BlockCompressor {
+	static final int BLOCK_SIZE = 1 << 20;
+
+	// Sent as is after a block that didn't compress, before trying again.
+	private static final long SKIP_LENGTH = 16 << 20;
+
+	// Max deflated size, relative to the block.
+	private static final double MAX_RATIO = 0.9;
+
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+			"jpg", "jpeg", "png", "gif", "webp", "heic",
+			"mp3", "m4a", "ogg", "flac", "aac", "opus",
+			"mp4", "m4v", "mkv", "avi", "mov", "webm",
+			"zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4",
+			"jar", "apk", "docx", "xlsx", "pptx", "odt", "pdf"));
+
+	// Can be turned off with -Ddrds.compression=false
+	private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("drds.compression", "true"));
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final byte[] raw = new byte[BLOCK_SIZE];
+
+	// Deflating stops at "MAX_RATIO" of the block, then it's sent as is.
+	private final byte[] deflated = new byte[(int) (BLOCK_SIZE * MAX_RATIO)];
+
+	private long skip = 0;
+
+	/**
+	 * The next part of the transfer.
+	 */
+	static class Block {
+		// Bytes of the file it covers.
+		final int length;
+
+		// What to send, null to read it from the file as usual.
+		final ByteBuffer data;
+
+		final boolean deflated;
+
+		Block(int length, ByteBuffer data, boolean deflated) {
+			this.length = length;
+			this.data = data;
+			this.deflated = deflated;
+		}
+	}
+
+	/**
+	 * @return False if compression is turned off, or the file is already compressed.
+	 */
+	static boolean worthTrying(String filename) {
+		if (!ENABLED)
+			return false;
+		int dot = filename.lastIndexOf('.');
+		return dot < 0 || dot < filename.lastIndexOf('/')
+				|| !COMPRESSED_EXTENSIONS.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * @param cursor    Reads the file, through the blocks shared with the other transfers of it (see "FanOutReader").
+	 * @param position  Where the block starts in the file.
+	 * @param remaining Bytes left to send.
+	 */
+	Block next(FanOutReader.Cursor cursor, long position, long remaining) throws IOException {
+		if (skip > 0) {
+			int length = (int) Math.min(skip, remaining);
+			skip -= length;
+			return new Block(length, null, false);
+		}
+
+		int length = (int) Math.min(BLOCK_SIZE, remaining);
+		ByteBuffer block = ByteBuffer.wrap(raw, 0, length);
+		long start = System.nanoTime();
+		cursor.read(position, block);
+		if (block.hasRemaining())
+			throw new IOException("File shrank while being sent");
+		Metrics.getInstance().getChunkRead().record(System.nanoTime() - start);
+
+		deflater.reset();
+		deflater.setInput(raw, 0, length);
+		deflater.finish();
+		int size = deflater.deflate(deflated, 0, (int) (length * MAX_RATIO));
+		if (!deflater.finished()) {
+			skip = SKIP_LENGTH;
+			return new Block(length, ByteBuffer.wrap(raw, 0, length), false);
+		}
+		return new Block(length, ByteBuffer.wrap(deflated, 0, size), true);
+	}
+
+	void close() {
+		deflater.end();
+	}
+
+	/**
+	 * Inflates the chunks of a deflated transfer as they arrive.
+	 *
+	 * @param length Length of the inflated block.
+	 * @param sink   Gets the inflated data.
+	 */
+	static Inflating inflating(int length, Consumer<ByteBuffer> sink) {
+		return new Inflating(length, sink);
+	}
+
+	/**
+	 * The inflater of one deflated block, its native memory is freed once the block is inflated,
+	 * or by "end()" if the transfer stopped before that.
+	 */
+	static class Inflating implements Consumer<ByteBuffer> {
+		private final Inflater inflater = new Inflater();
+
+		private final Consumer<ByteBuffer> sink;
+
+		private final byte[] out;
+
+		// Reused for every chunk, grown to the largest one.
+		private byte[] in = new byte[0];
+
+		private boolean ended = false;
+
+		private Inflating(int length, Consumer<ByteBuffer> sink) {
+			this.sink = sink;
+			this.out = new byte[Math.min(length, 1 << 16)];
+		}
+
+		@Override
+		public void accept(ByteBuffer data) {
+			// Anything after the end is garbage, also caught by the hash check.
+			if (ended)
+				return;
+
+			int length = data.remaining();
+			if (in.length < length)
+				in = new byte[length];
+			data.get(in, 0, length);
+			// Inflated until it needs more input, so "in" is free again for the next chunk.
+			inflater.setInput(in, 0, length);
+			try {
+				int inflated;
+				while ((inflated = inflater.inflate(out)) > 0)
+					sink.accept(ByteBuffer.wrap(out, 0, inflated));
+			} catch (DataFormatException e) {
+				// Caught by the hash check at the end.
+				e.printStackTrace();
+				end();
+			}
+			if (inflater.finished())
+				end();
+		}
+
+		void end() {
+			if (ended)
+				return;
+			ended = true;
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package controllers;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of reusable direct ByteBuffers, so that sending a file
+ * doesn't allocate a new buffer to read every chunk into
+ * (jReto still copies each one into a packet, see "ChunkSource").
+ * <p>
+ * Never blocks: if the pool is empty a new buffer is allocated,
+ * and buffers released to a full pool are dropped.
+ */
+public class BufferPool {
+	private static final int MIN_BUFFER_SIZE = 4096;
+
+	private final ArrayBlockingQueue<ByteBuffer> buffers;
+
+	// Bigger requests are not worth pooling.
+	private final int maxBufferSize;
+
+	/**
+	 * @param capacity      Maximum number of idle buffers kept.
+	 * @param maxBufferSize Biggest buffer the pool hands out.
+	 */
+	public BufferPool(int capacity, int maxBufferSize) {
+		this.buffers = new ArrayBlockingQueue<>(capacity);
+		this.maxBufferSize = maxBufferSize;
+	}
+
+	/**
+	 * @param length Number of bytes needed.
+	 * @return A cleared buffer with its limit set to "length".
+	 */
+	public ByteBuffer acquire(int length) {
+		if (length > maxBufferSize)
+			return ByteBuffer.allocate(length);
+
+		ByteBuffer buffer = buffers.poll();
+		// Too small ones are dropped, chunks are almost always the same size anyway.
+		if (buffer == null || buffer.capacity() < length)
+			buffer = ByteBuffer.allocateDirect(Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(length - 1) << 1));
+
+		buffer.clear();
+		buffer.limit(length);
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back, it must not be used afterwards.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer != null && buffer.isDirect())
+			buffers.offer(buffer);
+	}
+}
@@ -0,0 +1,145 @@
+package controllers;
+
+import de.tum.in.www1.jReto.Connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Data source of an outgoing transfer, the chunks jReto asks for are slices of blocks
+ * read ahead of it on the "IoExecutor" (see "FanOutReader"), so jReto's thread doesn't read the disk.
+ * The blocks of a file that is sent to other peers too are shared by all its transfers,
+ * so the file is only read once.
+ * <p>
+ * A chunk that spans two blocks is copied into a pooled direct buffer instead of a new one.
+ * jReto only asks for the next chunk once the previous packet has been
+ * serialized, so the previous buffer goes back to the pool at that point.
+ * That only saves the buffer the chunk is copied into: serializing a packet
+ * ("DataPacket.serialize") still copies the chunk into a new heap buffer,
+ * so every chunk sent costs one heap allocation of its size in jReto.
+ * <p>
+ * Long transfers of a file no one else is sending are read through a memory-mapped window
+ * of the file instead, moved forward as the transfer goes, so the chunks are slices of the page cache
+ * and aren't copied before jReto serializes them.
+ */
+public class ChunkSource implements Connection.DataProvider {
+	// Transfers at least this long are read through mapped windows.
+	static final long MAP_THRESHOLD = 8 << 20;
+
+	private static final long WINDOW_SIZE = 64 << 20;
+
+	private final FanOutReader reader;
+	private final FileChannel fileChannel;
+	private final BufferPool pool;
+
+	// Where the transfer is at in the blocks shared with the other transfers of the file.
+	private final FanOutReader.Cursor cursor;
+
+	// Where the transfer starts in the file, for transfers of a range.
+	private final long offset;
+
+	private final boolean mapped;
+
+	// The chunk handed to jReto last.
+	private ByteBuffer current;
+
+	// The mapped part of the file, starting at "windowStart".
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	public ChunkSource(FanOutReader reader, BufferPool pool) {
+		this(reader, pool, 0, 0);
+	}
+
+	/**
+	 * @param offset Where the transfer starts in the file.
+	 * @param length Length of the transfer.
+	 */
+	public ChunkSource(FanOutReader reader, BufferPool pool, long offset, long length) {
+		this.reader = reader;
+		this.fileChannel = reader.getChannel();
+		this.pool = pool;
+		this.offset = offset;
+		this.mapped = length >= MAP_THRESHOLD;
+		this.cursor = reader.cursor(offset, length > 0 ? offset + length : reader.size());
+		if (!mapped)
+			cursor.readAhead();
+	}
+
+	@Override
+	public synchronized ByteBuffer getData(int position, int length) {
+		long start = System.nanoTime();
+		ByteBuffer chunk = read(offset + position, length);
+		Metrics.getInstance().getChunkRead().record(System.nanoTime() - start);
+		return chunk;
+	}
+
+	private ByteBuffer read(long filePosition, int length) {
+		// Long transfers of a file no one else is sending are better off mapped.
+		if (mapped && !reader.isShared()) {
+			ByteBuffer chunk = mappedChunk(filePosition, length);
+			if (chunk != null)
+				return chunk;
+		}
+		return blockChunk(filePosition, length);
+	}
+
+	/**
+	 * @return A slice of a block, or a copy if the chunk spans two of them.
+	 */
+	private ByteBuffer blockChunk(long filePosition, int length) {
+		ByteBuffer chunk = cursor.get(filePosition, length);
+		pool.release(current);
+		current = null;
+		if (chunk != null)
+			return chunk;
+
+		current = pool.acquire(length);
+		cursor.read(filePosition, current);
+		current.flip();
+		return current;
+	}
+
+	/**
+	 * Slides the window if the chunk isn't in it.
+	 *
+	 * @return A slice of the window, or null if the file can't be mapped (e.g. it shrank).
+	 */
+	private ByteBuffer mappedChunk(long filePosition, int length) {
+		try {
+			if (window == null || filePosition < windowStart
+					|| filePosition + length > windowStart + window.capacity()) {
+				long size = Math.min(Math.max(WINDOW_SIZE, length), fileChannel.size() - filePosition);
+				if (size < length)
+					return null;
+				window = fileChannel.map(FileChannel.MapMode.READ_ONLY, filePosition, size);
+				windowStart = filePosition;
+				Metrics.getInstance().addBytesRead(size);
+
+				// Read-ahead, so jReto's thread doesn't wait for the disk on every page.
+				IoExecutor.execute(window::load);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+
+		ByteBuffer chunk = window.duplicate();
+		chunk.position((int) (filePosition - windowStart));
+		chunk.limit(chunk.position() + length);
+		return chunk.slice();
+	}
+
+	/**
+	 * Gives the last chunk back to the pool, once the transfer ended.
+	 */
+	public synchronized void close() {
+		cursor.close();
+		pool.release(current);
+		current = null;
+		// Unmapped once collected, Java 8 has no way to unmap it earlier.
+		window = null;
+	}
+}
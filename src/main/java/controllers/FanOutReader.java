@@ -0,0 +1,483 @@
+package controllers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A file being sent, shared by all the transfers of it, so broadcasting a file
+ * to many peers reads it from the disk once instead of once per peer.
+ * <p>
+ * The file is read in blocks of "BLOCK_SIZE", each one read once and handed to every transfer
+ * (see "Cursor"). The blocks are read on the "IoExecutor", "READ_AHEAD" of them ahead of the transfers,
+ * so jReto's thread only waits for the disk if a transfer catches up with them, and never reads it itself.
+ * A block is reference counted, it goes back to the pool once every transfer
+ * got past it and no chunk of it is still being sent. At most "WINDOW" blocks are kept per file:
+ * a transfer that gets that far ahead of the slowest one reads the next blocks ahead on its own,
+ * instead of the slow one holding more memory.
+ * <p>
+ * The peers' queues don't start a file at exactly the same time, so the last transfer of a file
+ * leaves it open with its blocks for "LINGER_MS", for the transfers that start right after it.
+ * At most "WINDOW" blocks worth of bytes are left over all these files.
+ */
+public class FanOutReader {
+	static final int BLOCK_SIZE = 1 << 20;
+
+	// Max blocks kept per file.
+	private static final int WINDOW = 16;
+
+	// Blocks read ahead of a transfer.
+	private static final int READ_AHEAD = 2;
+
+	// How long a file is kept open once its last transfer ended.
+	private static final long LINGER_MS = 2000;
+
+	private static final BufferPool blockPool = new BufferPool(32, BLOCK_SIZE);
+
+	// Files being sent, or lingering, by path.
+	private static final Map<Path, FanOutReader> open = new HashMap<>();
+
+	// Files no transfer has open anymore, the oldest first.
+	private static final LinkedHashMap<Path, FanOutReader> lingering = new LinkedHashMap<>();
+
+	// Null if it's not shared (e.g. a delta).
+	private final Path path;
+	private final long lastModified;
+
+	private final FileChannel fileChannel;
+	private final long size;
+
+	// Transfers that have it open.
+	private int handles = 1;
+
+	// Index of the block -> block.
+	private final TreeMap<Long, Block> blocks = new TreeMap<>();
+
+	private final Set<Cursor> cursors = new HashSet<>();
+
+	// When the last transfer closed it, if it's lingering.
+	private long closed;
+
+	private static class Block {
+		final long index;
+		final ByteBuffer data;
+
+		// One for being in "blocks" (or held by a cursor reading ahead on its own),
+		// one for each chunk of it being sent, and one until it's read.
+		int refs = 2;
+
+		// Set by the thread reading it, and once it's read.
+		boolean reading = false;
+		boolean filled = false;
+		boolean failed = false;
+
+		Block(long index, ByteBuffer data) {
+			this.index = index;
+			this.data = data;
+		}
+	}
+
+	private FanOutReader(Path path, long lastModified, FileChannel fileChannel) throws IOException {
+		this.path = path;
+		this.lastModified = lastModified;
+		this.fileChannel = fileChannel;
+		this.size = fileChannel.size();
+	}
+
+	/**
+	 * Opens the file, or shares it if another transfer of the same version of it is going on.
+	 * Each call has to be matched by a "close()".
+	 */
+	public static FanOutReader open(Path path) throws IOException {
+		File file = path.toFile();
+		synchronized (open) {
+			trim();
+			FanOutReader reader = open.get(path);
+			if (reader != null && reader.lastModified == file.lastModified() && reader.size == file.length()) {
+				lingering.remove(path);
+				synchronized (reader) {
+					reader.handles++;
+				}
+				return reader;
+			}
+
+			// Changed since, the transfers of the old version keep the old reader.
+			if (lingering.remove(path) != null)
+				reader.dispose();
+			reader = new FanOutReader(path, file.lastModified(), FileChannel.open(path, StandardOpenOption.READ));
+			open.put(path, reader);
+			return reader;
+		}
+	}
+
+	/**
+	 * Wraps a channel that is only read by one transfer, e.g. a range or a delta.
+	 */
+	public static FanOutReader of(FileChannel fileChannel) throws IOException {
+		return new FanOutReader(null, 0, fileChannel);
+	}
+
+	public FileChannel getChannel() {
+		return fileChannel;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return True if more than one transfer has it open.
+	 */
+	synchronized boolean isShared() {
+		return handles > 1;
+	}
+
+	/**
+	 * @param position Where the transfer starts.
+	 */
+	Cursor cursor(long position) {
+		return cursor(position, size);
+	}
+
+	/**
+	 * @param position Where the transfer starts.
+	 * @param end      Where it ends, the blocks after it aren't read ahead.
+	 */
+	synchronized Cursor cursor(long position, long end) {
+		Cursor cursor = new Cursor(position, end);
+		cursors.add(cursor);
+		return cursor;
+	}
+
+	/**
+	 * Closes the file once the last transfer of it closed it, after lingering a bit if there's any block left.
+	 */
+	public void close() {
+		if (path == null) {
+			dispose();
+			return;
+		}
+
+		synchronized (open) {
+			synchronized (this) {
+				if (--handles > 0)
+					return;
+				closed = System.currentTimeMillis();
+			}
+			if (open.get(path) == this && !blocks.isEmpty())
+				lingering.put(path, this);
+			else {
+				open.remove(path, this);
+				dispose();
+			}
+			trim();
+		}
+	}
+
+	/**
+	 * Closes the lingering files that lingered long enough, or hold too many blocks. Holds "open".
+	 */
+	private static void trim() {
+		long now = System.currentTimeMillis();
+		long kept = 0;
+		for (FanOutReader reader : lingering.values())
+			kept += reader.kept();
+
+		Iterator<FanOutReader> oldest = lingering.values().iterator();
+		while (oldest.hasNext()) {
+			FanOutReader reader = oldest.next();
+			if (kept <= (long) WINDOW * BLOCK_SIZE && now - reader.closed < LINGER_MS)
+				break;
+			kept -= reader.kept();
+			oldest.remove();
+			open.remove(reader.path, reader);
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * @return Bytes of the blocks kept.
+	 */
+	private synchronized long kept() {
+		long kept = 0;
+		for (Block block : blocks.values())
+			kept += block.data.limit();
+		return kept;
+	}
+
+	private void dispose() {
+		synchronized (this) {
+			for (Block block : blocks.values())
+				unref(block);
+			blocks.clear();
+		}
+		try {
+			fileChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return The block, being read if it isn't kept yet, or null if the window is full
+	 * of blocks still needed or it's past the end of the file. Holds "this".
+	 */
+	private Block block(long index) {
+		Block block = blocks.get(index);
+		if (block != null)
+			return block;
+
+		if (blocks.size() >= WINDOW)
+			evict();
+		if (blocks.size() >= WINDOW)
+			return null;
+
+		block = load(index);
+		if (block != null)
+			blocks.put(index, block);
+		return block;
+	}
+
+	/**
+	 * Starts reading a block on the "IoExecutor". Holds "this".
+	 *
+	 * @return Null if it's past the end of the file.
+	 */
+	private Block load(long index) {
+		long start = index * BLOCK_SIZE;
+		if (start >= size)
+			return null;
+		Block block = new Block(index, blockPool.acquire((int) Math.min(BLOCK_SIZE, size - start)));
+		IoExecutor.execute(() -> fill(block));
+		return block;
+	}
+
+	/**
+	 * Reads a block, unless another thread is already reading it. Doesn't hold "this" while reading.
+	 */
+	private void fill(Block block) {
+		synchronized (this) {
+			if (block.reading)
+				return;
+			block.reading = true;
+		}
+
+		ByteBuffer data = block.data.duplicate();
+		long start = block.index * BLOCK_SIZE;
+		boolean failed = false;
+		try {
+			while (data.hasRemaining())
+				if (fileChannel.read(data, start + data.position()) < 0)
+					break;
+		} catch (IOException e) {
+			// Closed once no transfer needed it anymore.
+			if (fileChannel.isOpen())
+				e.printStackTrace();
+			failed = true;
+		}
+		Metrics.getInstance().addBytesRead(data.position());
+
+		synchronized (this) {
+			// Shrank while being sent, the peer finds out with the hash.
+			block.data.limit(data.position());
+			block.failed = failed;
+			block.filled = true;
+			unref(block);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits for a block to be read. A thread of the "IoExecutor" reads it itself
+	 * if no one is reading it yet, its read could be queued behind this one.
+	 *
+	 * @return False if it couldn't be read.
+	 */
+	private boolean await(Block block) {
+		if (IoExecutor.isIoThread())
+			fill(block);
+
+		synchronized (this) {
+			while (!block.filled) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return !block.failed;
+		}
+	}
+
+	/**
+	 * Drops the first block, if every transfer got past it.
+	 * Blocks are only dropped to make room, a transfer starting right after may still need them.
+	 */
+	private void evict() {
+		long min = Long.MAX_VALUE;
+		for (Cursor cursor : cursors)
+			min = Math.min(min, cursor.position / BLOCK_SIZE);
+
+		Map.Entry<Long, Block> first = blocks.firstEntry();
+		if (first != null && first.getKey() < min) {
+			unref(first.getValue());
+			blocks.remove(first.getKey());
+		}
+	}
+
+	private static void unref(Block block) {
+		if (--block.refs == 0)
+			blockPool.release(block.data);
+	}
+
+	/**
+	 * Where one transfer is at in the shared blocks.
+	 */
+	class Cursor {
+		private long position;
+		private final long end;
+
+		// Block the last chunk handed out is a slice of.
+		private Block held;
+
+		// Read by this transfer alone, when the window is full of blocks the slower ones still need.
+		private Block own;
+		private Block ahead;
+
+		private Cursor(long position, long end) {
+			this.position = position;
+			this.end = end;
+		}
+
+		/**
+		 * Starts reading the first blocks, before the transfer asks for them.
+		 */
+		void readAhead() {
+			synchronized (FanOutReader.this) {
+				block(position / BLOCK_SIZE);
+			}
+		}
+
+		/**
+		 * The previous chunk must not be used anymore once this is called.
+		 * Waits for the block if it's still being read, but doesn't read it.
+		 *
+		 * @return A slice of a block, or null if the chunk isn't in one block,
+		 * then it's up to the caller to copy it (see "read()").
+		 */
+		ByteBuffer get(long position, int length) {
+			long index = position / BLOCK_SIZE;
+			int start = (int) (position - index * BLOCK_SIZE);
+			Block block;
+			synchronized (FanOutReader.this) {
+				release();
+				this.position = position;
+				if (start + length > BLOCK_SIZE)
+					return null;
+				block = block(index);
+				if (block == null)
+					return null;
+				block.refs++;
+				held = block;
+			}
+
+			if (!await(block) || start + length > block.data.limit())
+				return null;
+			ByteBuffer chunk = block.data.duplicate();
+			chunk.position(start);
+			chunk.limit(start + length);
+			return chunk.slice();
+		}
+
+		/**
+		 * Copies the file from "position" into "buffer" until it's full or the file ends,
+		 * from the blocks, waiting for them if they're still being read.
+		 */
+		void read(long position, ByteBuffer buffer) {
+			while (buffer.hasRemaining() && position < size) {
+				long index = position / BLOCK_SIZE;
+				Block block;
+				synchronized (FanOutReader.this) {
+					release();
+					this.position = position;
+					block = block(index);
+					if (block == null)
+						break;
+					block.refs++;
+					held = block;
+				}
+
+				if (!await(block))
+					break;
+				ByteBuffer data = block.data.duplicate();
+				data.position((int) (position - index * BLOCK_SIZE));
+				if (!data.hasRemaining())
+					break;
+				if (data.remaining() > buffer.remaining())
+					data.limit(data.position() + buffer.remaining());
+				position += data.remaining();
+				buffer.put(data);
+			}
+		}
+
+		/**
+		 * The block from the shared ones, with the next ones read ahead, or read ahead
+		 * by this transfer alone if the window is full. Holds "FanOutReader.this".
+		 *
+		 * @return Null if it's past the end of the file.
+		 */
+		private Block block(long index) {
+			Block block = FanOutReader.this.block(index);
+			if (block != null) {
+				for (long next = index + 1; next <= index + READ_AHEAD && next * BLOCK_SIZE < end; next++)
+					if (FanOutReader.this.block(next) == null)
+						break;
+				return block;
+			}
+
+			if (own == null || own.index != index) {
+				if (own != null)
+					unref(own);
+				if (ahead != null && ahead.index == index) {
+					own = ahead;
+					ahead = null;
+				} else {
+					own = load(index);
+				}
+			}
+			long next = index + 1;
+			if (own != null && next * BLOCK_SIZE < end && (ahead == null || ahead.index != next)) {
+				if (ahead != null)
+					unref(ahead);
+				ahead = load(next);
+			}
+			return own;
+		}
+
+		private void release() {
+			if (held != null)
+				unref(held);
+			held = null;
+		}
+
+		/**
+		 * Gives the last chunk and the blocks read ahead back, once the transfer ended.
+		 */
+		void close() {
+			synchronized (FanOutReader.this) {
+				release();
+				if (own != null)
+					unref(own);
+				if (ahead != null)
+					unref(ahead);
+				own = ahead = null;
+				cursors.remove(this);
+			}
+		}
+	}
+}
@@ -3,6 +3,8 @@ package controllers;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class Helpers {
 	/**
@@ -77,7 +79,7 @@ public class Helpers {
 	 * @param length      Number of bytes to be read.
 	 * @return
 	 */
-	public static ByteBuffer readData(FileChannel fileChannel, int position, int length) {
+	public static ByteBuffer readData(FileChannel fileChannel, long position, int length) {
 		ByteBuffer byteBuffer = ByteBuffer.allocate(length);
 		try {
 			fileChannel.read(byteBuffer, position);
@@ -87,4 +89,32 @@ public class Helpers {
 		byteBuffer.rewind();
 		return byteBuffer;
 	}
+
+	/**
+	 * Reads the whole file (without moving the channel's position)
+	 * and returns its MD5, used to tell if two copies of a file are identical.
+	 *
+	 * @param fileChannel This is like a pointer that reads
+	 *                    or writes to a file byte by byte.
+	 * @return MD5 of the file, 16 bytes.
+	 */
+	public static byte[] hashFile(FileChannel fileChannel) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		long position = 0;
+		int read;
+		while ((read = fileChannel.read(buffer, position)) > 0) {
+			buffer.flip();
+			digest.update(buffer);
+			buffer.clear();
+			position += read;
+		}
+		return digest.digest();
+	}
 }
@@ -0,0 +1,104 @@
+package controllers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations, in nanoseconds.
+ * <p>
+ * Each power of two is split into 8 buckets, so the percentiles
+ * are at most 12.5% above the actual value.
+ */
+public class Histogram implements HistogramMBean {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets.incrementAndGet(index(nanos));
+		count.increment();
+		sum.add(nanos);
+		max.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * Small values get a bucket each, the others the power of two
+	 * they're in and the next 3 bits after the highest one.
+	 */
+	static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub;
+	}
+
+	/**
+	 * @return The highest value that falls in this bucket.
+	 */
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int exponent = (index >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		int shift = exponent - SUB_BUCKET_BITS;
+		long lower = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	/**
+	 * @param fraction e.g. 0.99
+	 * @return Nanoseconds.
+	 */
+	public long percentile(double fraction) {
+		long total = count.sum();
+		if (total == 0)
+			return 0;
+		long target = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= target)
+				return Math.min(upperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	@Override
+	public long getCount() {
+		return count.sum();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		long total = count.sum();
+		return total == 0 ? 0 : sum.sum() / (double) total / 1e6;
+	}
+
+	@Override
+	public double getP50Millis() {
+		return percentile(0.5) / 1e6;
+	}
+
+	@Override
+	public double getP99Millis() {
+		return percentile(0.99) / 1e6;
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return max.get() / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+				getCount(), getMeanMillis(), getP50Millis(), getP99Millis(), getMaxMillis());
+	}
+}
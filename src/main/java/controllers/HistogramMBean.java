@@ -0,0 +1,16 @@
+package controllers;
+
+/**
+ * JMX view of a "Histogram".
+ */
+public interface HistogramMBean {
+	long getCount();
+
+	double getMeanMillis();
+
+	double getP50Millis();
+
+	double getP99Millis();
+
+	double getMaxMillis();
+}
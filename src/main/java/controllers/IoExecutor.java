@@ -0,0 +1,53 @@
+package controllers;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of threads for disk I/O (writing received data, reading and
+ * deflating blocks to send, read-ahead), so the jReto thread only does networking
+ * and one slow disk doesn't hold back every peer.
+ */
+public class IoExecutor {
+	private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	// True on the threads of the executor.
+	private static final ThreadLocal<Boolean> ioThread = ThreadLocal.withInitial(() -> false);
+
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS,
+			30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), task -> {
+		Thread thread = new Thread(() -> {
+			ioThread.set(true);
+			task.run();
+		}, "io-" + threadCount.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private IoExecutor() {}
+
+	public static void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	public static ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @return True if called from one of the threads, which then shouldn't wait
+	 * for a task queued behind it, all the threads could be waiting.
+	 */
+	public static boolean isIoThread() {
+		return ioThread.get();
+	}
+}
@@ -0,0 +1,116 @@
+package controllers;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes a msg written by "MessageWriter", reading straight
+ * from the received ByteBuffer without copying it.
+ */
+public class MessageReader {
+	private ByteBuffer buffer;
+	private MessageType type;
+
+	/**
+	 * Reads and checks the header.
+	 *
+	 * @param data A whole msg as received.
+	 * @throws IOException If the msg is from another protocol version, of an unknown type or truncated.
+	 */
+	public MessageReader(ByteBuffer data) throws IOException {
+		if (data.remaining() < MessageWriter.HEADER_LENGTH)
+			throw new IOException("Msg too short: " + data.remaining() + " bytes");
+
+		byte version = data.get();
+		if (version != MessageWriter.VERSION)
+			throw new IOException("Unsupported protocol version: " + version);
+
+		byte id = data.get();
+		type = MessageType.fromId(id);
+		if (type == null)
+			throw new IOException("Unknown msg type: " + id);
+
+		int length = data.getInt();
+		if (length < 0 || length > data.remaining())
+			throw new IOException("Truncated msg, expected " + length + " bytes, got " + data.remaining());
+
+		buffer = data.slice();
+		buffer.limit(length);
+	}
+
+	public MessageType getType() {
+		return type;
+	}
+
+	public byte readByte() {
+		return buffer.get();
+	}
+
+	public boolean readBoolean() {
+		return buffer.get() != 0;
+	}
+
+	public int readVarInt() {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7f) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	public long readVarLong() {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	public int readInt() {
+		return buffer.getInt();
+	}
+
+	public byte[] readBytes() {
+		return readRaw(readVarInt());
+	}
+
+	public byte[] readRaw(int length) {
+		checkLength(length);
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	public String readString() {
+		int length = readVarInt();
+		// The array goes on after the msg, don't decode past its end.
+		checkLength(length);
+		String value;
+		if (buffer.hasArray()) {
+			value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + length);
+		} else
+			value = new String(readRaw(length), StandardCharsets.UTF_8);
+		return value;
+	}
+
+	/**
+	 * A length read from the peer, checked before anything is allocated or decoded.
+	 */
+	private void checkLength(int length) {
+		if (length < 0 || length > buffer.remaining())
+			throw new BufferUnderflowException();
+	}
+
+	public boolean hasRemaining() {
+		return buffer.hasRemaining();
+	}
+}
@@ -0,0 +1,69 @@
+package controllers;
+
+/**
+ * The types of the msgs peers exchange, the id is the byte sent on the wire
+ * right after the protocol version (see "MessageWriter").
+ */
+public enum MessageType {
+	// "I am sending you my username", and the features I support (see "PeerConnection")
+	LOGIN(0),
+	// One level of a peer's Merkle tree
+	MERKLE_LISTING(1),
+	// Name, size and hash of a file and where the transfer starts, followed by a (deflated) transfer of a segment of the rest of the file
+	FILE(2),
+	// A peer modified a file
+	DELTA_OFFER(3),
+	// Block signatures of a peer's copy of a file I offered
+	BLOCK_SIGNATURES(4),
+	// Name of a file, size of its delta and where the transfer starts, followed by a (deflated) transfer of a segment of the delta
+	DELTA(5),
+	// A peer asks for one level of my Merkle tree
+	MERKLE_REQUEST(6),
+	// "I have this (big) file", the receiver pulls it in ranges from all the peers that have the same hash
+	FILE_AVAILABLE(7),
+	// A peer asks for a range of a file
+	RANGE_REQUEST(8),
+	// Name and offset of a range, followed by a transfer of the range
+	RANGE(9),
+	// "I already have the beginning of this file", the sender sends the rest
+	RESUME_REQUEST(10),
+	// Name, size and hash of a file whose content the receiver may already have under another path,
+	// it copies it locally or asks for the file with a "RESUME_REQUEST"
+	MATERIALIZE(11),
+	// A peer asks for my changes from this sequence number on (see "storage.ChangeJournal")
+	JOURNAL_REQUEST(12),
+	// A batch of the files changed since the number asked for, with their current version and size
+	JOURNAL_ENTRIES(13),
+	// Name and version of a file (see "storage.Version"), before its content or alone if it was deleted
+	VERSION(14),
+	// Peers the receiver relays these files to once it has them (see "storage.FileManager")
+	RELAY(15),
+	// Names and hashes of files, the receiver answers with a "HAVE" of the ones it has the content of
+	HAVE_REQUEST(16),
+	// Names and sizes of the files asked for that I have the content of (see "storage.ContentCache")
+	HAVE(17);
+
+	private static final MessageType[] byId = new MessageType[128];
+
+	static {
+		for (MessageType type : values())
+			byId[type.id] = type;
+	}
+
+	private final byte id;
+
+	MessageType(int id) {
+		this.id = (byte) id;
+	}
+
+	public byte getId() {
+		return id;
+	}
+
+	/**
+	 * @return The type with this id, or null if it's unknown (e.g. sent by a newer version).
+	 */
+	public static MessageType fromId(byte id) {
+		return id >= 0 ? byId[id] : null;
+	}
+}
@@ -0,0 +1,169 @@
+package controllers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes a msg directly into a ByteBuffer.
+ * <p>
+ * Header (6 bytes): protocol version, msg type, payload length (int).
+ * Payload fields are varints (7 bits per byte, least significant first),
+ * strings are their UTF-8 length as a varint followed by the UTF-8 bytes.
+ * The buffer only gets copied if it needs to grow.
+ */
+public class MessageWriter {
+	// 2: "FILE" holds the size, offset and hash of the file.
+	// 3: "DELTA" holds the size of the delta and where the transfer starts.
+	// 4: "LOGIN" holds the features of the peer, "FILE" and "DELTA" say if the transfer is deflated.
+	// 5: "MATERIALIZE".
+	// 6: "LOGIN" holds the id of the peer's journal, "JOURNAL_REQUEST" and "JOURNAL_ENTRIES".
+	// 7: "VERSION", "MERKLE_LISTING" and "JOURNAL_ENTRIES" hold the versions of the files.
+	// 8: "RELAY".
+	// 9: "LOGIN" says if the peer only keeps some files, "HAVE_REQUEST" and "HAVE".
+	// 10: "FILE_AVAILABLE" holds the hash of the file.
+	public static final byte VERSION = 10;
+	public static final int HEADER_LENGTH = 6;
+
+	private ByteBuffer buffer;
+
+	public MessageWriter(MessageType type) {
+		this(type, 64);
+	}
+
+	/**
+	 * @param type         Type of the msg.
+	 * @param expectedSize Expected payload size, to avoid growing the buffer.
+	 */
+	public MessageWriter(MessageType type, int expectedSize) {
+		buffer = ByteBuffer.allocate(HEADER_LENGTH + expectedSize);
+		buffer.put(VERSION);
+		buffer.put(type.getId());
+		buffer.putInt(0);
+	}
+
+	public MessageWriter writeByte(byte value) {
+		ensure(1);
+		buffer.put(value);
+		return this;
+	}
+
+	public MessageWriter writeBoolean(boolean value) {
+		return writeByte(value ? (byte) 1 : (byte) 0);
+	}
+
+	public MessageWriter writeVarInt(int value) {
+		ensure(5);
+		while ((value & ~0x7f) != 0) {
+			buffer.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+		return this;
+	}
+
+	public MessageWriter writeVarLong(long value) {
+		ensure(10);
+		while ((value & ~0x7fL) != 0) {
+			buffer.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+		return this;
+	}
+
+	/**
+	 * Writes a fixed length int (e.g. checksums, where a varint would be longer).
+	 */
+	public MessageWriter writeInt(int value) {
+		ensure(4);
+		buffer.putInt(value);
+		return this;
+	}
+
+	/**
+	 * Writes the bytes, prefixed with their length.
+	 */
+	public MessageWriter writeBytes(byte[] bytes) {
+		writeVarInt(bytes.length);
+		return writeRaw(bytes);
+	}
+
+	/**
+	 * Writes the bytes without their length, for fixed size fields (e.g. a digest).
+	 */
+	public MessageWriter writeRaw(byte[] bytes) {
+		ensure(bytes.length);
+		buffer.put(bytes);
+		return this;
+	}
+
+	/**
+	 * Encodes the string as UTF-8 straight into the buffer.
+	 */
+	public MessageWriter writeString(String value) {
+		int length = value.length();
+		int utf8Length = 0;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80 || Character.isSurrogate(c) && !isPair(value, i))
+				utf8Length++;
+			else if (c < 0x800)
+				utf8Length += 2;
+			else if (Character.isSurrogate(c)) {
+				utf8Length += 4;
+				i++;
+			} else
+				utf8Length += 3;
+		}
+
+		writeVarInt(utf8Length);
+		ensure(utf8Length);
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80)
+				buffer.put((byte) c);
+			else if (Character.isSurrogate(c) && !isPair(value, i))
+				// Unpaired surrogates are replaced, like String.getBytes() does.
+				buffer.put((byte) '?');
+			else if (c < 0x800) {
+				buffer.put((byte) (0xc0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isSurrogate(c)) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buffer.put((byte) (0xf0 | (codePoint >> 18)));
+				buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+				buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+				buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+			} else {
+				buffer.put((byte) (0xe0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+		return this;
+	}
+
+	private static boolean isPair(String value, int i) {
+		return Character.isHighSurrogate(value.charAt(i)) && i + 1 < value.length()
+				&& Character.isLowSurrogate(value.charAt(i + 1));
+	}
+
+	/**
+	 * Fills in the payload length.
+	 *
+	 * @return The encoded msg, ready to be sent.
+	 */
+	public ByteBuffer finish() {
+		buffer.putInt(2, buffer.position() - HEADER_LENGTH);
+		buffer.flip();
+		return buffer;
+	}
+
+	private void ensure(int bytes) {
+		if (buffer.remaining() >= bytes)
+			return;
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+		buffer.flip();
+		bigger.put(buffer);
+		buffer = bigger;
+	}
+}
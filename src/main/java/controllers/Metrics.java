@@ -0,0 +1,272 @@
+package controllers;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latencies of the node, registered as MBeans under "drds:*"
+ * (e.g. open jconsole) and printed every "drds.metrics.dump" seconds (60 by default, 0 to turn it off).
+ * <p>
+ * drds:type=Node          totals
+ * drds:type=Peer,name=... traffic, transfers and queues of each peer
+ * drds:type=Latency,...   chunk reads/writes, commits of received files, sync rounds, checkouts,
+ *                         watcher lag (first event to handled) and convergence
+ *                         (first heard of a new version to having it)
+ */
+public class Metrics implements MetricsMBean {
+	private static final Metrics instance = new Metrics();
+
+	private static final long SAMPLE_SECONDS = 5;
+	private static final long DUMP_SECONDS = Long.getLong("drds.metrics.dump", 60);
+
+	private final Histogram chunkRead = new Histogram();
+	private final Histogram chunkWrite = new Histogram();
+	private final Histogram commit = new Histogram();
+	private final Histogram syncRound = new Histogram();
+	private final Histogram checkout = new Histogram();
+	private final Histogram watcherLag = new Histogram();
+	private final Histogram convergence = new Histogram();
+
+	// Read from the files being sent, the same file sent to many peers is only read once (see "FanOutReader").
+	private final AtomicLong bytesRead = new AtomicLong();
+
+	private final Map<UUID, PeerMetrics> peers = new ConcurrentHashMap<>();
+
+	// Sent to the peers that were removed since, so the total doesn't drop when one leaves.
+	private final AtomicLong removedBytesSent = new AtomicLong();
+
+	private volatile IntSupplier watcherQueue = () -> 0;
+
+	private ScheduledExecutorService executor;
+	private long lastSample = System.nanoTime();
+
+	private Metrics() {}
+
+	public static Metrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Registers the MBeans and starts sampling the rates (and printing them).
+	 */
+	public synchronized void start() {
+		if (executor != null)
+			return;
+
+		register("drds:type=Node", this);
+		register("drds:type=Latency,name=chunkRead", chunkRead);
+		register("drds:type=Latency,name=chunkWrite", chunkWrite);
+		register("drds:type=Latency,name=commit", commit);
+		register("drds:type=Latency,name=syncRound", syncRound);
+		register("drds:type=Latency,name=checkout", checkout);
+		register("drds:type=Latency,name=watcherLag", watcherLag);
+		register("drds:type=Latency,name=convergence", convergence);
+
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "metrics");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleAtFixedRate(this::sample, SAMPLE_SECONDS, SAMPLE_SECONDS, TimeUnit.SECONDS);
+		if (DUMP_SECONDS > 0)
+			executor.scheduleAtFixedRate(() -> System.out.print(dump()), DUMP_SECONDS, DUMP_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return The metrics of this peer, registered the first time,
+	 * bound to "connection" (a new one each time the peer reconnects).
+	 */
+	PeerMetrics peer(UUID peerUUID, PeerConnection connection) {
+		return peers.compute(peerUUID, (uuid, metrics) -> {
+			if (metrics != null) {
+				metrics.bind(connection);
+				return metrics;
+			}
+			metrics = new PeerMetrics(connection);
+			metrics.setRegistered(register(peerName(uuid), metrics));
+			return metrics;
+		});
+	}
+
+	/**
+	 * The peer left or I logged out, its metrics are forgotten and its MBean unregistered.
+	 */
+	void removePeer(UUID peerUUID) {
+		PeerMetrics metrics = peers.remove(peerUUID);
+		if (metrics == null)
+			return;
+		removedBytesSent.addAndGet(metrics.getBytesSent());
+		if (metrics.isRegistered())
+			unregister(peerName(peerUUID));
+	}
+
+	private static String peerName(UUID peerUUID) {
+		return "drds:type=Peer,name=" + peerUUID;
+	}
+
+	/**
+	 * @return False if it's already registered, e.g. by another node in the same JVM (see "Simulation").
+	 */
+	private static boolean register(String name, Object mbean) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			if (server.isRegistered(objectName))
+				return false;
+			server.registerMBean(mbean, objectName);
+			return true;
+		} catch (InstanceAlreadyExistsException e) {
+			return false;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private static void unregister(String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+		} catch (InstanceNotFoundException ignored) {
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private synchronized void sample() {
+		long now = System.nanoTime();
+		double seconds = (now - lastSample) / 1e9;
+		lastSample = now;
+		for (PeerMetrics metrics : peers.values())
+			metrics.sample(seconds);
+	}
+
+	@Override
+	public String dump() {
+		StringBuilder text = new StringBuilder("---- metrics ----\n");
+		text.append(String.format("peers=%d sent=%s/s received=%s/s read=%s in-flight=%d queued=%d watcher-queue=%d%n",
+				getPeerCount(), bytes(getBytesSentPerSecond()), bytes(getBytesReceivedPerSecond()),
+				bytes(getBytesRead()), getInFlightTransfers(), getQueueDepth(), getWatcherQueueDepth()));
+		peers.forEach((uuid, peer) -> text.append(String.format(
+				"  peer %s: sent=%s/s received=%s/s in-flight=%d queued=%d writes-queued=%s%n",
+				uuid, bytes(peer.getBytesSentPerSecond()), bytes(peer.getBytesReceivedPerSecond()),
+				peer.getInFlightTransfers(), peer.getQueueDepth(), bytes(peer.getQueuedWriteBytes()))));
+		text.append("  chunk read:  ").append(chunkRead).append('\n');
+		text.append("  chunk write: ").append(chunkWrite).append('\n');
+		text.append("  commit:      ").append(commit).append('\n');
+		text.append("  sync round:  ").append(syncRound).append('\n');
+		text.append("  checkout:    ").append(checkout).append('\n');
+		text.append("  watcher lag: ").append(watcherLag).append('\n');
+		text.append("  convergence: ").append(convergence).append('\n');
+		return text.toString();
+	}
+
+	private static String bytes(double bytes) {
+		if (bytes < 1024)
+			return String.format("%.0fB", bytes);
+		if (bytes < 1024 * 1024)
+			return String.format("%.1fKB", bytes / 1024);
+		return String.format("%.1fMB", bytes / (1024 * 1024));
+	}
+
+	@Override
+	public int getPeerCount() {
+		return peers.size();
+	}
+
+	@Override
+	public double getBytesSentPerSecond() {
+		double total = 0;
+		for (PeerMetrics peer : peers.values())
+			total += peer.getBytesSentPerSecond();
+		return total;
+	}
+
+	@Override
+	public double getBytesReceivedPerSecond() {
+		double total = 0;
+		for (PeerMetrics peer : peers.values())
+			total += peer.getBytesReceivedPerSecond();
+		return total;
+	}
+
+	@Override
+	public long getBytesSent() {
+		long total = removedBytesSent.get();
+		for (PeerMetrics peer : peers.values())
+			total += peer.getBytesSent();
+		return total;
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public void addBytesRead(long bytes) {
+		bytesRead.addAndGet(bytes);
+	}
+
+	@Override
+	public int getInFlightTransfers() {
+		int total = 0;
+		for (PeerMetrics peer : peers.values())
+			total += peer.getInFlightTransfers();
+		return total;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		int total = 0;
+		for (PeerMetrics peer : peers.values())
+			total += peer.getQueueDepth();
+		return total;
+	}
+
+	@Override
+	public int getWatcherQueueDepth() {
+		return watcherQueue.getAsInt();
+	}
+
+	public void setWatcherQueue(IntSupplier watcherQueue) {
+		this.watcherQueue = watcherQueue;
+	}
+
+	public Histogram getChunkRead() {
+		return chunkRead;
+	}
+
+	public Histogram getChunkWrite() {
+		return chunkWrite;
+	}
+
+	public Histogram getCommit() {
+		return commit;
+	}
+
+	public Histogram getSyncRound() {
+		return syncRound;
+	}
+
+	public Histogram getCheckout() {
+		return checkout;
+	}
+
+	public Histogram getWatcherLag() {
+		return watcherLag;
+	}
+
+	public Histogram getConvergence() {
+		return convergence;
+	}
+}
@@ -0,0 +1,34 @@
+package controllers;
+
+/**
+ * JMX view of the totals over all the peers, the details are in
+ * the "Peer" and "Latency" MBeans (see "Metrics").
+ */
+public interface MetricsMBean {
+	int getPeerCount();
+
+	double getBytesSentPerSecond();
+
+	double getBytesReceivedPerSecond();
+
+	/**
+	 * @return Total bytes of files sent to all the peers.
+	 */
+	long getBytesSent();
+
+	/**
+	 * @return Total bytes read from the files being sent.
+	 */
+	long getBytesRead();
+
+	int getInFlightTransfers();
+
+	int getQueueDepth();
+
+	int getWatcherQueueDepth();
+
+	/**
+	 * @return The same text that is printed periodically.
+	 */
+	String dump();
+}
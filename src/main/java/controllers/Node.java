@@ -3,40 +3,60 @@ package controllers;
 import de.tum.in.www1.jReto.Connection;
 import de.tum.in.www1.jReto.LocalPeer;
 import de.tum.in.www1.jReto.RemotePeer;
+import de.tum.in.www1.jReto.module.api.Module;
 import de.tum.in.www1.jReto.module.wlan.WlanModule;
-import forms.MainForm;
+import storage.ContentCache;
 import storage.FileManager;
+import transport.LoopbackModule;
+import transport.LoopbackNetwork;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class Node {
 	private static Node ourInstance = new Node();
 	public FileManager fileManager;
-	private WlanModule wlanModule;
+	// The LAN, or an in-process network with -Ddrds.transport=loopback (see "transport.LoopbackNetwork")
+	private static final String TRANSPORT = System.getProperty("drds.transport", "wlan");
+	private Module module;
 
 	private LocalPeer localPeer;
 
+	// jReto isn't thread safe, everything it calls back runs here.
+	// Kept across logins, what's still queued for the old connections runs after a logout.
+	private ExecutorService executor;
+
 	// Maps the unique identifier of each peer to its connection;
-	private HashMap<UUID, PeerConnection> connections = new HashMap<>();
+	private final Map<UUID, PeerConnection> connections = new ConcurrentHashMap<>();
 
 	// Maps the unique identifier of each peer to its username
-	private HashMap<UUID, String> nodesUsernames = new HashMap<>();
+	private final Map<UUID, String> nodesUsernames = new ConcurrentHashMap<>();
 
-	// Maps each username to its corresponding online remote peers
-	private HashMap<String, ArrayList<RemotePeer>> remotePeers = new HashMap<>();
+	// Maps each username to its corresponding online remote peers,
+	// the lists are never modified but replaced, so they can be iterated while peers come and go.
+	private final Map<String, List<RemotePeer>> remotePeers = new ConcurrentHashMap<>();
 	// Username of the user currently logged in
 	private String username = "guest username";
-	private MainForm nodeFormWindow;
 	// A "function" that's is invoked to update GUI
 	private Callable<Void> updateUserList;
 
+	// Name of the network the peers are discovered on
+	private String networkName = "myNet";
+
+	private final TransferListeners transferListeners = new TransferListeners();
+
 	private Node() {}
 
 	public static Node getInstance() {
@@ -46,15 +66,18 @@ public class Node {
 	public void login(String username) {
 		this.username = username;
 
+		Metrics.getInstance().start();
 		fileManager = FileManager.getInstance();
 
 		try {
-			wlanModule = new WlanModule("myNet");
+			module = createModule();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
-		localPeer = new LocalPeer(Collections.singletonList(wlanModule), Executors.newSingleThreadExecutor());
+		if (executor == null)
+			executor = Executors.newSingleThreadExecutor();
+		localPeer = new LocalPeer(Collections.singletonList(module), executor);
 		localPeer.start(
 				this::onPeerDiscovered,
 				this::onPeerRemoved,
@@ -62,6 +85,36 @@ public class Node {
 		);
 	}
 
+	/**
+	 * Runs a task on jReto's thread, its connections must only be used from there.
+	 */
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	private Module createModule() throws IOException {
+		if (TRANSPORT.equals("loopback"))
+			return new LoopbackModule(LoopbackNetwork.getInstance());
+		return new WlanModule(networkName);
+	}
+
+	/**
+	 * Stops discovering and accepting peers, the connections are closed
+	 * and forgotten, the peers get new ones if I log in again.
+	 */
+	public void logout() {
+		if (localPeer == null)
+			return;
+		executor.execute(() -> {
+			localPeer.stop();
+			connections.keySet().forEach(Metrics.getInstance()::removePeer);
+			connections.clear();
+			nodesUsernames.clear();
+			remotePeers.clear();
+			updateUserList();
+		});
+	}
+
 	/**
 	 * When a peer is discovered, create a new "peerConnection"
 	 * with it, then send it your username.
@@ -72,10 +125,7 @@ public class Node {
 		System.out.println("Discovered peer: " + discoveredPeer);
 		UUID peerUUID = discoveredPeer.getUniqueIdentifier();
 
-		if (!connections.containsKey(peerUUID))
-			connections.put(peerUUID, new PeerConnection(discoveredPeer, nodeFormWindow));
-
-		connections.get(peerUUID).connect();
+		connections.computeIfAbsent(peerUUID, uuid -> new PeerConnection(discoveredPeer)).connect();
 
 		sendMyUsername(discoveredPeer);
 	}
@@ -89,12 +139,10 @@ public class Node {
 		System.out.println("Removed peer: " + removedPeer);
 
 		removeNodeUsername(removedPeer);
+		fileManager.peerRemoved(removedPeer.getUniqueIdentifier());
+		Metrics.getInstance().removePeer(removedPeer.getUniqueIdentifier());
 
-		try {
-			updateUserList.call();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		updateUserList();
 	}
 
 	/**
@@ -108,10 +156,8 @@ public class Node {
 		UUID peerUUID = peer.getUniqueIdentifier();
 		System.out.println("Received incoming connection: " + incomingConnection + " from peer: " + peerUUID);
 
-		if (!connections.containsKey(peerUUID))
-			connections.put(peerUUID, new PeerConnection(peer, nodeFormWindow));
-
-		connections.get(peerUUID).setIncomingConnection(incomingConnection);
+		connections.computeIfAbsent(peerUUID, uuid -> new PeerConnection(peer))
+				.setIncomingConnection(incomingConnection);
 	}
 
 	/**
@@ -119,47 +165,90 @@ public class Node {
 	 * sent through outTransfer.
 	 *
 	 * @param peer The peer to send the data to
-	 * @param data The data in the form of byte array
+	 * @param data An encoded msg (see "MessageWriter")
 	 */
-	private void sendData(RemotePeer peer, byte[] data) {
-		PeerConnection connection = connections.get(peer.getUniqueIdentifier());
-		connection.sendData(data);
+	private void sendData(RemotePeer peer, ByteBuffer data) {
+		sendToPeer(peer.getUniqueIdentifier(), data);
 	}
 
-	public void setNodeUsername(RemotePeer peer, byte[] usernameBytes) {
-		String nodeUsername = (String) controllers.Helpers.deserialize(usernameBytes);
+	/**
+	 * Sends a msg to a single peer.
+	 *
+	 * @param peerUUID UUID of the peer to send the data to
+	 * @param msg      An encoded msg (see "MessageWriter")
+	 */
+	public void sendToPeer(UUID peerUUID, ByteBuffer msg) {
+		PeerConnection connection = connections.get(peerUUID);
+		if (connection == null)
+			return;
+		connection.sendData(msg);
+	}
 
-		if (!remotePeers.containsKey(nodeUsername))
-			remotePeers.put(nodeUsername, new ArrayList<>());
-		remotePeers.get(nodeUsername).add(peer);
+	public void setNodeUsername(RemotePeer peer, MessageReader msg) {
+		String nodeUsername = msg.readString();
+		UUID peerUUID = peer.getUniqueIdentifier();
 
-		nodesUsernames.put(peer.getUniqueIdentifier(), nodeUsername);
+		// Logged in again under another name.
+		String previous = nodesUsernames.put(peerUUID, nodeUsername);
+		if (previous != null && !previous.equals(nodeUsername))
+			removeFromUser(previous, peerUUID);
 
-		try {
-			updateUserList.call();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		remotePeers.compute(nodeUsername, (user, peers) -> {
+			List<RemotePeer> updated = new ArrayList<>();
+			if (peers != null)
+				for (RemotePeer p : peers)
+					if (!p.getUniqueIdentifier().equals(peerUUID))
+						updated.add(p);
+			updated.add(peer);
+			return Collections.unmodifiableList(updated);
+		});
+
+		updateUserList();
 
 		System.out.println("User logged in: " + nodeUsername + ", " + peer.getUniqueIdentifier());
 	}
 
 	private void removeNodeUsername(RemotePeer peer) {
-		String nodeUsername = nodesUsernames.get(peer.getUniqueIdentifier());
-		remotePeers.get(nodeUsername).remove(peer);
-
-		if (remotePeers.get(nodeUsername).isEmpty())
-			remotePeers.remove(nodeUsername);
+		// Null if it went away before it sent its username.
+		String nodeUsername = nodesUsernames.remove(peer.getUniqueIdentifier());
+		if (nodeUsername != null)
+			removeFromUser(nodeUsername, peer.getUniqueIdentifier());
+	}
 
-		nodesUsernames.remove(peer.getUniqueIdentifier());
+	/**
+	 * Replaces the user's list of peers with one without this peer,
+	 * or removes the user if it was its last one.
+	 */
+	private void removeFromUser(String nodeUsername, UUID peerUUID) {
+		remotePeers.computeIfPresent(nodeUsername, (user, peers) -> {
+			List<RemotePeer> updated = new ArrayList<>();
+			for (RemotePeer p : peers)
+				if (!p.getUniqueIdentifier().equals(peerUUID))
+					updated.add(p);
+			return updated.isEmpty() ? null : Collections.unmodifiableList(updated);
+		});
 	}
 
 	private void sendMyUsername(RemotePeer peer) {
-		byte[] bytes = {0};
-		bytes = controllers.Helpers.concatenate(bytes,
-				controllers.Helpers.serialize(username));
+		ByteBuffer msg = new MessageWriter(MessageType.LOGIN)
+				.writeString(username)
+				.writeVarInt((BlockCompressor.isEnabled() ? PeerConnection.FEATURE_DEFLATE : 0)
+						| (ContentCache.isEnabled() ? PeerConnection.FEATURE_SELECTIVE : 0))
+				.writeString(fileManager.getJournalId().toString())
+				.finish();
+
+		sendData(peer, msg);
+	}
 
-		sendData(peer, bytes);
+	// Nothing to update when running headless.
+	private void updateUserList() {
+		if (updateUserList == null)
+			return;
+		try {
+			updateUserList.call();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
 	}
 
 	public void setUpdateUserList(Callable<Void> updateUserList) {
@@ -170,11 +259,7 @@ public class Node {
 	 * @return Returns array of all online usernames.
 	 */
 	public String[] getUsernames() {
-		String[] users = new String[remotePeers.size()];
-		int i = 0;
-		for (String user : remotePeers.keySet())
-			users[i++] = user;
-		return users;
+		return remotePeers.keySet().toArray(new String[0]);
 	}
 
 	public String getUsername() {
@@ -193,46 +278,116 @@ public class Node {
 		fileManager.checkout();
 	}
 
+	/**
+	 * Gets the content of a file, fetched from the peers if it's only a placeholder (see "ContentCache").
+	 *
+	 * @param path Path of the file, relative to the root directory.
+	 */
+	public CompletableFuture<Path> openFile(String path) {
+		return fileManager.open(path);
+	}
+
 	/**
 	 * Broadcasts a msg to all peers with this username
 	 *
 	 * @param username to send the data to
-	 * @param msgType
-	 * @param data
+	 * @param msg      An encoded msg (see "MessageWriter")
 	 */
-	public void broadcastToUser(String username, byte msgType, byte[] data) {
-		if (!remotePeers.containsKey(username))
-			return;
-		data = Helpers.concatenate(new byte[]{msgType}, data);
-		for (RemotePeer peer : remotePeers.get(username)) {
-			sendData(peer, data);
+	public void broadcastToUser(String username, ByteBuffer msg) {
+		for (RemotePeer peer : getPeers(username)) {
+			sendData(peer, msg.duplicate());
 		}
 	}
 
 	/**
 	 * This function is basically a bridge from the file manager to "PeerConnnection",
-	 * it gets the "peerConnection" corresponding to this UIID and sends it the rest
-	 * of the parameters.
+	 * it gets the "peerConnection" corresponding to this UIID and queues the file
+	 * in its "TransferScheduler".
 	 *
-	 * @param peerUUID    UUID of the peer receiving the file.
-	 * @param fileChannel This is like a pointer that reads/writes a file by byte.
-	 * @param filename    To be sent before the actual file.
-	 * @param fileSize
+	 * @param peerUUID UUID of the peer receiving the file.
+	 * @param filename To be sent before the actual file.
+	 * @param path     The actual path of the file.
+	 * @param offset   Where the transfer starts, 0 unless the peer is resuming it.
 	 */
-	public void sendFile(UUID peerUUID, FileChannel fileChannel, String filename, int fileSize) {
+	public void sendFile(UUID peerUUID, String filename, Path path, long offset) {
 		PeerConnection connection = connections.get(peerUUID);
-		connection.sendFile(fileChannel, filename, fileSize);
+		if (connection == null)
+			return;
+		connection.enqueueFile(filename, path, offset);
 	}
 
-	public HashMap<String, ArrayList<RemotePeer>> getRemotePeers() {
-		return remotePeers;
+	/**
+	 * Bridge to "PeerConnection.sendRange()".
+	 *
+	 * @param peerUUID    UUID of the peer that asked for the range.
+	 * @param fileChannel Channel of the whole file.
+	 * @param filename    The path of the file relative to the root directory.
+	 * @param offset      Start of the range.
+	 * @param length      Length of the range.
+	 */
+	public void sendRange(UUID peerUUID, FileChannel fileChannel, String filename, long offset, int length) {
+		PeerConnection connection = connections.get(peerUUID);
+		if (connection == null)
+			return;
+		connection.sendRange(fileChannel, filename, offset, length);
 	}
 
-	public MainForm getNodeFormWindow() {
-		return nodeFormWindow;
+	/**
+	 * @param peerUUID UUID of the peer.
+	 * @return Number of files waiting to be sent to this peer.
+	 */
+	public int getQueueDepth(UUID peerUUID) {
+		PeerConnection connection = connections.get(peerUUID);
+		return connection == null ? 0 : connection.getScheduler().getQueueDepth();
 	}
 
-	public void setNodeFormWindow(MainForm nodeFormWindow) {
-		this.nodeFormWindow = nodeFormWindow;
+	/**
+	 * Same as "sendFile()" but sends a delta of the file (see "storage.Delta"),
+	 * the delta file is deleted once it's sent.
+	 *
+	 * @param peerUUID    UUID of the peer receiving the delta.
+	 * @param fileChannel Channel of the delta file.
+	 * @param filename    The file the delta applies to.
+	 * @param deltaSize
+	 * @param deltaFile   Path of the delta file.
+	 */
+	public void sendDelta(UUID peerUUID, FileChannel fileChannel, String filename, long deltaSize, Path deltaFile) {
+		PeerConnection connection = connections.get(peerUUID);
+		if (connection == null)
+			return;
+		connection.sendDelta(fileChannel, filename, deltaSize, deltaFile);
+	}
+
+	/**
+	 * @return A snapshot of the online peers of this user, doesn't change while it's iterated.
+	 */
+	public List<RemotePeer> getPeers(String username) {
+		return remotePeers.getOrDefault(username, Collections.emptyList());
+	}
+
+	public void addTransferListener(TransferListener listener) {
+		transferListeners.add(listener);
+	}
+
+	public void removeTransferListener(TransferListener listener) {
+		transferListeners.remove(listener);
+	}
+
+	/**
+	 * @return Passes the events on to all the registered listeners.
+	 */
+	TransferListener getTransferListener() {
+		return transferListeners;
+	}
+
+	public String getNetworkName() {
+		return networkName;
+	}
+
+	/**
+	 * Has to be set before "login()".
+	 */
+	public void setNetworkName(String networkName) {
+		this.networkName = networkName;
 	}
 }
@@ -4,134 +4,326 @@ import de.tum.in.www1.jReto.Connection;
 import de.tum.in.www1.jReto.RemotePeer;
 import de.tum.in.www1.jReto.connectivity.InTransfer;
 import de.tum.in.www1.jReto.connectivity.OutTransfer;
-import forms.MainForm;
 import storage.FileManager;
+import storage.PartialFile;
+import storage.SwarmDownload;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.file.OpenOption;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * Maintains a two-way connection between the local peer and a remote one.
  */
 public class PeerConnection {
+	// Chunk buffers shared by all the outgoing transfers.
+	private static final BufferPool chunkPool = new BufferPool(64, 1 << 20);
+
+	// Max number of files being sent to a peer at a time.
+	private static final int TRANSFER_WINDOW = 4;
+
+	// Bits of the features a peer sends with its username.
+	// The peer can inflate transfers (see "BlockCompressor").
+	static final int FEATURE_DEFLATE = 1;
+	// The peer only keeps the content of some files, it's only told about the others (see "storage.ContentCache").
+	static final int FEATURE_SELECTIVE = 2;
+
+	// jReto transfer lengths are ints, bigger files (and deltas) are sent in segments of this size.
+	private static final int MAX_SEGMENT = 1 << 30;
+
 	private Node node = Node.getInstance();
 	private FileManager fileManager = node.fileManager;
 	private RemotePeer remotePeer;
 	private Connection incomingConnection;
 	private Connection outGoingConnection;
 
-	//this is clean ? dunno am not much of a desktop developer.
-	private MainForm window;
+	// Files waiting to be sent to this peer.
+	private TransferScheduler scheduler = new TransferScheduler(this, TRANSFER_WINDOW,
+			TransferScheduler.SMALL_AND_RECENT_FIRST);
+
+	// Deltas whose next segment didn't arrive yet, by filename.
+	private final Map<String, Path> incomingDeltas = new HashMap<>();
+
+	// Max number of received bytes waiting to be written to disk.
+	private static final int MAX_QUEUED_WRITES = 16 << 20;
+
+	// Writes of the transfers received on this connection, in order (see "WriteQueue").
+	private final WriteQueue writes = new WriteQueue(MAX_QUEUED_WRITES);
+
+	// Transfers stopped because their writes were too far behind, resumed once they're written.
+	private final Set<InTransfer> throttled = ConcurrentHashMap.newKeySet();
+
+	// Registered again if the peer is discovered again after it was removed.
+	private volatile PeerMetrics metrics;
+
+	// Set once the peer said it can inflate transfers.
+	private volatile boolean deflate = false;
 
+	// Progress of the transfers, shown by the window if there's one (see "TransferListener").
+	private final TransferListener listener = node.getTransferListener();
 
-	public PeerConnection(RemotePeer remotePeer, MainForm window) {
+	public PeerConnection(RemotePeer remotePeer) {
 		this.remotePeer = remotePeer;
-		this.window = window;
+		this.metrics = Metrics.getInstance().peer(remotePeer.getUniqueIdentifier(), this);
 	}
 
 	public void connect() {
+		metrics = Metrics.getInstance().peer(remotePeer.getUniqueIdentifier(), this);
 		outGoingConnection = remotePeer.connect();
 		outGoingConnection.setOnClose(c -> System.out.println("Connection closed."));
 	}
 
 	/**
-	 * The data will mainly be an array of bytes.
-	 * The first byte is the type of the data sent,
-	 * currently 0 means login, i.e "I am sending you my username"
-	 * the rest of the array is the data itself, serialized into bytes
-	 * <p>
-	 * msg types: TODO: Convert to enum
-	 * 1 -> Login
-	 * 2 -> Receive files list
-	 * 3 -> Receive file name
+	 * The data is a msg encoded by "MessageWriter",
+	 * its header tells the type of the msg (see "MessageType"),
+	 * e.g LOGIN, i.e "I am sending you my username",
+	 * the rest is the msg itself, decoded by "MessageReader".
 	 *
 	 * @param data Received data.
 	 */
 	private void acceptData(ByteBuffer data) {
-		byte[] bytes = data.array();
-		byte msgType = bytes[0];
-		bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+		MessageReader msg;
+		try {
+			msg = new MessageReader(data);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
 
-		switch (msgType) {
-			// Login
-			case 0:
-				node.setNodeUsername(remotePeer, bytes);
+		switch (msg.getType()) {
+			case LOGIN:
+				node.setNodeUsername(remotePeer, msg);
+				int features = msg.readVarInt();
+				deflate = BlockCompressor.isEnabled() && (features & FEATURE_DEFLATE) != 0;
+				fileManager.setPeerJournal(remotePeer.getUniqueIdentifier(), UUID.fromString(msg.readString()));
+				fileManager.setPeerSelective(remotePeer.getUniqueIdentifier(), (features & FEATURE_SELECTIVE) != 0);
 				break;
 
-			// Receive files list
-			case 1:
-				fileManager.receiveFileList(remotePeer.getUniqueIdentifier(), bytes);
+			// Receive one level of the Merkle tree
+			case MERKLE_LISTING:
+				fileManager.receiveFileList(remotePeer.getUniqueIdentifier(), msg);
 				break;
 
 			// Receive file name
-			case 2:
-				String filename = new String(bytes);
+			case FILE:
+				String filename = msg.readString();
+				long fileSize = msg.readVarLong();
+				long fileOffset = msg.readVarLong();
+				byte[] digest = msg.readBytes();
+				int fileDeflated = msg.readVarInt();
 
 				//CHECK IF ALREADY RECEIVED BY ANOTHER PEER
-				if(fileManager.getFileList().contains(filename))
+				//The transfer still follows, drop it instead of taking it for a msg.
+				if(fileManager.getFileList().contains(filename)) {
+					skipTransfer();
 					break;
+				}
+
+				incomingConnection.setOnTransfer((c, t) -> {
+					receiveFile(t, filename, fileSize, fileOffset, digest, fileDeflated);
+					incomingConnection.setOnTransfer(null);
+				});
+				break;
+
+			case DELTA_OFFER:
+				fileManager.receiveDeltaOffer(remotePeer.getUniqueIdentifier(), msg);
+				break;
+
+			case BLOCK_SIGNATURES:
+				fileManager.receiveSignatures(remotePeer.getUniqueIdentifier(), msg);
+				break;
+
+			// Receive delta, the transfer that follows is the delta itself
+			case DELTA:
+				String deltaFilename = msg.readString();
+				long deltaSize = msg.readVarLong();
+				long deltaOffset = msg.readVarLong();
+				int deltaDeflated = msg.readVarInt();
+				incomingConnection.setOnTransfer((c, t) -> {
+					receiveDelta(t, deltaFilename, deltaSize, deltaOffset, deltaDeflated);
+					incomingConnection.setOnTransfer(null);
+				});
+				break;
+
+			// Request for one level of the Merkle tree
+			case MERKLE_REQUEST:
+				fileManager.receiveFileListRequest(remotePeer.getUniqueIdentifier(), msg);
+				break;
+
+			case FILE_AVAILABLE:
+				fileManager.receiveFileAvailable(remotePeer.getUniqueIdentifier(), msg);
+				break;
 
-				//Add files received via network to this list (so it won't be re-broadcast-ed by the watcher).
-				fileManager.getReceivedFiles().add(filename);
+			case RANGE_REQUEST:
+				fileManager.receiveRangeRequest(remotePeer.getUniqueIdentifier(), msg);
+				break;
 
+			// Receive a range of a file, the transfer that follows is the range itself
+			case RANGE:
+				String rangeFilename = msg.readString();
+				long offset = msg.readVarLong();
 				incomingConnection.setOnTransfer((c, t) -> {
-					receiveFile(t, filename);
-					t.setOnEnd((tt) -> incomingConnection.setOnTransfer(null));
+					receiveRange(t, rangeFilename, offset);
+					incomingConnection.setOnTransfer(null);
 				});
+				break;
+
+			case RESUME_REQUEST:
+				fileManager.receiveResumeRequest(remotePeer.getUniqueIdentifier(), msg);
+				break;
+
+			case MATERIALIZE:
+				fileManager.receiveMaterialize(remotePeer.getUniqueIdentifier(), msg);
+				break;
+
+			case JOURNAL_REQUEST:
+				fileManager.receiveJournalRequest(remotePeer.getUniqueIdentifier(), msg);
+				break;
+
+			case JOURNAL_ENTRIES:
+				fileManager.receiveJournalEntries(remotePeer.getUniqueIdentifier(), msg);
+				break;
+
+			case VERSION:
+				fileManager.receiveVersion(remotePeer.getUniqueIdentifier(), msg);
+				break;
+
+			case RELAY:
+				fileManager.receiveRelay(remotePeer.getUniqueIdentifier(), msg);
+				break;
+
+			case HAVE_REQUEST:
+				fileManager.receiveHaveRequest(remotePeer.getUniqueIdentifier(), msg);
+				break;
+
+			case HAVE:
+				fileManager.receiveHave(remotePeer.getUniqueIdentifier(), msg);
 		}
 	}
 
+	/**
+	 * Queues a received chunk to be handed to "sink" on the "IoExecutor",
+	 * cancels the transfer if the disk is too far behind, it's resumed by its "onEnd".
+	 * What's still on its way after that is written too.
+	 */
+	private void queueWrite(InTransfer inTransfer, ByteBuffer data, Consumer<ByteBuffer> sink) {
+		metrics.received(data.remaining());
+		if (!writes.write(data, sink) && throttled.add(inTransfer))
+			inTransfer.cancel();
+	}
+
+	/**
+	 * Cancels a transfer from another thread, unless it ended in the meantime.
+	 */
+	private void cancel(InTransfer inTransfer) {
+		Node.getInstance().execute(() -> {
+			if (!inTransfer.getIsCompleted() && !inTransfer.getIsCancelled() && !inTransfer.getIsInterrupted())
+				inTransfer.cancel();
+		});
+	}
+
+	/**
+	 * Cancels the transfer announced by the last msg.
+	 */
+	private void skipTransfer() {
+		incomingConnection.setOnTransfer((c, t) -> {
+			t.cancel();
+			incomingConnection.setOnTransfer(null);
+		});
+	}
+
 	/**
 	 * This function sends a msg or a small object, files are
 	 * sent through outTransfer
 	 *
-	 * @param data The data in the form of byte array
+	 * @param data An encoded msg (see "MessageWriter")
+	 */
+	public void sendData(ByteBuffer data) {
+		Node.getInstance().execute(() -> outGoingConnection.send(data));
+	}
+
+	/**
+	 * Queues a file to be sent to this peer, see "TransferScheduler".
+	 *
+	 * @param filename The path of the file not just its name,
+	 *                 relative to the root directory.
+	 * @param path     The actual path of the file.
+	 * @param offset   Where the transfer starts.
 	 */
-	public void sendData(byte[] data) {
-		outGoingConnection.send(ByteBuffer.wrap(data));
+	public void enqueueFile(String filename, Path path, long offset) {
+		scheduler.enqueue(filename, path, offset);
 	}
 
 	/**
-	 * First sends the name of the file, then starts transferring
-	 * the file itself.
+	 * First sends the name, size and hash of the file, then starts transferring
+	 * the file itself from "offset", the peer checks the hash once it has all of it.
 	 *
-	 * @param fileChannel This is like a pointer that reads/writes
-	 *                    a file byte by byte.
+	 * @param reader      The file, shared with its transfers to the other peers (see "FanOutReader").
 	 * @param filename    The path of the file not just its name,
 	 *                    relative to the root directory.
 	 * @param fileSize
+	 * @param offset      Where the transfer starts, the peer already has the part before it.
+	 * @param onEnd       Invoked when the transfer ends, completed or not.
+	 */
+	void sendFile(FanOutReader reader, String filename, long fileSize, long offset, Runnable onEnd) {
+		byte[] digest = fileManager.getDigest(filename);
+		sendSegments((from, deflated) -> new MessageWriter(MessageType.FILE)
+						.writeString(filename)
+						.writeVarLong(fileSize)
+						.writeVarLong(from)
+						.writeBytes(digest)
+						.writeVarInt(deflated)
+						.finish(),
+				reader, offset, fileSize, filename, onEnd);
+	}
+
+	/**
+	 * Sends a range of a file a peer asked for (see "storage.SwarmDownload").
+	 *
+	 * @param fileChannel Channel of the whole file.
+	 * @param filename    The path of the file relative to the root directory.
+	 * @param offset      Start of the range.
+	 * @param length      Length of the range.
+	 */
+	public void sendRange(FileChannel fileChannel, String filename, long offset, int length) {
+		FanOutReader reader = of(fileChannel);
+		if (reader == null)
+			return;
+		sendTransfer(new MessageWriter(MessageType.RANGE).writeString(filename).writeVarLong(offset).finish(),
+				reader, offset, filename, length, completed -> reader.close());
+	}
+
+	/**
+	 * Same as "sendFile()", but the transfer is a delta of the file.
+	 *
+	 * @param fileChannel Channel of the delta file.
+	 * @param filename    The file the delta applies to.
+	 * @param deltaSize
+	 * @param deltaFile   Deleted once it's sent.
 	 */
-	public void sendFile(FileChannel fileChannel, String filename, int fileSize) {
-		// Send array [2, *filename in bytes* ]
-		// 2 is the msg type
-		byte[] data = {2};
-		data = Helpers.concatenate(data, filename.getBytes());
-		sendData(data);
-
-		// This "send()" function takes the file size
-		// and a data source to read from, it allows it
-		// to read and send the file in chunks.
-		OutTransfer transfer = outGoingConnection.send(fileSize,
-				(position, length) -> Helpers.readData(fileChannel, position, length));
-
-		// Loading bar
-		window.getProgress().setText("Sending: " + filename);
-		window.getProgressBar().setValue(0);
-		transfer.setOnProgress(
-				t -> window.getProgressBar().setValue((int) ((float)t.getProgress() / t.getLength() * 100)));
-
-		// When transfer ends, close the file channel
-		transfer.setOnEnd(t -> {
-			window.getProgress().setText("Sent! File: " + filename);
+	public void sendDelta(FileChannel fileChannel, String filename, long deltaSize, Path deltaFile) {
+		FanOutReader reader = of(fileChannel);
+		if (reader == null)
+			return;
+		sendSegments((from, deflated) -> new MessageWriter(MessageType.DELTA)
+						.writeString(filename)
+						.writeVarLong(deltaSize)
+						.writeVarLong(from)
+						.writeVarInt(deflated)
+						.finish(),
+				reader, 0, deltaSize, filename, () -> {
 			try {
-				fileChannel.force(true);
-				fileChannel.close();
+				Files.deleteIfExists(deltaFile);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -139,60 +331,346 @@ public class PeerConnection {
 	}
 
 	/**
-	 * This function is invoked when a file transfer is started,
-	 * it creates a file channel that creates a new file with that
-	 * filename and starts writing to it as it receives chunks of data.
+	 * Makes the msg announcing a segment.
+	 */
+	private interface Announcement {
+		/**
+		 * @param offset   Where the segment starts.
+		 * @param deflated Length of the segment if the transfer is deflated, otherwise 0.
+		 */
+		ByteBuffer make(long offset, int deflated);
+	}
+
+	/**
+	 * Sends "reader" from "offset" to "end" in transfers of at most "MAX_SEGMENT" bytes,
+	 * or in deflated blocks if the peer can inflate them (see "BlockCompressor"),
+	 * each one announced by the msg "announcement" makes for where it starts,
+	 * the next one is only sent once the previous one completed.
 	 *
-	 * @param inTransfer
-	 * @param filename   The path of the file not just its name,
-	 *                   relative to the root directory.
+	 * @param onEnd Invoked when the last transfer ends, completed or not.
 	 */
-	private void receiveFile(InTransfer inTransfer, String filename) {
-		FileChannel fileChannel = null;
+	private void sendSegments(Announcement announcement, FanOutReader reader, long offset, long end,
+	                          String filename, Runnable onEnd) {
+		BlockCompressor compressor = deflate && BlockCompressor.worthTrying(filename) ? new BlockCompressor() : null;
+		FanOutReader.Cursor cursor = compressor != null ? reader.cursor(offset) : null;
+		IoExecutor.execute(() -> sendSegments(announcement, reader, offset, end, filename, compressor, cursor, () -> {
+			if (compressor != null) {
+				compressor.close();
+				cursor.close();
+			}
+			reader.close();
+			onEnd.run();
+		}));
+	}
+
+	private void sendSegments(Announcement announcement, FanOutReader reader, long offset, long end,
+	                          String filename, BlockCompressor compressor, FanOutReader.Cursor cursor,
+	                          Runnable onEnd) {
+		BlockCompressor.Block block;
 		try {
-			Path path = Paths.get(FileManager.getInstance().getUserDir(), filename);
+			block = compressor != null
+					? compressor.next(cursor, offset, end - offset)
+					: new BlockCompressor.Block((int) Math.min(MAX_SEGMENT, end - offset), null, false);
+		} catch (IOException e) {
+			e.printStackTrace();
+			onEnd.run();
+			return;
+		}
+
+		// Reading (and deflating) the next block is left to the "IoExecutor".
+		Consumer<Boolean> next = completed -> IoExecutor.execute(() -> {
+			if (completed && offset + block.length < end)
+				sendSegments(announcement, reader, offset + block.length, end, filename, compressor, cursor, onEnd);
+			else
+				onEnd.run();
+		});
+
+		ByteBuffer msg = announcement.make(offset, block.deflated ? block.length : 0);
+		if (block.data == null)
+			sendTransfer(msg, reader, offset, filename, block.length, next);
+		else
+			sendBlock(msg, block.data, next);
+	}
+
+	/**
+	 * Same as "sendTransfer()" but the data is already in memory (see "BlockCompressor").
+	 */
+	private void sendBlock(ByteBuffer announcement, ByteBuffer data, Consumer<Boolean> onEnd) {
+		Node.getInstance().execute(() -> {
+			outGoingConnection.send(announcement);
+			OutTransfer transfer = outGoingConnection.send(data);
+			transfer.setOnEnd(t -> {
+				metrics.sent(t.getProgress());
+				onEnd.accept(t.getIsCompleted());
+			});
+		});
+	}
+
+	/**
+	 * Announces the transfer with a msg (holding the filename) then sends it,
+	 * in one task of jReto's thread so that no other msg gets in between the two.
+	 *
+	 * @param announcement The msg telling the peer what the transfer is.
+	 * @param offset       Where the transfer starts in the file.
+	 * @param length       Length of the transfer.
+	 * @param onEnd        Invoked with true if the transfer completed, the reader is left open.
+	 */
+	private void sendTransfer(ByteBuffer announcement, FanOutReader reader, long offset,
+	                          String filename, int length, Consumer<Boolean> onEnd) {
+		Node.getInstance().execute(() -> {
+			outGoingConnection.send(announcement);
+
+			// This "send()" function takes the file size
+			// and a data source to read from, it allows it
+			// to read and send the file in chunks.
+			ChunkSource source = new ChunkSource(reader, chunkPool, offset, length);
+			OutTransfer transfer = outGoingConnection.send(length, source);
 
-			//Create Directories if doesn't exist.
-			path.getParent().toFile().mkdirs();
+			listener.sending(filename);
+			long[] reported = {0};
+			transfer.setOnProgress(t -> {
+				listener.progress(filename, t.getProgress(), t.getLength());
+				metrics.sent(t.getProgress() - reported[0]);
+				reported[0] = t.getProgress();
+			});
+
+			// When transfer ends, give the chunk back
+			transfer.setOnEnd(t -> {
+				metrics.sent(t.getProgress() - reported[0]);
+				listener.sent(filename, t.getIsCompleted());
+				source.close();
+				onEnd.accept(t.getIsCompleted());
+			});
+		});
+	}
 
-			OpenOption[] read = {
-					StandardOpenOption.WRITE,
-					StandardOpenOption.CREATE_NEW
-			};
-			fileChannel = FileChannel.open(path, read);
+	/**
+	 * @return A reader of a channel only this transfer reads, or null if it can't be read (then it's closed).
+	 */
+	private static FanOutReader of(FileChannel fileChannel) {
+		try {
+			return FanOutReader.of(fileChannel);
 		} catch (IOException e) {
 			e.printStackTrace();
+			close(fileChannel);
+			return null;
 		}
+	}
 
-		// CLion just wanted me to create this lol
-		// because of "final" bla bla
-		FileChannel finalFileChannel = fileChannel;
+	private static void close(FileChannel fileChannel) {
+		try {
+			fileChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-		// When a chunk of data is received, write it.
-		inTransfer.setOnPartialData(
-				(t, data) -> Helpers.writeData(finalFileChannel, data));
+	/**
+	 * This function is invoked when a file transfer is started,
+	 * it writes the chunks to the partial file as they're received,
+	 * the file is moved into place once all of it is there (see "storage.PartialFile").
+	 * <p>
+	 * Opening the partial file can mean hashing what arrived of it before, so it's opened
+	 * and claimed by the first task of "writes", ahead of the chunks. The transfer is cancelled
+	 * if it can't be claimed, its chunks are dropped meanwhile.
+	 *
+	 * @param inTransfer
+	 * @param filename   The path of the file relative to the root directory.
+	 * @param size       Size of the whole file.
+	 * @param offset     Where the transfer starts in the file.
+	 * @param digest     Hash of the whole file.
+	 * @param deflated   Length of the segment if the transfer is deflated, otherwise 0.
+	 */
+	private void receiveFile(InTransfer inTransfer, String filename, long size, long offset, byte[] digest,
+	                         int deflated) {
+		// Only set by "writes", if the partial file was claimed.
+		AtomicReference<PartialFile> claimed = new AtomicReference<>();
+		writes.then(() -> {
+			PartialFile partial = fileManager.openPartial(filename, size, digest);
+			if (partial != null && partial.claim(offset)) {
+				// So the watcher doesn't take the file being moved into place as a local change.
+				fileManager.getIncomingFiles().add(filename);
+				listener.receiving(filename, false);
+				claimed.set(partial);
+				return;
+			}
+
+			cancel(inTransfer);
+			// Not being received from another peer, but I have a different part of it.
+			if (partial != null && !partial.isClaimed() && partial.getOffset() < size)
+				sendData(new MessageWriter(MessageType.RESUME_REQUEST)
+						.writeString(filename)
+						.writeVarLong(partial.getOffset())
+						.writeBytes(digest)
+						.finish());
+		});
+
+		// When a chunk of data is received, queue it to be written.
+		Consumer<ByteBuffer> write = data -> {
+			PartialFile partial = claimed.get();
+			if (partial != null)
+				partial.write(data);
+		};
+		BlockCompressor.Inflating inflating = deflated > 0 ? BlockCompressor.inflating(deflated, write) : null;
+		Consumer<ByteBuffer> sink = inflating != null ? inflating : write;
+		inTransfer.setOnPartialData((t, data) -> queueWrite(t, data, sink));
 
-		// Loading bar
-		window.getProgress().setText("Receiving: " + filename);
-		window.getProgressBar().setValue(0);
-		inTransfer.setOnProgress(
-				t -> window.getProgressBar().setValue((int) ((float)t.getProgress() / t.getLength() * 100)));
+		inTransfer.setOnProgress(t -> {
+			if (claimed.get() != null)
+				listener.progress(filename, t.getProgress(), t.getLength());
+		});
 
-		// When transfer ends, close the file channel
+		// When transfer ends, the next segment can start right away, it's claimed once this one's
+		// chunks are written. The file is moved into place (or what arrived is kept) then too.
 		inTransfer.setOnEnd(t -> {
+			boolean resume = throttled.remove(t);
+			// Frees the inflater if the transfer stopped before the end of the block.
+			if (inflating != null)
+				writes.then(inflating::end);
+			long end = offset + (deflated > 0 ? deflated : t.getLength());
+			boolean completed = t.getIsCompleted();
+			writes.then(() -> {
+				PartialFile partial = claimed.get();
+				if (partial == null)
+					return;
+				if (completed)
+					partial.transferred(end);
+				if (completed && end < size)
+					return;
 
-			window.getProgress().setText("Received! File: " + filename);
+				// Clears the mark, once the file landed if it's complete.
+				fileManager.partialReceived(partial, completed);
+				listener.received(filename, false, completed, partial.getWritten());
+				// Stopped by me, the rest is asked for now that what arrived is written,
+				// unless it all arrived anyway or another transfer of it took over.
+				if (resume && !completed && !partial.isClaimed() && partial.getOffset() < size)
+					sendData(new MessageWriter(MessageType.RESUME_REQUEST)
+							.writeString(filename)
+							.writeVarLong(partial.getOffset())
+							.writeBytes(partial.getDigest())
+							.finish());
+			});
+		});
+	}
 
-			try {
-				finalFileChannel.force(true);
-				finalFileChannel.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+	/**
+	 * Receives a delta into a temp file, then applies it to my copy of "filename"
+	 * once all of its segments arrived.
+	 *
+	 * @param inTransfer
+	 * @param filename   The file the delta applies to.
+	 * @param deltaSize  Size of the whole delta.
+	 * @param offset     Where this segment starts in the delta.
+	 * @param deflated   Length of the segment if the transfer is deflated, otherwise 0.
+	 */
+	private void receiveDelta(InTransfer inTransfer, String filename, long deltaSize, long offset, int deflated) {
+		Path previous = incomingDeltas.remove(filename);
+		Path deltaFile;
+		FileChannel fileChannel;
+		try {
+			if (offset > 0 && previous != null) {
+				deltaFile = previous;
+			} else {
+				// Older segments of another delta, or this one's start is missing.
+				if (previous != null)
+					Files.deleteIfExists(previous);
+				if (offset > 0) {
+					inTransfer.cancel();
+					return;
+				}
+				deltaFile = fileManager.newTempFile();
 			}
+			fileChannel = FileChannel.open(deltaFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			e.printStackTrace();
+			inTransfer.cancel();
+			return;
+		}
+
+		Consumer<ByteBuffer> write = data -> Helpers.writeData(fileChannel, data);
+		BlockCompressor.Inflating inflating = deflated > 0 ? BlockCompressor.inflating(deflated, write) : null;
+		Consumer<ByteBuffer> sink = inflating != null ? inflating : write;
+		inTransfer.setOnPartialData((t, data) -> queueWrite(t, data, sink));
 
+		listener.receiving(filename, true);
+
+		inTransfer.setOnEnd(t -> {
+			boolean resume = throttled.remove(t);
+			// Segments of a delta arrive one after the other on this connection,
+			// so the next one can be expected before this one is written.
+			long length = deflated > 0 ? deflated : t.getLength();
+			boolean more = t.getIsCompleted() && offset + length < deltaSize;
+			if (more)
+				incomingDeltas.put(filename, deltaFile);
+
+			writes.then(() -> {
+				if (inflating != null)
+					inflating.end();
+				close(fileChannel);
+				if (more)
+					return;
+
+				if (t.getIsCompleted()) {
+					fileManager.applyDelta(filename, deltaFile);
+					listener.received(filename, true, true, deltaSize);
+				} else {
+					listener.received(filename, true, false, 0);
+					try {
+						Files.deleteIfExists(deltaFile);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					// Stopped by me, asked for again now that the disk caught up.
+					if (resume)
+						fileManager.retryDelta(remotePeer.getUniqueIdentifier(), filename);
+				}
+			});
 		});
 	}
 
+	/**
+	 * Writes a range of a file being pulled from several peers
+	 * at its position in the partial file.
+	 *
+	 * @param inTransfer
+	 * @param filename   The path of the file relative to the root directory.
+	 * @param offset     Start of the range.
+	 */
+	private void receiveRange(InTransfer inTransfer, String filename, long offset) {
+		SwarmDownload download = fileManager.getDownload(filename);
+		if (download == null) {
+			inTransfer.cancel();
+			return;
+		}
+
+		long[] position = {offset};
+		Consumer<ByteBuffer> sink = data -> {
+			int length = data.remaining();
+			download.write(position[0], data);
+			position[0] += length;
+		};
+		inTransfer.setOnPartialData((t, data) -> queueWrite(t, data, sink));
+
+		inTransfer.setOnEnd(t -> {
+			boolean resume = throttled.remove(t);
+			writes.then(() -> {
+				fileManager.rangeReceived(remotePeer.getUniqueIdentifier(), download, download.getRange(offset),
+						t.getIsCompleted());
+				// Stopped by me, the peer is asked for ranges again now that the disk caught up.
+				if (resume && !t.getIsCompleted())
+					fileManager.resumeRanges(remotePeer.getUniqueIdentifier(), download);
+			});
+		});
+	}
+
+	public TransferScheduler getScheduler() {
+		return scheduler;
+	}
+
+	public WriteQueue getWrites() {
+		return writes;
+	}
+
 	public void setIncomingConnection(Connection incomingConnection) {
 		this.incomingConnection = incomingConnection;
 		incomingConnection.setOnData((c, data) -> acceptData(data));
@@ -0,0 +1,95 @@
+package controllers;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic with one peer, the rates are updated by "Metrics" every few seconds.
+ */
+public class PeerMetrics implements PeerMetricsMBean {
+	// The current connection with the peer, a new one if it reconnects.
+	private volatile PeerConnection connection;
+
+	// False if another node in the same JVM registered the MBean first.
+	private boolean registered = false;
+
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder received = new LongAdder();
+
+	// Totals at the previous sample.
+	private long lastSent = 0;
+	private long lastReceived = 0;
+
+	private volatile double sentPerSecond = 0;
+	private volatile double receivedPerSecond = 0;
+
+	PeerMetrics(PeerConnection connection) {
+		this.connection = connection;
+	}
+
+	void bind(PeerConnection connection) {
+		this.connection = connection;
+	}
+
+	boolean isRegistered() {
+		return registered;
+	}
+
+	void setRegistered(boolean registered) {
+		this.registered = registered;
+	}
+
+	void sent(long bytes) {
+		sent.add(bytes);
+	}
+
+	void received(long bytes) {
+		received.add(bytes);
+	}
+
+	/**
+	 * @param seconds Time since the previous sample.
+	 */
+	synchronized void sample(double seconds) {
+		long totalSent = sent.sum();
+		long totalReceived = received.sum();
+		sentPerSecond = (totalSent - lastSent) / seconds;
+		receivedPerSecond = (totalReceived - lastReceived) / seconds;
+		lastSent = totalSent;
+		lastReceived = totalReceived;
+	}
+
+	@Override
+	public long getBytesSent() {
+		return sent.sum();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return received.sum();
+	}
+
+	@Override
+	public double getBytesSentPerSecond() {
+		return sentPerSecond;
+	}
+
+	@Override
+	public double getBytesReceivedPerSecond() {
+		return receivedPerSecond;
+	}
+
+	@Override
+	public int getInFlightTransfers() {
+		return connection.getScheduler().getInFlight();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return connection.getScheduler().getQueueDepth();
+	}
+
+	@Override
+	public int getQueuedWriteBytes() {
+		return connection.getWrites().getQueuedBytes();
+	}
+}
@@ -0,0 +1,20 @@
+package controllers;
+
+/**
+ * JMX view of the traffic with one peer.
+ */
+public interface PeerMetricsMBean {
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	double getBytesSentPerSecond();
+
+	double getBytesReceivedPerSecond();
+
+	int getInFlightTransfers();
+
+	int getQueueDepth();
+
+	int getQueuedWriteBytes();
+}
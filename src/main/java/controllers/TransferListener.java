@@ -0,0 +1,44 @@
+package controllers;
+
+/**
+ * Gets told about the transfers of the node, e.g. to show them in "forms.MainForm"
+ * or log them when running headless (see "Daemon"), registered with "Node.addTransferListener()".
+ * <p>
+ * Called on jReto's and the disk writers' threads, listeners shouldn't block
+ * and have to hand things over to their own thread (e.g. Swing's) themselves.
+ */
+public interface TransferListener {
+	/**
+	 * A file or a delta of it started being sent.
+	 */
+	default void sending(String filename) {
+	}
+
+	/**
+	 * @param completed False if it was cut off.
+	 */
+	default void sent(String filename, boolean completed) {
+	}
+
+	/**
+	 * @param delta True if only the changes of my copy are being received.
+	 */
+	default void receiving(String filename, boolean delta) {
+	}
+
+	/**
+	 * The file (or the delta) was received and moved into place,
+	 * or was cut off with "written" bytes of it kept for later.
+	 */
+	default void received(String filename, boolean delta, boolean completed, long written) {
+	}
+
+	/**
+	 * A chunk of a transfer was sent or received, called often.
+	 *
+	 * @param progress Bytes of the transfer so far.
+	 * @param length   Length of the transfer.
+	 */
+	default void progress(String filename, long progress, long length) {
+	}
+}
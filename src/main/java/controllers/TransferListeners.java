@@ -0,0 +1,49 @@
+package controllers;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Passes every event on to all the registered listeners.
+ */
+class TransferListeners implements TransferListener {
+	private final List<TransferListener> listeners = new CopyOnWriteArrayList<>();
+
+	void add(TransferListener listener) {
+		listeners.add(listener);
+	}
+
+	void remove(TransferListener listener) {
+		listeners.remove(listener);
+	}
+
+	@Override
+	public void sending(String filename) {
+		for (TransferListener listener : listeners)
+			listener.sending(filename);
+	}
+
+	@Override
+	public void sent(String filename, boolean completed) {
+		for (TransferListener listener : listeners)
+			listener.sent(filename, completed);
+	}
+
+	@Override
+	public void receiving(String filename, boolean delta) {
+		for (TransferListener listener : listeners)
+			listener.receiving(filename, delta);
+	}
+
+	@Override
+	public void received(String filename, boolean delta, boolean completed, long written) {
+		for (TransferListener listener : listeners)
+			listener.received(filename, delta, completed, written);
+	}
+
+	@Override
+	public void progress(String filename, long progress, long length) {
+		for (TransferListener listener : listeners)
+			listener.progress(filename, progress, length);
+	}
+}
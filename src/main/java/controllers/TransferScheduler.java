@@ -0,0 +1,115 @@
+package controllers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Queues the files to be sent to one peer and only hands a few of them
+ * to jReto at a time, so a sync of thousands of files doesn't open
+ * thousands of file channels at once, and small files don't wait behind huge ones.
+ * <p>
+ * A file is only opened when its transfer actually starts.
+ */
+public class TransferScheduler {
+	/**
+	 * Smaller files first (by power of two, so similar sizes are equal),
+	 * then the most recently modified ones.
+	 */
+	public static final Comparator<PendingTransfer> SMALL_AND_RECENT_FIRST =
+			Comparator.<PendingTransfer>comparingInt(t -> 64 - Long.numberOfLeadingZeros(t.size))
+					.thenComparing(Comparator.<PendingTransfer>comparingLong(t -> t.lastModified).reversed());
+
+	private final PeerConnection connection;
+
+	// Max number of transfers (and open files) handed to jReto at a time.
+	private final int window;
+
+	private final PriorityQueue<PendingTransfer> queue;
+
+	// Filenames in the queue, a file queued twice is only sent once.
+	private final Set<String> queued = new HashSet<>();
+
+	private int inFlight = 0;
+
+	static class PendingTransfer {
+		final String filename;
+		final Path path;
+		final long size;
+		final long lastModified;
+
+		// Where the transfer starts, the peer already has the part before it.
+		final long offset;
+
+		PendingTransfer(String filename, Path path, long offset) {
+			File file = path.toFile();
+			this.filename = filename;
+			this.path = path;
+			this.size = file.length() - offset;
+			this.lastModified = file.lastModified();
+			this.offset = offset;
+		}
+	}
+
+	public TransferScheduler(PeerConnection connection, int window, Comparator<PendingTransfer> policy) {
+		this.connection = connection;
+		this.window = window;
+		this.queue = new PriorityQueue<>(policy);
+	}
+
+	/**
+	 * @param filename The path of the file relative to the root directory.
+	 * @param path     The actual path of the file.
+	 * @param offset   Where the transfer starts.
+	 */
+	public synchronized void enqueue(String filename, Path path, long offset) {
+		if (queued.add(filename))
+			queue.add(new PendingTransfer(filename, path, offset));
+		startNext();
+	}
+
+	/**
+	 * Starts queued transfers until the window is full.
+	 */
+	private synchronized void startNext() {
+		while (inFlight < window && !queue.isEmpty()) {
+			PendingTransfer next = queue.poll();
+			queued.remove(next.filename);
+
+			// Shared with the transfers of the file to the other peers.
+			FanOutReader reader;
+			try {
+				reader = FanOutReader.open(next.path);
+			} catch (IOException e) {
+				// Deleted since it was queued.
+				e.printStackTrace();
+				continue;
+			}
+
+			inFlight++;
+			// Changed since, the peer starts over.
+			long offset = next.offset <= reader.size() ? next.offset : 0;
+			connection.sendFile(reader, next.filename, reader.size(), offset, this::onTransferEnd);
+		}
+	}
+
+	private synchronized void onTransferEnd() {
+		inFlight--;
+		startNext();
+	}
+
+	/**
+	 * @return Number of files waiting to be sent.
+	 */
+	public synchronized int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return Number of transfers handed to jReto that didn't end yet.
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+}
@@ -0,0 +1,101 @@
+package controllers;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runs the writes of the transfers received on one connection in order on the "IoExecutor".
+ * <p>
+ * The received chunks are copied (jReto reuses its buffers), queuing never blocks the jReto thread.
+ * Once more than "capacity" bytes wait to be written the transfer is told to stop, it's resumed
+ * from where its writes got to once they're done (see "PeerConnection"), so the data doesn't
+ * pile up in memory and the other peers' msgs aren't held up by the disk.
+ */
+public class WriteQueue {
+	private static final BufferPool pool = new BufferPool(64, 1 << 20);
+
+	private final int capacity;
+
+	// Bytes waiting to be written.
+	private final AtomicLong queued = new AtomicLong();
+
+	private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+	// True while a thread of the executor is running the tasks.
+	private boolean draining = false;
+
+	/**
+	 * @param capacity Max number of bytes waiting to be written.
+	 */
+	public WriteQueue(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Queues a chunk to be handed to "sink".
+	 *
+	 * @return False if the queue is full, the transfer should stop.
+	 */
+	public boolean write(ByteBuffer data, Consumer<ByteBuffer> sink) {
+		int length = data.remaining();
+		ByteBuffer copy = pool.acquire(length);
+		copy.put(data);
+		copy.flip();
+		long total = queued.addAndGet(length);
+
+		submit(() -> {
+			long start = System.nanoTime();
+			try {
+				sink.accept(copy);
+			} finally {
+				Metrics.getInstance().getChunkWrite().record(System.nanoTime() - start);
+				pool.release(copy);
+				queued.addAndGet(-length);
+			}
+		});
+		return total <= capacity;
+	}
+
+	/**
+	 * Runs "task" after everything queued so far was written, e.g. closing the file.
+	 */
+	public void then(Runnable task) {
+		submit(task);
+	}
+
+	private synchronized void submit(Runnable task) {
+		tasks.add(task);
+		if (!draining) {
+			draining = true;
+			IoExecutor.execute(this::drain);
+		}
+	}
+
+	private void drain() {
+		while (true) {
+			Runnable task;
+			synchronized (this) {
+				task = tasks.poll();
+				if (task == null) {
+					draining = false;
+					return;
+				}
+			}
+
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return Number of bytes waiting to be written.
+	 */
+	public int getQueuedBytes() {
+		return (int) queued.get();
+	}
+}
@@ -1,14 +1,20 @@
 package forms;
 
 import controllers.Node;
+import controllers.TransferListener;
 
 import javax.swing.*;
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
 
 public class MainForm extends JFrame {
 	private JList userList;
 	private JPanel panel1;
 	private JButton syncButton;
 	private JButton checkoutButton;
+	private JButton openButton;
 	private JProgressBar progressBar;
 	private JTextField progress;
 	private Node node = Node.getInstance();
@@ -19,7 +25,7 @@ public class MainForm extends JFrame {
 		setContentPane(panel1);
 		userList.setModel(listModel);
 
-		node.setNodeFormWindow(this);
+		node.addTransferListener(new ProgressListener());
 
 		node.setUpdateUserList(() -> {
 			updateUserList();
@@ -29,6 +35,40 @@ public class MainForm extends JFrame {
 		syncButton.addActionListener(e -> node.scanDirectory());
 
 		checkoutButton.addActionListener(e -> node.commitChanges());
+
+		openButton.addActionListener(e -> openFile());
+	}
+
+	/**
+	 * Opens a file of the user with the program the system opens it with,
+	 * if it's only a placeholder its content is fetched from the peers first (see "storage.ContentCache").
+	 */
+	private void openFile() {
+		Path userDir = new File(node.fileManager.getUserDir()).getAbsoluteFile().toPath();
+		JFileChooser chooser = new JFileChooser(userDir.toFile());
+		if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+
+		Path selected = chooser.getSelectedFile().getAbsoluteFile().toPath();
+		if (!selected.startsWith(userDir)) {
+			progress.setText("Not a file of " + node.getUsername() + ": " + selected);
+			return;
+		}
+		String path = '/' + userDir.relativize(selected).toString().replace('\\', '/');
+		progress.setText("Opening: " + path);
+
+		node.openFile(path).thenAccept(file -> SwingUtilities.invokeLater(() -> {
+			if (file == null) {
+				progress.setText("No such file: " + path);
+				return;
+			}
+			progress.setText("Opened: " + path);
+			try {
+				Desktop.getDesktop().open(file.toFile());
+			} catch (IOException | UnsupportedOperationException e) {
+				e.printStackTrace();
+			}
+		}));
 	}
 
 	private void updateUserList() {
@@ -39,12 +79,51 @@ public class MainForm extends JFrame {
 			listModel.addElement(username);
 	}
 
-	public JProgressBar getProgressBar() {
-		return progressBar;
-	}
+	/**
+	 * Shows the transfers in the progress bar, on Swing's thread.
+	 * Progress is only passed on when the percentage changes, not on every chunk.
+	 */
+	private class ProgressListener implements TransferListener {
+		private volatile int percent = -1;
 
-	public JTextField getProgress() {
-		return progress;
-	}
+		private void show(String text) {
+			percent = 0;
+			SwingUtilities.invokeLater(() -> {
+				progress.setText(text);
+				progressBar.setValue(0);
+			});
+		}
+
+		@Override
+		public void sending(String filename) {
+			show("Sending: " + filename);
+		}
+
+		@Override
+		public void sent(String filename, boolean completed) {
+			show((completed ? "Sent! File: " : "Interrupted: ") + filename);
+		}
 
+		@Override
+		public void receiving(String filename, boolean delta) {
+			show((delta ? "Receiving changes: " : "Receiving: ") + filename);
+		}
+
+		@Override
+		public void received(String filename, boolean delta, boolean completed, long written) {
+			if (!completed)
+				show("Interrupted at " + written + " bytes: " + filename);
+			else
+				show((delta ? "Updated! File: " : "Received! File: ") + filename);
+		}
+
+		@Override
+		public void progress(String filename, long progress, long length) {
+			int value = (int) (progress * 100 / Math.max(1, length));
+			if (value == percent)
+				return;
+			percent = value;
+			SwingUtilities.invokeLater(() -> progressBar.setValue(value));
+		}
+	}
 }
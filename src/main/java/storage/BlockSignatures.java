@@ -0,0 +1,180 @@
+package storage;
+
+import controllers.MessageReader;
+import controllers.MessageWriter;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The receiver side of a delta transfer.
+ * <p>
+ * The receiver splits its copy of a file into fixed size blocks and sends
+ * a weak (rolling) checksum and a strong hash of each block to the peer that
+ * modified the file, that peer then only sends back what changed (see "Delta").
+ */
+public class BlockSignatures {
+	private static final int DIGEST_LENGTH = 16;
+	private static final int MIN_BLOCK_SIZE = 2 * 1024;
+	private static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+	// Path of the file, relative to the root directory.
+	private String filename;
+
+	private int blockSize;
+
+	// Length of the receiver's copy, the last block may be shorter than "blockSize".
+	private long length;
+
+	// MD5 of the receiver's whole copy, if it matches the sender's nothing is sent.
+	private byte[] fileDigest;
+
+	private int[] weak;
+	private byte[][] strong;
+
+	private BlockSignatures(String filename, int blockSize, long length) {
+		this.filename = filename;
+		this.blockSize = blockSize;
+		this.length = length;
+	}
+
+	/**
+	 * Reads the whole file once, computing the signature of every block
+	 * and the digest of the whole file at the same time.
+	 *
+	 * @param fileChannel Channel of the receiver's copy.
+	 * @param filename    Path of the file, relative to the root directory.
+	 */
+	public static BlockSignatures compute(FileChannel fileChannel, String filename) throws IOException {
+		long length = fileChannel.size();
+		int blockSize = blockSizeFor(length);
+		int blocks = (int) ((length + blockSize - 1) / blockSize);
+
+		BlockSignatures signatures = new BlockSignatures(filename, blockSize, length);
+		signatures.weak = new int[blocks];
+		signatures.strong = new byte[blocks][];
+
+		MessageDigest fileDigest = md5();
+		MessageDigest blockDigest = md5();
+
+		fileChannel.position(0);
+		InputStream in = new BufferedInputStream(Channels.newInputStream(fileChannel), 1 << 16);
+		byte[] block = new byte[blockSize];
+		for (int i = 0; i < blocks; i++) {
+			int read = readFully(in, block);
+			fileDigest.update(block, 0, read);
+			blockDigest.update(block, 0, read);
+			signatures.weak[i] = RollingChecksum.of(block, 0, read);
+			signatures.strong[i] = blockDigest.digest();
+		}
+		signatures.fileDigest = fileDigest.digest();
+
+		return signatures;
+	}
+
+	/**
+	 * Roughly the square root of the file length (like rsync),
+	 * rounded to a KB and kept between 2 KB and 128 KB.
+	 */
+	static int blockSizeFor(long length) {
+		long size = ((long) Math.sqrt(length) + 1023) & ~1023L;
+		return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+	}
+
+	static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Reads until "buffer" is full or the stream ends.
+	 *
+	 * @return Number of bytes actually read.
+	 */
+	static int readFully(InputStream in, byte[] buffer) throws IOException {
+		int total = 0;
+		while (total < buffer.length) {
+			int read = in.read(buffer, total, buffer.length - total);
+			if (read < 0)
+				break;
+			total += read;
+		}
+		return total;
+	}
+
+	public void write(MessageWriter writer) {
+		writer.writeString(filename);
+		writer.writeVarInt(blockSize);
+		writer.writeVarLong(length);
+		writer.writeRaw(fileDigest);
+		for (int i = 0; i < weak.length; i++) {
+			writer.writeInt(weak[i]);
+			writer.writeRaw(strong[i]);
+		}
+	}
+
+	public static BlockSignatures read(MessageReader reader) {
+		BlockSignatures signatures = new BlockSignatures(reader.readString(), reader.readVarInt(), reader.readVarLong());
+		signatures.fileDigest = reader.readRaw(DIGEST_LENGTH);
+
+		int blocks = (int) ((signatures.length + signatures.blockSize - 1) / signatures.blockSize);
+		signatures.weak = new int[blocks];
+		signatures.strong = new byte[blocks][];
+		for (int i = 0; i < blocks; i++) {
+			signatures.weak[i] = reader.readInt();
+			signatures.strong[i] = reader.readRaw(DIGEST_LENGTH);
+		}
+		return signatures;
+	}
+
+	/**
+	 * @return Size of the encoded signatures, to size the msg buffer up front.
+	 */
+	public int encodedSize() {
+		return filename.length() * 3 + 32 + weak.length * (4 + DIGEST_LENGTH);
+	}
+
+	public boolean matches(byte[] digest) {
+		return Arrays.equals(fileDigest, digest);
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public int getBlockCount() {
+		return weak.length;
+	}
+
+	public int getWeak(int block) {
+		return weak[block];
+	}
+
+	public byte[] getStrong(int block) {
+		return strong[block];
+	}
+
+	/**
+	 * Length of the given block, only the last one can be shorter than "blockSize".
+	 */
+	public int getBlockLength(int block) {
+		return (int) Math.min(blockSize, length - (long) block * blockSize);
+	}
+}
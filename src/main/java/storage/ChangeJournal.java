@@ -0,0 +1,258 @@
+package storage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Persistent, numbered list of the changes to the files in "userDir":
+ * every added, modified or deleted file gets the next sequence number.
+ * <p>
+ * A peer remembers up to which number it has seen my changes (its "mark" of my journal),
+ * so when it comes back it only asks for the changes after it instead of comparing
+ * the whole Merkle trees again. Only the last "MAX_ENTRIES" changes are kept,
+ * a peer whose mark is older than that gets a full comparison.
+ * <p>
+ * Stored as a header (id of the journal, number of its first change)
+ * followed by the changes, appended as they happen.
+ * The marks I have of the other peers' journals are stored next to it.
+ * <p>
+ * The changes are forced to disk before their numbers are sent to a peer (see "force()"),
+ * otherwise after a crash the same numbers would be given to other changes, and the peers
+ * that marked them would skip these.
+ */
+public class ChangeJournal {
+	public static final byte ADDED = 1;
+	public static final byte MODIFIED = 2;
+	public static final byte DELETED = 3;
+
+	// Changes kept once the journal is truncated, it's truncated at twice as many.
+	private static final int MAX_ENTRIES = 100_000;
+
+	private final Path file;
+	private final Path marksFile;
+	private DataOutputStream log;
+	private FileOutputStream logFile;
+
+	// Number of the last change forced to disk, what was loaded is forced again the first time.
+	private long forcedSeq = 0;
+
+	// Changes another journal would have other numbers for, e.g. the directory was copied to another machine.
+	private UUID id;
+
+	// Number of the first change in "entries".
+	private long firstSeq = 1;
+
+	private final List<Entry> entries = new ArrayList<>();
+
+	// Id of another peer's journal -> number of its last change I have seen.
+	private final Map<UUID, Long> marks = new HashMap<>();
+
+	public static class Entry {
+		public final byte op;
+		public final String path;
+
+		Entry(byte op, String path) {
+			this.op = op;
+			this.path = path;
+		}
+	}
+
+	private ChangeJournal(Path file) {
+		this.file = file;
+		this.marksFile = file.resolveSibling(file.getFileName() + ".marks");
+	}
+
+	/**
+	 * Loads the journal and the marks, or creates a new journal the first time.
+	 *
+	 * @param file Where the journal is stored.
+	 */
+	public static ChangeJournal open(Path file) throws IOException {
+		ChangeJournal journal = new ChangeJournal(file);
+		file.getParent().toFile().mkdirs();
+
+		boolean torn = false;
+		if (Files.exists(file)) {
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file.toFile()), 1 << 16))) {
+				journal.id = new UUID(in.readLong(), in.readLong());
+				journal.firstSeq = in.readLong();
+				while (true) {
+					int op = in.read();
+					if (op < 0)
+						break;
+					journal.entries.add(new Entry((byte) op, in.readUTF()));
+				}
+			} catch (EOFException e) {
+				// The last change was cut short by a crash, it's dropped by the rewrite below.
+				torn = true;
+			}
+		}
+
+		if (journal.id == null) {
+			journal.id = UUID.randomUUID();
+			journal.firstSeq = 1;
+			journal.entries.clear();
+			torn = true;
+		}
+
+		if (torn)
+			journal.rewrite();
+		else
+			journal.openLog();
+
+		if (Files.exists(journal.marksFile)) {
+			try (DataInputStream in = new DataInputStream(new FileInputStream(journal.marksFile.toFile()))) {
+				for (int i = in.readInt(); i > 0; i--)
+					journal.marks.put(new UUID(in.readLong(), in.readLong()), in.readLong());
+			} catch (EOFException e) {
+				// Cut short by a crash, a peer whose mark is lost just gets a full comparison.
+			}
+		}
+
+		return journal;
+	}
+
+	public synchronized void append(byte op, String path) {
+		entries.add(new Entry(op, path));
+		try {
+			log.writeByte(op);
+			log.writeUTF(path);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return The number of the last change, 0 if there's none yet.
+	 */
+	public synchronized long getSeq() {
+		return firstSeq + entries.size() - 1;
+	}
+
+	public UUID getId() {
+		return id;
+	}
+
+	/**
+	 * The last change of each file changed after "seq", in the order of these last changes.
+	 *
+	 * @return Path -> its last change, or null if the changes right after "seq" aren't kept anymore.
+	 */
+	public synchronized Map<String, Byte> since(long seq) {
+		if (seq < firstSeq - 1 || seq > getSeq())
+			return null;
+
+		Map<String, Byte> changes = new LinkedHashMap<>();
+		for (Entry entry : entries.subList((int) (seq - firstSeq + 1), entries.size())) {
+			changes.remove(entry.path);
+			changes.put(entry.path, entry.op);
+		}
+		return changes;
+	}
+
+	/**
+	 * @return The number of the last change of another peer's journal I have seen, or null if I never asked it.
+	 */
+	public synchronized Long getMark(UUID journal) {
+		return marks.get(journal);
+	}
+
+	public synchronized void setMark(UUID journal, long seq) {
+		Long previous = marks.put(journal, seq);
+		if (previous != null && previous == seq)
+			return;
+
+		// A handful of peers, rewritten whole.
+		try {
+			Path rewritten = marksFile.resolveSibling(marksFile.getFileName() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new FileOutputStream(rewritten.toFile()))) {
+				out.writeInt(marks.size());
+				for (Map.Entry<UUID, Long> mark : marks.entrySet()) {
+					out.writeLong(mark.getKey().getMostSignificantBits());
+					out.writeLong(mark.getKey().getLeastSignificantBits());
+					out.writeLong(mark.getValue());
+				}
+			}
+			Files.move(rewritten, marksFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the buffered changes to disk and waits until they're on it,
+	 * called before the number of the last change is sent to a peer.
+	 *
+	 * @return The number of the last change, all the changes up to it are on disk.
+	 */
+	public synchronized long force() {
+		long seq = getSeq();
+		if (seq == forcedSeq)
+			return seq;
+		try {
+			log.flush();
+			logFile.getFD().sync();
+			forcedSeq = seq;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return forcedSeq;
+	}
+
+	/**
+	 * Writes the buffered changes to disk, called after each batch of changes.
+	 */
+	public synchronized void flush() {
+		try {
+			log.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		if (entries.size() > 2 * MAX_ENTRIES) {
+			int dropped = entries.size() - MAX_ENTRIES;
+			entries.subList(0, dropped).clear();
+			firstSeq += dropped;
+			rewrite();
+		}
+	}
+
+	private void openLog() throws IOException {
+		logFile = new FileOutputStream(file.toFile(), true);
+		log = new DataOutputStream(new BufferedOutputStream(logFile, 1 << 16));
+	}
+
+	/**
+	 * Rewrites the journal with only the changes kept, then atomically replaces the old one.
+	 */
+	private void rewrite() {
+		try {
+			if (log != null)
+				log.close();
+
+			Path rewritten = file.resolveSibling(file.getFileName() + ".tmp");
+			FileOutputStream rewrittenFile = new FileOutputStream(rewritten.toFile());
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(rewrittenFile, 1 << 16))) {
+				out.writeLong(id.getMostSignificantBits());
+				out.writeLong(id.getLeastSignificantBits());
+				out.writeLong(firstSeq);
+				for (Entry entry : entries) {
+					out.writeByte(entry.op);
+					out.writeUTF(entry.path);
+				}
+				out.flush();
+				rewrittenFile.getFD().sync();
+			}
+			Files.move(rewritten, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			forcedSeq = getSeq();
+
+			openLog();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
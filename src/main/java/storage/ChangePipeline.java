@@ -0,0 +1,151 @@
+package storage;
+
+import controllers.Metrics;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Sits between the directory watcher and the file manager.
+ * <p>
+ * Watcher events only mark a path as changed, once a path has been quiet for a while
+ * and its size stopped changing, its net change is computed by comparing whether it
+ * was known before its first event with whether it exists now, so e.g. a file created,
+ * written to and deleted is never sent at all. Changes are emitted in batches.
+ */
+public class ChangePipeline {
+	private static final long TICK_MILLIS = 200;
+
+	/**
+	 * Receives the net changes, relative paths of files only.
+	 */
+	public interface Listener {
+		void onChanges(List<String> created, List<String> modified, List<String> deleted);
+	}
+
+	private static class PendingChange {
+		// Whether the file manager knew the path before its first event.
+		final boolean known;
+		final long firstEvent;
+		long lastEvent;
+		// Size and modified time at the previous tick, -1 before the first one.
+		long size = -1;
+		long lastModified = -1;
+
+		PendingChange(boolean known, long lastEvent) {
+			this.known = known;
+			this.firstEvent = lastEvent;
+			this.lastEvent = lastEvent;
+		}
+	}
+
+	private final String userDir;
+	private final Predicate<String> known;
+	private final Predicate<String> busy;
+	private final Listener listener;
+	private final long quietMillis;
+
+	private final Map<String, PendingChange> pending = new HashMap<>();
+
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "change-pipeline");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * @param userDir     The watched directory.
+	 * @param known       Tells if a relative path is in the file list.
+	 * @param busy        Tells if a relative path is being written by a transfer, it stays pending meanwhile.
+	 * @param listener    Where the batches go.
+	 * @param quietMillis How long a path must go without events before it's checked.
+	 */
+	public ChangePipeline(String userDir, Predicate<String> known, Predicate<String> busy, Listener listener,
+	                      long quietMillis) {
+		this.userDir = userDir;
+		this.known = known;
+		this.busy = busy;
+		this.listener = listener;
+		this.quietMillis = quietMillis;
+	}
+
+	public void start() {
+		executor.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Called for every watcher event, whatever its type.
+	 *
+	 * @param relativePath Path relative to the root directory.
+	 */
+	public synchronized void submit(String relativePath) {
+		long now = System.currentTimeMillis();
+		PendingChange change = pending.get(relativePath);
+		if (change == null)
+			pending.put(relativePath, new PendingChange(known.test(relativePath), now));
+		else
+			change.lastEvent = now;
+	}
+
+	/**
+	 * @return Number of paths waiting to settle.
+	 */
+	public synchronized int getQueueDepth() {
+		return pending.size();
+	}
+
+	private void tick() {
+		List<String> created = new ArrayList<>();
+		List<String> modified = new ArrayList<>();
+		List<String> deleted = new ArrayList<>();
+
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			Iterator<Map.Entry<String, PendingChange>> iterator = pending.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, PendingChange> entry = iterator.next();
+				String path = entry.getKey();
+				PendingChange change = entry.getValue();
+
+				if (now - change.lastEvent < quietMillis || busy.test(path))
+					continue;
+
+				File file = new File(userDir, path);
+				boolean exists = file.exists();
+
+				// Still being written, wait for the next tick.
+				if (exists && (file.length() != change.size || file.lastModified() != change.lastModified)) {
+					change.size = file.length();
+					change.lastModified = file.lastModified();
+					continue;
+				}
+				iterator.remove();
+				Metrics.getInstance().getWatcherLag().record(TimeUnit.MILLISECONDS.toNanos(now - change.firstEvent));
+
+				if (exists && file.isDirectory())
+					continue;
+				if (exists)
+					(change.known ? modified : created).add(path);
+				else
+					deleted.add(path);
+			}
+		}
+
+		if (created.isEmpty() && modified.isEmpty() && deleted.isEmpty())
+			return;
+
+		try {
+			listener.onChanges(created, modified, deleted);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
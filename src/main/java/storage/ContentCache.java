@@ -0,0 +1,187 @@
+package storage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Selective sync: with a quota (-Ddrds.cache.quota, in MB) a node keeps the whole file list
+ * but only the content of the files it used lately, the others are placeholders.
+ * <p>
+ * A placeholder is an empty sparse file with the size of the file, in its place in the user's directory,
+ * its version is in the "VersionStore" like any other file's. Its size and last modified time are kept
+ * in "[root]/.placeholders/[username]" too: as long as the file still has them it's a placeholder,
+ * the watcher leaves it alone, once it's written to it's a file like the others.
+ * Its content is fetched from the peers that have it when it's opened (see "FileManager.open()",
+ * e.g. from the "Open File" button of the main form).
+ * <p>
+ * Once the content of the files takes more than the quota, the least recently used ones are evicted,
+ * only if at least "MIN_REPLICAS" (-Ddrds.cache.replicas) peers have them (see "FileManager").
+ * What was used is only known since the node started, on start the least recently modified go first.
+ * Placeholders left once the quota is turned off are only fetched when they're opened.
+ */
+public class ContentCache {
+	public static final long QUOTA = Long.getLong("drds.cache.quota", 0) << 20;
+
+	public static final int MIN_REPLICAS = Integer.getInteger("drds.cache.replicas", 2);
+
+	private final File userDir;
+
+	// Where the size and last modified time of each placeholder are kept, under its path.
+	private final File stamps;
+
+	// Path -> size and last modified time of its placeholder.
+	private final Map<String, long[]> placeholders = new ConcurrentHashMap<>();
+
+	// Path -> size of the files whose content I have, the least recently used first.
+	private final LinkedHashMap<String, Long> used = new LinkedHashMap<>(16, 0.75f, true);
+
+	// Total size of the files in "used".
+	private long cached = 0;
+
+	/**
+	 * @param userDir The user's directory, where the placeholders are.
+	 * @param stamps  Where their sizes and last modified times are kept.
+	 */
+	public ContentCache(Path userDir, Path stamps) throws IOException {
+		this.userDir = userDir.toFile();
+		this.stamps = stamps.toFile();
+		this.stamps.mkdirs();
+
+		try (Stream<Path> walk = Files.walk(stamps)) {
+			for (Path stamp : walk.filter(Files::isRegularFile).collect(Collectors.toList())) {
+				String path = '/' + stamps.relativize(stamp).toString().replace('\\', '/');
+				try (DataInputStream in = new DataInputStream(new FileInputStream(stamp.toFile()))) {
+					placeholders.put(path, new long[]{in.readLong(), in.readLong()});
+				} catch (IOException e) {
+					// Torn, the file is taken as a file.
+					Files.delete(stamp);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return False if all the files are kept, the default.
+	 */
+	public static boolean isEnabled() {
+		return QUOTA > 0;
+	}
+
+	/**
+	 * The content of this file is here, as of now the most recently used.
+	 */
+	public synchronized void cached(String path, long size) {
+		if (!isEnabled())
+			return;
+		Long previous = used.put(path, size);
+		cached += size - (previous == null ? 0 : previous);
+	}
+
+	/**
+	 * The file was opened.
+	 */
+	public synchronized void used(String path) {
+		used.get(path);
+	}
+
+	/**
+	 * The content of this file is gone, deleted or evicted.
+	 */
+	public synchronized void uncached(String path) {
+		Long size = used.remove(path);
+		if (size != null)
+			cached -= size;
+	}
+
+	public synchronized boolean isOverQuota() {
+		return isEnabled() && cached > QUOTA;
+	}
+
+	/**
+	 * @param evicting Files already being evicted, they count as gone.
+	 * @return The least recently used files to evict to get under the quota, besides "evicting",
+	 * never the most recently used one, even if it's bigger than the quota.
+	 */
+	public synchronized List<String> overQuota(Collection<String> evicting) {
+		List<String> evict = new ArrayList<>();
+		long excess = isEnabled() ? cached - QUOTA : 0;
+		int left = used.size();
+		// Iterating doesn't count as using them.
+		for (Map.Entry<String, Long> entry : used.entrySet()) {
+			if (excess <= 0 || --left == 0)
+				break;
+			excess -= entry.getValue();
+			if (!evicting.contains(entry.getKey()))
+				evict.add(entry.getKey());
+		}
+		return evict;
+	}
+
+	/**
+	 * @return True if the file is the placeholder I made, not written to since.
+	 */
+	public boolean isPlaceholder(String path) {
+		long[] stamp = placeholders.get(path);
+		if (stamp == null)
+			return false;
+		File file = new File(userDir, path);
+		return file.length() == stamp[0] && file.lastModified() == stamp[1];
+	}
+
+	/**
+	 * Creates or updates the placeholder of a file, it takes no space on filesystems with sparse files.
+	 * It replaces the file if there's one, e.g. its content is evicted.
+	 *
+	 * @param temp An empty temp file, on the same filesystem as the user's directory.
+	 */
+	public void placeholder(String path, long size, Path temp) throws IOException {
+		try (RandomAccessFile placeholder = new RandomAccessFile(temp.toFile(), "rw")) {
+			placeholder.setLength(size);
+		}
+
+		// Kept before it's moved into place, so the watcher knows it's a placeholder when it sees it.
+		long[] stamp = {size, temp.toFile().lastModified()};
+		File file = new File(stamps, path);
+		file.getParentFile().mkdirs();
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+			out.writeLong(stamp[0]);
+			out.writeLong(stamp[1]);
+		}
+		placeholders.put(path, stamp);
+
+		Path target = new File(userDir, path).toPath();
+		target.getParent().toFile().mkdirs();
+		// Renaming keeps the last modified time.
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * The content of the file is here, the placeholder was written to or it's gone.
+	 */
+	public void removePlaceholder(String path) {
+		if (placeholders.remove(path) != null)
+			new File(stamps, path).delete();
+	}
+
+	/**
+	 * The file was deleted by a peer, its placeholder goes too.
+	 */
+	public void deletePlaceholder(String path) {
+		if (isPlaceholder(path))
+			new File(userDir, path).delete();
+		removePlaceholder(path);
+	}
+
+	/**
+	 * @return Paths of all the placeholders, relative to the root directory like the files'.
+	 */
+	public Collection<String> placeholders() {
+		return placeholders.keySet().stream().filter(this::isPlaceholder).collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,137 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The paths of the files by their content hash, so a file that is already here
+ * under another path (moved, renamed or copied) is copied locally instead of transferred.
+ * <p>
+ * Files deleted by a peer are kept in the trash for a while, a move is often
+ * seen as a delete before the file under its new path.
+ */
+public class ContentIndex {
+	// How long the content of a removed file counts as still being at the peers,
+	// a move can be seen as a delete and a create far enough apart to be in different batches.
+	private static final long REMOVED_FOR = TimeUnit.MINUTES.toNanos(1);
+
+	// Hash -> paths of the files with this content
+	private final Map<ByteBuffer, Set<String>> paths = new HashMap<>();
+
+	// Path -> hash of its content
+	private final Map<String, ByteBuffer> digests = new HashMap<>();
+
+	// Hash of the content of recently removed files -> when, oldest first
+	private final LinkedHashMap<ByteBuffer, Long> removed = new LinkedHashMap<>();
+
+	// Hash of the content of files deleted by a peer -> where they are in the trash, oldest first
+	private final LinkedHashMap<ByteBuffer, Path> trash = new LinkedHashMap<>();
+
+	// When each file in the trash was put there
+	private final Map<Path, Long> trashed = new HashMap<>();
+
+	/**
+	 * Adds a file or updates its hash.
+	 */
+	public synchronized void add(String path, byte[] digest) {
+		ByteBuffer key = ByteBuffer.wrap(digest.clone());
+		ByteBuffer previous = digests.put(path, key);
+		if (previous != null && !previous.equals(key))
+			removePath(previous, path);
+		paths.computeIfAbsent(key, k -> new HashSet<>(1)).add(path);
+	}
+
+	public synchronized void remove(String path) {
+		ByteBuffer previous = digests.remove(path);
+		if (previous == null)
+			return;
+		removePath(previous, path);
+		removed.remove(previous);
+		removed.put(previous, System.nanoTime());
+	}
+
+	private void removePath(ByteBuffer digest, String path) {
+		Set<String> withDigest = paths.get(digest);
+		if (withDigest == null)
+			return;
+		withDigest.remove(path);
+		if (withDigest.isEmpty())
+			paths.remove(digest);
+	}
+
+	/**
+	 * @return The paths of the files with this content, empty if there are none.
+	 */
+	public synchronized List<String> find(byte[] digest) {
+		Set<String> withDigest = paths.get(ByteBuffer.wrap(digest));
+		return withDigest == null ? Collections.emptyList() : new ArrayList<>(withDigest);
+	}
+
+	/**
+	 * @return True if another file than "path" has this content, or had it until recently.
+	 */
+	public synchronized boolean hasCopy(String path, byte[] digest) {
+		ByteBuffer key = ByteBuffer.wrap(digest);
+		Set<String> withDigest = paths.get(key);
+		if (withDigest != null && (withDigest.size() > 1 || !withDigest.contains(path)))
+			return true;
+
+		long now = System.nanoTime();
+		Iterator<Long> removedAt = removed.values().iterator();
+		while (removedAt.hasNext() && now - removedAt.next() > REMOVED_FOR)
+			removedAt.remove();
+		return removed.containsKey(key);
+	}
+
+	/**
+	 * Keeps a file deleted by a peer, the trash is emptied of what's older than a minute.
+	 *
+	 * @param file Where the file was moved to, outside "userDir".
+	 */
+	public synchronized void trash(byte[] digest, Path file) {
+		Path previous = trash.remove(ByteBuffer.wrap(digest));
+		if (previous != null)
+			delete(previous);
+		trash.put(ByteBuffer.wrap(digest.clone()), file);
+		trashed.put(file, System.nanoTime());
+		emptyTrash();
+	}
+
+	/**
+	 * Takes a file with this content out of the trash.
+	 *
+	 * @return Where it is, or null if there's none.
+	 */
+	public synchronized Path untrash(byte[] digest) {
+		emptyTrash();
+		Path file = trash.remove(ByteBuffer.wrap(digest));
+		if (file != null)
+			trashed.remove(file);
+		return file;
+	}
+
+	private void emptyTrash() {
+		long now = System.nanoTime();
+		Iterator<Path> files = trash.values().iterator();
+		while (files.hasNext()) {
+			Path file = files.next();
+			if (now - trashed.get(file) <= REMOVED_FOR)
+				break;
+			files.remove();
+			trashed.remove(file);
+			delete(file);
+		}
+	}
+
+	private static void delete(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * The sender side of a delta transfer.
+ * <p>
+ * Given the block signatures of the receiver's copy, the new version of the file
+ * is encoded as a stream of instructions:
+ * "copy blocks [i, i + n) of your copy" or "here are some literal bytes".
+ * So appending a few KB to a big file costs a few KB, not the whole file.
+ * <p>
+ * Stream layout (DataOutputStream):
+ * header:  int blockSize, long newLength
+ * ops:     COPY int firstBlock int count | LITERAL int length byte[length]
+ * trailer: END, MD5 of the new file (16 bytes)
+ */
+public class Delta {
+	private static final byte END = 0;
+	private static final byte COPY = 1;
+	private static final byte LITERAL = 2;
+
+	private static final int DIGEST_LENGTH = 16;
+
+	private DataOutputStream out;
+
+	// Pending run of consecutive copied blocks, merged into a single instruction.
+	private int runStart = -1;
+	private int runCount = 0;
+
+	private Delta(DataOutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Encodes "source" against the receiver's signatures and writes the delta to "deltaFile".
+	 * The source is read exactly once.
+	 *
+	 * @param source     Channel of the new version of the file.
+	 * @param signatures Block signatures of the receiver's copy.
+	 * @param deltaFile  Where the encoded delta is written.
+	 * @return MD5 of the new version of the file.
+	 */
+	public static byte[] compute(FileChannel source, BlockSignatures signatures, Path deltaFile) throws IOException {
+		int blockSize = signatures.getBlockSize();
+
+		// Weak checksum -> blocks having that checksum
+		Map<Integer, List<Integer>> blocks = new HashMap<>();
+		for (int i = 0; i < signatures.getBlockCount(); i++)
+			blocks.computeIfAbsent(signatures.getWeak(i), k -> new ArrayList<>(1)).add(i);
+
+		MessageDigest fileDigest = BlockSignatures.md5();
+		MessageDigest blockDigest = BlockSignatures.md5();
+		RollingChecksum checksum = new RollingChecksum();
+
+		source.position(0);
+		InputStream in = Channels.newInputStream(source);
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(deltaFile.toFile()), 1 << 16))) {
+			Delta delta = new Delta(out);
+			out.writeInt(blockSize);
+			out.writeLong(source.size());
+
+			byte[] buf = new byte[Math.max(blockSize * 4, 1 << 20)];
+			int start = 0;         // Start of the window
+			int end = 0;           // End of the valid data in "buf"
+			int literalStart = 0;  // Start of the bytes not yet matched
+			int window = 0;        // Length of the window the checksum covers
+			boolean eof = false;
+			boolean reset = true;
+
+			while (true) {
+				// Keep at least one byte after a full window so it can roll.
+				if (end - start <= blockSize && !eof) {
+					delta.literal(buf, literalStart, start - literalStart);
+					System.arraycopy(buf, start, buf, 0, end - start);
+					end -= start;
+					start = literalStart = 0;
+
+					int read;
+					while (end < buf.length && (read = in.read(buf, end, buf.length - end)) >= 0) {
+						fileDigest.update(buf, end, read);
+						end += read;
+					}
+					eof = end < buf.length;
+				}
+
+				if (reset) {
+					window = Math.min(blockSize, end - start);
+					checksum.reset(buf, start, window);
+					reset = false;
+				}
+				if (window == 0)
+					break;
+
+				int match = find(blocks, signatures, checksum.value(), buf, start, window, blockDigest);
+				if (match >= 0) {
+					delta.literal(buf, literalStart, start - literalStart);
+					delta.copy(match);
+					start += window;
+					literalStart = start;
+					reset = true;
+				} else if (window == blockSize && start + blockSize < end) {
+					checksum.roll(buf[start], buf[start + blockSize]);
+					start++;
+				} else {
+					// Tail of the file, the window can only shrink now.
+					checksum.drop(buf[start]);
+					start++;
+					window--;
+				}
+			}
+
+			delta.literal(buf, literalStart, end - literalStart);
+			delta.flushRun();
+			out.writeByte(END);
+
+			byte[] digest = fileDigest.digest();
+			out.write(digest);
+			return digest;
+		}
+	}
+
+	/**
+	 * @return Index of the receiver's block equal to "buf[start, start + length)" or -1.
+	 */
+	private static int find(Map<Integer, List<Integer>> blocks, BlockSignatures signatures, int weak,
+	                        byte[] buf, int start, int length, MessageDigest blockDigest) {
+		List<Integer> candidates = blocks.get(weak);
+		if (candidates == null)
+			return -1;
+
+		byte[] strong = null;
+		for (int block : candidates) {
+			if (signatures.getBlockLength(block) != length)
+				continue;
+			// Only hash when the weak checksum matches, which is rare.
+			if (strong == null) {
+				blockDigest.update(buf, start, length);
+				strong = blockDigest.digest();
+			}
+			if (Arrays.equals(strong, signatures.getStrong(block)))
+				return block;
+		}
+		return -1;
+	}
+
+	private void copy(int block) throws IOException {
+		if (runStart >= 0 && runStart + runCount == block) {
+			runCount++;
+			return;
+		}
+		flushRun();
+		runStart = block;
+		runCount = 1;
+	}
+
+	private void flushRun() throws IOException {
+		if (runStart < 0)
+			return;
+		out.writeByte(COPY);
+		out.writeInt(runStart);
+		out.writeInt(runCount);
+		runStart = -1;
+		runCount = 0;
+	}
+
+	private void literal(byte[] buf, int offset, int length) throws IOException {
+		if (length == 0)
+			return;
+		flushRun();
+		out.writeByte(LITERAL);
+		out.writeInt(length);
+		out.write(buf, offset, length);
+	}
+
+	/**
+	 * Rebuilds the new version of a file from the receiver's copy and a delta.
+	 *
+	 * @param basis     The receiver's (old) copy.
+	 * @param deltaFile The delta received from the sender.
+	 * @param target    Where the new version is written, it should not be
+	 *                  the basis itself, it is moved into place by the caller.
+	 * @return True if the result matches the sender's digest.
+	 */
+	public static boolean apply(Path basis, Path deltaFile, Path target) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(deltaFile.toFile()), 1 << 16));
+		     FileChannel basisChannel = FileChannel.open(basis, StandardOpenOption.READ);
+		     FileChannel targetChannel = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE,
+				     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			int blockSize = in.readInt();
+			long newLength = in.readLong();
+			long basisLength = basisChannel.size();
+			byte[] literal = new byte[1 << 16];
+
+			byte op;
+			while ((op = in.readByte()) != END) {
+				switch (op) {
+					case COPY:
+						long position = (long) in.readInt() * blockSize;
+						long count = Math.min((long) in.readInt() * blockSize, basisLength - position);
+						while (count > 0) {
+							long copied = basisChannel.transferTo(position, count, targetChannel);
+							position += copied;
+							count -= copied;
+						}
+						break;
+
+					case LITERAL:
+						int length = in.readInt();
+						while (length > 0) {
+							int chunk = Math.min(length, literal.length);
+							in.readFully(literal, 0, chunk);
+							ByteBuffer buffer = ByteBuffer.wrap(literal, 0, chunk);
+							while (buffer.hasRemaining())
+								targetChannel.write(buffer);
+							length -= chunk;
+						}
+						break;
+
+					default:
+						throw new IOException("Corrupted delta, unknown instruction: " + op);
+				}
+			}
+
+			byte[] expected = new byte[DIGEST_LENGTH];
+			in.readFully(expected);
+
+			// Forced to disk once it's moved into place (see "GroupCommit").
+			return targetChannel.size() == newLength
+					&& Arrays.equals(expected, controllers.Helpers.hashFile(targetChannel));
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package storage;
+
+import controllers.MessageReader;
+import controllers.MessageWriter;
+
+/**
+ * Sent to the other peers when a file is modified locally:
+ * "I have a new version of this file, here is its digest".
+ * Peers holding an older copy answer with their "BlockSignatures".
+ */
+public class DeltaOffer {
+	private static final int DIGEST_LENGTH = 16;
+
+	// Path of the file, relative to the root directory.
+	private String filename;
+
+	// MD5 of the new version.
+	private byte[] digest;
+
+	public DeltaOffer(String filename, byte[] digest) {
+		this.filename = filename;
+		this.digest = digest;
+	}
+
+	public void write(MessageWriter writer) {
+		writer.writeString(filename).writeRaw(digest);
+	}
+
+	public static DeltaOffer read(MessageReader reader) {
+		return new DeltaOffer(reader.readString(), reader.readRaw(DIGEST_LENGTH));
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public byte[] getDigest() {
+		return digest;
+	}
+}
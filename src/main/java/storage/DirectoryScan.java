@@ -0,0 +1,113 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Walks a directory tree with one fork/join task per directory,
+ * SSDs only reach their speed with many requests in flight.
+ * <p>
+ * Records the last modified time of each listed directory in the index.
+ */
+public class DirectoryScan extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	// More threads than cores, they mostly wait on the disk.
+	private static final ForkJoinPool pool = new ForkJoinPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+	private final Path directory;
+	private final String rootPath;
+	private final Collection<String> paths;
+	private final FileIndex index;
+
+	// Only descend into subdirectories the index doesn't know about.
+	private final boolean newOnly;
+
+	private DirectoryScan(Path directory, String rootPath, Collection<String> paths, FileIndex index, boolean newOnly) {
+		this.directory = directory;
+		this.rootPath = rootPath;
+		this.paths = paths;
+		this.index = index;
+		this.newOnly = newOnly;
+	}
+
+	/**
+	 * Scans the whole tree under "directory".
+	 *
+	 * @param rootPath The path of "directory" relative to the root directory.
+	 * @param paths    Filled with the relative path of each file, must be thread safe.
+	 */
+	public static void scan(Path directory, String rootPath, Collection<String> paths, FileIndex index) {
+		pool.invoke(new DirectoryScan(directory, rootPath, paths, index, false));
+	}
+
+	/**
+	 * Lists each of these directories, only descending into subdirectories
+	 * the index doesn't know about (known ones are checked on their own).
+	 *
+	 * @param root        The root directory.
+	 * @param directories Relative paths of the directories to list.
+	 * @param paths       Filled with the relative path of each file, must be thread safe.
+	 */
+	public static void list(Path root, Collection<String> directories, Collection<String> paths, FileIndex index) {
+		List<DirectoryScan> tasks = new ArrayList<>();
+		for (String directory : directories)
+			tasks.add(new DirectoryScan(root.resolve(directory.isEmpty() ? "" : directory.substring(1)),
+					directory, paths, index, true));
+		pool.invoke(new Batch(tasks));
+	}
+
+	/**
+	 * Runs scans in parallel from inside the pool, so they're forked to its other threads.
+	 */
+	private static class Batch extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<DirectoryScan> tasks;
+
+		private Batch(List<DirectoryScan> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			invokeAll(tasks);
+		}
+	}
+
+	/**
+	 * Runs "action" on each item in parallel, for per file work like stat or hashing.
+	 */
+	public static void forEach(Collection<String> items, Consumer<String> action) {
+		pool.submit(() -> items.parallelStream().forEach(action)).join();
+	}
+
+	@Override
+	protected void compute() {
+		index.putDirectory(rootPath, directory.toFile().lastModified());
+
+		List<DirectoryScan> subdirectories = new ArrayList<>();
+		try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+			for (Path child : children) {
+				String childPath = rootPath + "/" + child.getFileName();
+
+				if (!Files.isDirectory(child))
+					paths.add(childPath);
+				else if (!newOnly || index.getDirectory(childPath) == null)
+					subdirectories.add(new DirectoryScan(child, childPath, paths, index, false));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		invokeAll(subdirectories);
+	}
+}
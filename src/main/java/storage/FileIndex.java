@@ -0,0 +1,238 @@
+package storage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Persistent catalog of the files in "userDir": size, last modified time and
+ * content hash of every file, and the last modified time of every directory.
+ * <p>
+ * On startup a file whose size and last modified time still match its entry
+ * doesn't need to be hashed again, and a directory whose last modified time
+ * still matches doesn't need to be listed again (files added to or removed
+ * from a directory change its last modified time).
+ * <p>
+ * Stored as an append-only log of records, replayed on load,
+ * and rewritten when most of it is outdated.
+ */
+public class FileIndex {
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte PUT_DIRECTORY = 3;
+	private static final byte REMOVE_DIRECTORY = 4;
+
+	private static final int DIGEST_LENGTH = 16;
+
+	private final Path file;
+	private DataOutputStream log;
+
+	private final Map<String, Entry> files = new HashMap<>();
+
+	// Directory path -> last modified time
+	private final Map<String, Long> directories = new HashMap<>();
+
+	// Records in the log, compared to the live entries to decide when to rewrite it.
+	private int records = 0;
+
+	public static class Entry {
+		public final long size;
+		public final long lastModified;
+		public final byte[] hash;
+
+		Entry(long size, long lastModified, byte[] hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+
+		/**
+		 * @return True if the file didn't change since it was indexed.
+		 */
+		public boolean matches(File file) {
+			return file.length() == size && file.lastModified() == lastModified;
+		}
+	}
+
+	private FileIndex(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Loads the index, or creates an empty one the first time.
+	 *
+	 * @param file Where the index is stored.
+	 */
+	public static FileIndex open(Path file) throws IOException {
+		FileIndex index = new FileIndex(file);
+		file.getParent().toFile().mkdirs();
+
+		boolean torn = false;
+		if (Files.exists(file)) {
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file.toFile()), 1 << 16))) {
+				while (true) {
+					int op = in.read();
+					if (op < 0)
+						break;
+					index.replay((byte) op, in);
+					index.records++;
+				}
+			} catch (EOFException e) {
+				// The last record was cut short by a crash, it's dropped by the rewrite below.
+				torn = true;
+			}
+		}
+
+		if (torn || index.records > 2 * (index.files.size() + index.directories.size()) + 1024)
+			index.compact();
+		else
+			index.log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile(), true), 1 << 16));
+
+		return index;
+	}
+
+	private void replay(byte op, DataInputStream in) throws IOException {
+		String path = in.readUTF();
+		switch (op) {
+			case PUT:
+				long size = in.readLong();
+				long lastModified = in.readLong();
+				byte[] hash = new byte[DIGEST_LENGTH];
+				in.readFully(hash);
+				files.put(path, new Entry(size, lastModified, hash));
+				break;
+			case REMOVE:
+				files.remove(path);
+				break;
+			case PUT_DIRECTORY:
+				directories.put(path, in.readLong());
+				break;
+			case REMOVE_DIRECTORY:
+				directories.remove(path);
+				break;
+			default:
+				throw new EOFException("Unknown record " + op);
+		}
+	}
+
+	public synchronized Entry get(String path) {
+		return files.get(path);
+	}
+
+	public synchronized void put(String path, long size, long lastModified, byte[] hash) {
+		files.put(path, new Entry(size, lastModified, hash));
+		try {
+			log.writeByte(PUT);
+			log.writeUTF(path);
+			log.writeLong(size);
+			log.writeLong(lastModified);
+			log.write(hash);
+			records++;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized void remove(String path) {
+		if (files.remove(path) != null)
+			append(REMOVE, path);
+	}
+
+	/**
+	 * @return Last modified time of the directory when it was last listed, or null.
+	 */
+	public synchronized Long getDirectory(String path) {
+		return directories.get(path);
+	}
+
+	public synchronized void putDirectory(String path, long lastModified) {
+		Long previous = directories.put(path, lastModified);
+		if (previous != null && previous == lastModified)
+			return;
+		try {
+			log.writeByte(PUT_DIRECTORY);
+			log.writeUTF(path);
+			log.writeLong(lastModified);
+			records++;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized void removeDirectory(String path) {
+		if (directories.remove(path) != null)
+			append(REMOVE_DIRECTORY, path);
+	}
+
+	private void append(byte op, String path) {
+		try {
+			log.writeByte(op);
+			log.writeUTF(path);
+			records++;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return A copy of the indexed file paths.
+	 */
+	public synchronized Collection<String> files() {
+		return new ArrayList<>(files.keySet());
+	}
+
+	/**
+	 * @return A copy of the indexed directory paths.
+	 */
+	public synchronized Collection<String> directories() {
+		return new ArrayList<>(directories.keySet());
+	}
+
+	public synchronized boolean isEmpty() {
+		return files.isEmpty() && directories.isEmpty();
+	}
+
+	/**
+	 * Writes the buffered records to disk, called after each batch of changes.
+	 */
+	public synchronized void flush() {
+		try {
+			log.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (records > 2 * (files.size() + directories.size()) + 1024)
+			compact();
+	}
+
+	/**
+	 * Rewrites the log with only the live entries, then atomically replaces the old one.
+	 */
+	private void compact() {
+		try {
+			if (log != null)
+				log.close();
+
+			Path rewritten = file.resolveSibling(file.getFileName() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(rewritten.toFile()), 1 << 16))) {
+				log = out;
+				records = 0;
+				Map<String, Long> liveDirectories = new HashMap<>(directories);
+				Map<String, Entry> liveFiles = new HashMap<>(files);
+				directories.clear();
+				files.clear();
+				liveDirectories.forEach(this::putDirectory);
+				liveFiles.forEach((path, entry) -> put(path, entry.size, entry.lastModified, entry.hash));
+			}
+			Files.move(rewritten, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile(), true), 1 << 16));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -1,17 +1,29 @@
 package storage;
 
 import controllers.Helpers;
+import controllers.IoExecutor;
+import controllers.MessageReader;
+import controllers.MessageType;
+import controllers.MessageWriter;
+import controllers.Metrics;
 import controllers.Node;
 import de.tum.in.www1.jReto.RemotePeer;
 import io.methvin.watcher.DirectoryWatcher;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
@@ -33,6 +45,9 @@ public class FileManager {
 	// The user directory
 	private String userDir;
 
+	// Holds partial files and deltas, outside "userDir" so the watcher doesn't see them
+	private String tempDir;
+
 	// Username of the current user, used to username the root directory
 	private String username;
 
@@ -42,35 +57,149 @@ public class FileManager {
 	 * "folder1/foldergwah/filekda.txt",
 	 * "file_fel_root.mp3"
 	 * }
+	 * Concurrent, peer connections look it up without the lock.
 	 */
 	private Collection<String> fileList;
 
+	// Same files as "fileList", as a tree of hashes so peers can compare them top-down.
+	private MerkleTree merkleTree;
+
+	// Size, last modified time and hash of each file, persisted so a restart doesn't rescan everything.
+	private FileIndex index;
+
+	// Same files by their hash, to find a local copy of a file's content.
+	private ContentIndex contents = new ContentIndex();
+
+	// Numbered changes to my files, so peers that were away only ask for what they missed.
+	private ChangeJournal journal;
+
+	// Peer -> id of its journal, sent with its username.
+	private Map<UUID, UUID> peerJournals = new ConcurrentHashMap<>();
+
+	// Peer -> the changes of its journal I'm getting, my mark of its journal only moves once they're all here.
+	private Map<UUID, CatchUp> catchUps = new ConcurrentHashMap<>();
+
+	private static class CatchUp {
+		final UUID journal;
+		final Set<String> pending = new HashSet<>();
+
+		// Number of its last change, set with the last batch.
+		long seq = -1;
+
+		CatchUp(UUID journal) {
+			this.journal = journal;
+		}
+	}
+
+	// Version of every file, and the tombstones of the deleted ones (see "Version").
+	private VersionStore versions;
+
+	// Versions peers announced whose content is on its way, set once it's here.
+	private Map<String, Version> incomingVersions = new ConcurrentHashMap<>();
+
+	// Max number of changes in a "JOURNAL_ENTRIES" msg.
+	private static final int JOURNAL_BATCH = 1024;
+
+	// Max peers I send a new file to myself, they relay it to the others (-Ddrds.relay.fanout, 0 to send it to all).
+	private static final int RELAY_FANOUT = Integer.getInteger("drds.relay.fanout", 2);
+
+	// Filename -> peers I relay it to once I have it.
+	private Map<String, List<UUID>> relays = new ConcurrentHashMap<>();
+
+	// Placeholders of the files whose content I don't keep, and the least recently used of the others.
+	private ContentCache cache;
+
+	// Peers that only keep the content of some files, they're only told about new ones.
+	private Set<UUID> selectivePeers = ConcurrentHashMap.newKeySet();
+
+	// Placeholders being fetched because they were opened -> completed once the file is here.
+	private Map<String, CompletableFuture<Path>> fetches = new ConcurrentHashMap<>();
+
+	// Small placeholders being fetched -> the peer asked for the file, the first one that has it.
+	private Map<String, UUID> fetchingFrom = new ConcurrentHashMap<>();
+
+	// Files about to be evicted -> the peers that have them, see "evictOverQuota()".
+	private Map<String, Eviction> evictions = new ConcurrentHashMap<>();
+
+	// How long the peers have to answer before the files to evict are picked again.
+	private static final long EVICTION_TIMEOUT_MS = 30000;
+
+	private static class Eviction {
+		final byte[] digest;
+		final long since = System.currentTimeMillis();
+		final Set<UUID> holders = new HashSet<>();
+
+		Eviction(byte[] digest) {
+			this.digest = digest;
+		}
+	}
+
 	/**
 	 * Holds all files received via the current session (to avoid resending them again by the watcher)
+	 * Added to from the "IoExecutor" and read by the watcher, so it's concurrent.
 	 */
 	private Collection<String> receivedFiles;
 
-	// The file lists of the other computers I am logged in
-	private Map<UUID, Collection<String>> peerFileLists;
+	/**
+	 * Files currently being written by a transfer, their modifications are not ours to broadcast.
+	 */
+	private Collection<String> incomingFiles;
+
+	// Files being pulled in ranges from several peers, by path
+	private Map<String, SwarmDownload> downloads;
+
+	// Files being received whole from a peer, kept when a transfer is cut off (see "PartialFile").
+	private Map<String, PartialFile> partials;
+
+	// Moves the received files into place, fsynced in batches.
+	private GroupCommit commits = new GroupCommit();
+
+	// Filename -> when I first heard of the version I don't have yet, for "Metrics".
+	private Map<String, Long> pendingSince = new ConcurrentHashMap<>();
+
+	// Peer -> start and number of unanswered "MERKLE_REQUEST"s of the current sync round with it.
+	private final Map<UUID, long[]> syncRounds = new HashMap<>();
 
 	private Node node;
 
 	private Thread watcherThread;
 
+	// Debounces and coalesces the watcher events.
+	private ChangePipeline changePipeline;
+
 	private FileManager() {
-		this.fileList = new HashSet<>();
-		this.peerFileLists = new HashMap<>();
-		this.receivedFiles = new HashSet<>();
+		this.fileList = ConcurrentHashMap.newKeySet();
+		this.merkleTree = new MerkleTree();
+		this.receivedFiles = ConcurrentHashMap.newKeySet();
+		this.incomingFiles = Collections.synchronizedSet(new HashSet<>());
+		this.downloads = new ConcurrentHashMap<>();
+		this.partials = new HashMap<>();
 		this.node = Node.getInstance();
 		this.username = node.getUsername();
 
 		//set new dir.
 		this.userDir = root + "/" + username;
+		this.tempDir = root + "/.tmp/" + username;
 
 		//create directories if doesn't exist yet (if 1st run)
 		File directory = new File(userDir);
 		if (!directory.exists())
 			directory.mkdirs();
+		new File(tempDir).mkdirs();
+
+		try {
+			this.index = FileIndex.open(Paths.get(root, ".meta", username, "index"));
+			this.journal = ChangeJournal.open(Paths.get(root, ".meta", username, "journal"));
+			this.versions = VersionStore.open(Paths.get(root, ".meta", username, "versions"));
+			this.cache = new ContentCache(Paths.get(userDir), Paths.get(root, ".placeholders", username));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		changePipeline = new ChangePipeline(userDir, this::isInFileList, incomingFiles::contains,
+				this::applyChanges, 500);
+		changePipeline.start();
+		Metrics.getInstance().setWatcherQueue(changePipeline::getQueueDepth);
 
 		//Start thread.
 		watcherThread = new Thread(() -> {
@@ -83,6 +212,10 @@ public class FileManager {
 		});
 		watcherThread.start();
 
+		// The deleted files, so that peers that still have them delete them too.
+		for (String path : versions.tombstones())
+			merkleTree.add(path, versions.get(path));
+
 		//populate fileLists.
 		checkout();
 	}
@@ -104,48 +237,375 @@ public class FileManager {
 	}
 
 	/**
-	 * Serializes fileList and broadcasts it to all
-	 * peers with your username.
+	 * Same as "setRootDir()" with an absolute path, e.g. for the benchmarks.
+	 * Has to be called before the first "getInstance()".
 	 */
-	private void sendFileList() {
-		byte[] bytes = Helpers.serialize(fileList);
-		node.broadcastToUser(username, (byte) 1, bytes);
+	public static void setRootDir(String directory) {
+		root = directory;
 	}
 
 	/**
-	 * Receive the file list of a peer and compare it with mine.
-	 * TBH I can't remember why I store it in "peerFileLists" first
-	 * instead of just sending it to the "compareWithPeer()" directly.
+	 * Receive one level of a peer's Merkle tree and compare it with mine,
+	 * send it the files it's missing, the deltas of the ones it has an older version of
+	 * and the deletes it missed, and ask for the levels below where we still differ.
+	 * The files sent are hashed on the way, on the "IoExecutor".
 	 *
-	 * @param peerUUID UUID of the peer sending the file list
-	 * @param data     The serialized file list
+	 * @param peerUUID UUID of the peer sending the listing
+	 * @param msg      The msg holding a "MerkleListing"
 	 */
-	public void receiveFileList(UUID peerUUID, byte[] data) {
-		Collection<String> fileList = (Collection<String>) Helpers.deserialize(data);
-		peerFileLists.put(peerUUID, fileList);
+	public void receiveFileList(UUID peerUUID, MessageReader msg) {
+		MerkleListing listing = MerkleListing.read(msg);
+		IoExecutor.execute(() -> compareListing(peerUUID, listing));
+	}
+
+	private void compareListing(UUID peerUUID, MerkleListing listing) {
 		try {
-			sendFiles(peerUUID, compareWithPeer(peerUUID));
+			List<String> missing = new ArrayList<>();
+			List<String> newer = new ArrayList<>();
+			List<String> versionsOnly = new ArrayList<>();
+			List<String> different = new ArrayList<>();
+			merkleTree.compare(listing, missing, newer, versionsOnly, different);
+
+			sendFiles(peerUUID, missing);
+			for (String filePath : newer) {
+				// Only a placeholder, the peers that have it send it.
+				if (!hasContent(filePath))
+					continue;
+				sendVersion(peerUUID, filePath);
+				node.sendToPeer(peerUUID, encodeOffer(filePath));
+			}
+			for (String filePath : versionsOnly)
+				sendVersion(peerUUID, filePath);
+			syncRoundStep(peerUUID, listing.getPath().isEmpty(), different.size());
+
+			for (String directory : different)
+				node.sendToPeer(peerUUID, new MessageWriter(MessageType.MERKLE_REQUEST).writeString(directory).finish());
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Compare my file list with the file list of another peer,
-	 * get the files that I have and he does NOT and send them to him.
-	 * PS: I don't think it waits for the file to be sent before sending another,
-	 * because jReto sending function is a runnable and we just loop here,
-	 * what a big TODO.
+	 * A sync round with a peer starts with its root listing and ends
+	 * when all the levels I asked for came back.
 	 *
-	 * @param peerUUID UUID of the other peer.
+	 * @param root      True if the listing received is the root one.
+	 * @param requested Number of levels asked for after this listing.
+	 */
+	private void syncRoundStep(UUID peerUUID, boolean root, int requested) {
+		long now = System.nanoTime();
+		synchronized (syncRounds) {
+			long[] round = syncRounds.get(peerUUID);
+			if (root || round == null) {
+				round = new long[]{now, 0};
+				syncRounds.put(peerUUID, round);
+			} else {
+				round[1]--;
+			}
+			round[1] += requested;
+
+			if (round[1] <= 0) {
+				syncRounds.remove(peerUUID);
+				Metrics.getInstance().getSyncRound().record(now - round[0]);
+			}
+		}
+	}
+
+	/**
+	 * A new version of this file is on its way, see "converged()".
+	 */
+	private void pending(String filename) {
+		pendingSince.putIfAbsent(filename, System.nanoTime());
+	}
+
+	/**
+	 * I have the latest version of this file I heard of.
+	 */
+	private void converged(String filename) {
+		Version version = incomingVersions.remove(filename);
+		if (version != null)
+			setVersion(filename, version);
+
+		Long since = pendingSince.remove(filename);
+		if (since != null)
+			Metrics.getInstance().getConvergence().record(System.nanoTime() - since);
+
+		for (Map.Entry<UUID, CatchUp> entry : catchUps.entrySet()) {
+			boolean done;
+			synchronized (entry.getValue()) {
+				done = entry.getValue().pending.remove(filename);
+			}
+			if (done)
+				caughtUp(entry.getKey(), entry.getValue());
+		}
+
+		fetchingFrom.remove(filename);
+		CompletableFuture<Path> fetch = fetches.remove(filename);
+		if (fetch != null)
+			fetch.complete(Paths.get(userDir, filename));
+
+		forward(filename);
+	}
+
+	/**
+	 * A peer's hash of this directory differs from mine, send it the directory's listing.
+	 *
+	 * @param peerUUID UUID of the peer asking
+	 * @param msg      The msg holding the path of the directory
+	 */
+	public void receiveFileListRequest(UUID peerUUID, MessageReader msg) {
+		node.sendToPeer(peerUUID, encodeListing(msg.readString()));
+	}
+
+	/**
+	 * Asks a peer for its changes after the last one I've seen,
+	 * 0 if I never asked it before, it then compares our Merkle trees instead.
 	 */
-	private List<String> compareWithPeer(UUID peerUUID) {
-		// difference contains all the files that I have but this peer doesn't have
-		return fileList.stream().filter(x -> !peerFileLists.get(peerUUID).contains(x)).collect(Collectors.toList());
+	private void requestJournal(UUID peerUUID) {
+		UUID peerJournal = peerJournals.get(peerUUID);
+		Long mark = peerJournal == null ? null : journal.getMark(peerJournal);
+		node.sendToPeer(peerUUID, new MessageWriter(MessageType.JOURNAL_REQUEST)
+				.writeVarLong(mark == null ? 0 : mark + 1)
+				.finish());
+	}
+
+	/**
+	 * A peer asks for my changes from a sequence number on, send it the current version
+	 * of each file changed since, in batches. If these changes aren't in my journal anymore,
+	 * ask it for its Merkle tree instead, I then send it what it's missing.
+	 * Either way the last batch tells it the number of my last change, for next time.
+	 * Forcing the journal waits for the disk, so it's done on the "IoExecutor".
+	 *
+	 * @param peerUUID UUID of the peer asking
+	 * @param msg      The msg holding the sequence number of the first change it's missing
+	 */
+	public void receiveJournalRequest(UUID peerUUID, MessageReader msg) {
+		long from = msg.readVarLong();
+		IoExecutor.execute(() -> sendJournal(peerUUID, from));
+	}
+
+	private void sendJournal(UUID peerUUID, long from) {
+		// On disk before the peer marks it, so a crash doesn't give these numbers to other changes.
+		long seq = journal.force();
+		Map<String, Byte> changes = from > 0 ? journal.since(from - 1) : null;
+		if (changes == null) {
+			changes = Collections.emptyMap();
+			node.sendToPeer(peerUUID, new MessageWriter(MessageType.MERKLE_REQUEST).writeString("").finish());
+		}
+
+		List<String> batch = new ArrayList<>(JOURNAL_BATCH);
+		List<Version> batchVersions = new ArrayList<>(JOURNAL_BATCH);
+		Iterator<String> paths = changes.keySet().iterator();
+		do {
+			batch.clear();
+			batchVersions.clear();
+			while (paths.hasNext() && batch.size() < JOURNAL_BATCH) {
+				String path = paths.next();
+				// Null if it's a tombstone past the horizon.
+				Version version = versions.get(path);
+				// Only a placeholder, the peers that have it send it.
+				if (version == null || cache.isPlaceholder(path))
+					continue;
+				batch.add(path);
+				batchVersions.add(version);
+			}
+
+			MessageWriter writer = new MessageWriter(MessageType.JOURNAL_ENTRIES, 64 + batch.size() * 96)
+					.writeString(journal.getId().toString())
+					.writeVarLong(seq)
+					.writeBoolean(!paths.hasNext())
+					.writeVarInt(batch.size());
+			for (int i = 0; i < batch.size(); i++) {
+				writer.writeString(batch.get(i));
+				batchVersions.get(i).write(writer);
+				if (!batchVersions.get(i).isDeleted())
+					writer.writeVarLong(new File(userDir, batch.get(i)).length());
+			}
+			node.sendToPeer(peerUUID, writer.finish());
+		} while (paths.hasNext());
 	}
 
 	/**
-	 * Just sends a file to this peer.
+	 * A batch of a peer's changes since I last asked, the versions that beat mine are applied:
+	 * deletes right away, I get the files I don't have and the deltas of the ones I have.
+	 * My mark of its journal moves forward once the last batch came and all of these files are here,
+	 * if one of them can't be had the whole trees are compared instead (see "caughtUp()").
+	 *
+	 * @param peerUUID UUID of the peer that sent its changes
+	 * @param msg      The msg holding the changes
+	 */
+	public void receiveJournalEntries(UUID peerUUID, MessageReader msg) {
+		UUID peerJournal = UUID.fromString(msg.readString());
+		long seq = msg.readVarLong();
+		boolean last = msg.readBoolean();
+		CatchUp catchUp = catchUps.compute(peerUUID,
+				(peer, current) -> current != null && current.journal.equals(peerJournal) ? current : new CatchUp(peerJournal));
+		for (int i = msg.readVarInt(); i > 0; i--) {
+			String filename = msg.readString();
+			Version version = Version.read(msg);
+			long size = version.isDeleted() ? 0 : msg.readVarLong();
+
+			// Already on its way, e.g. asked to another peer with the same change.
+			if (pendingSince.containsKey(filename) || incomingFiles.contains(filename))
+				continue;
+			if (!acceptVersion(filename, version))
+				continue;
+			synchronized (catchUp) {
+				catchUp.pending.add(filename);
+			}
+			if (!isInFileList(filename))
+				fetch(peerUUID, filename, size, version.getDigest());
+			else if (!requestDelta(peerUUID, new DeltaOffer(filename, version.getDigest())))
+				failed(filename);
+		}
+
+		if (last) {
+			synchronized (catchUp) {
+				catchUp.seq = seq;
+			}
+			caughtUp(peerUUID, catchUp);
+		}
+	}
+
+	/**
+	 * Moves my mark of a peer's journal forward if all its changes I asked for are here.
+	 */
+	private void caughtUp(UUID peerUUID, CatchUp catchUp) {
+		synchronized (catchUp) {
+			if (catchUp.seq < 0 || !catchUp.pending.isEmpty())
+				return;
+		}
+		if (catchUps.remove(peerUUID, catchUp))
+			journal.setMark(catchUp.journal, catchUp.seq);
+	}
+
+	/**
+	 * A file I was getting can't be had (e.g. corrupt, or my copy changed meanwhile).
+	 * If it's one of a peer's changes I'm catching up with, my mark of its journal stays
+	 * where it was and I send the peer my Merkle tree, it sends me whatever I'm missing.
+	 */
+	private void failed(String filename) {
+		for (Map.Entry<UUID, CatchUp> entry : catchUps.entrySet()) {
+			CatchUp catchUp = entry.getValue();
+			synchronized (catchUp) {
+				if (!catchUp.pending.contains(filename))
+					continue;
+			}
+			if (catchUps.remove(entry.getKey(), catchUp))
+				node.sendToPeer(entry.getKey(), encodeListing(""));
+		}
+	}
+
+	private ByteBuffer encodeListing(String directory) {
+		MerkleListing listing = merkleTree.list(directory);
+		MessageWriter writer = new MessageWriter(MessageType.MERKLE_LISTING, 64 + listing.size() * 48);
+		listing.write(writer);
+		return writer.finish();
+	}
+
+	/**
+	 * Tells a peer the version of a file, before its content, or alone if it was deleted.
+	 */
+	private void sendVersion(UUID peerUUID, String filePath) {
+		Version version = versions.get(filePath);
+		if (version != null)
+			node.sendToPeer(peerUUID, encodeVersion(filePath, version));
+	}
+
+	private static ByteBuffer encodeVersion(String filePath, Version version) {
+		MessageWriter writer = new MessageWriter(MessageType.VERSION).writeString(filePath);
+		version.write(writer);
+		return writer.finish();
+	}
+
+	private ByteBuffer encodeOffer(String filePath) {
+		MessageWriter writer = new MessageWriter(MessageType.DELTA_OFFER);
+		new DeltaOffer(filePath, fileDigest(filePath)).write(writer);
+		return writer.finish();
+	}
+
+	/**
+	 * A peer's version of a file, sent before its content, or alone if it was deleted.
+	 *
+	 * @param peerUUID UUID of the peer sending it
+	 * @param msg      The msg holding the filename and the "Version"
+	 */
+	public void receiveVersion(UUID peerUUID, MessageReader msg) {
+		String filename = msg.readString();
+		acceptVersion(filename, Version.read(msg));
+	}
+
+	/**
+	 * Compares a peer's version of a file with mine: if it beats mine, a delete is applied
+	 * and a content is expected, anything else sent for this file is refused (see "isStale()").
+	 *
+	 * @return True if I should get the content of this version.
+	 */
+	private synchronized boolean acceptVersion(String filename, Version theirs) {
+		Version mine = versions.get(filename);
+		if (!theirs.beats(mine)) {
+			// The same content counted differently, e.g. both had the file before it had a version.
+			if (theirs.sameContent(mine) && theirs.compare(mine) != Version.EQUAL)
+				setVersion(filename, mine.merge(theirs));
+			return false;
+		}
+
+		Version merged = theirs.merge(mine);
+		if (theirs.isDeleted()) {
+			// Set before the file is gone, so the watcher doesn't take it as my delete.
+			setVersion(filename, merged);
+			if (isInFileList(filename))
+				delete(filename);
+			else
+				cache.deletePlaceholder(filename);
+			return false;
+		}
+
+		if (isInFileList(filename) && Arrays.equals(fileDigest(filename), theirs.getDigest())) {
+			setVersion(filename, merged);
+			return false;
+		}
+
+		// Only a placeholder, the new version is fetched if it's opened.
+		if (!isInFileList(filename) && !fetches.containsKey(filename) && cache.isPlaceholder(filename)) {
+			setVersion(filename, merged);
+			return false;
+		}
+		incomingVersions.put(filename, merged);
+		return true;
+	}
+
+	/**
+	 * @return True if I have a version of this file and no peer announced one that beats it,
+	 * what a peer sends of it is older than what I have.
+	 */
+	public boolean isStale(String filename) {
+		return versions.get(filename) != null && !incomingVersions.containsKey(filename);
+	}
+
+	private synchronized void setVersion(String filePath, Version version) {
+		versions.put(filePath, version);
+		merkleTree.add(filePath, version);
+	}
+
+	/**
+	 * Deletes a file a peer deleted, it goes to the trash in case it was moved (see "ContentIndex").
+	 */
+	private void delete(String filename) {
+		try {
+			byte[] digest = fileDigest(filename);
+			Path trash = newTempFile();
+			Files.move(Paths.get(userDir, filename), trash, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			contents.trash(digest, trash);
+			System.out.println("File Deleted! Removed: " + filename);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Just queues a file to be sent to this peer.
 	 *
 	 * @param peerUUID UUID of the other peer.
 	 * @param filePath Path of the file to be sent, relative to the root directory,
@@ -153,167 +613,1084 @@ public class FileManager {
 	 */
 	private void sendFile(UUID peerUUID, String filePath) {
 		try {
-			Path path = Paths.get(userDir, filePath);
-			FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ);
-			node.sendFile(peerUUID, fileChannel, filePath, (int) fileChannel.size());
+			node.sendFile(peerUUID, filePath, Paths.get(userDir, filePath), 0);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Small files are pushed, big ones are only announced so that the peer
+	 * pulls them from all the peers that have them at once (see "SwarmDownload").
+	 * Files whose content I have under another path too (e.g. moved or copied)
+	 * are only announced with their hash, the peer most likely has that content already,
+	 * same for all the files if the peer only keeps some (see "ContentCache").
+	 * I don't send the files I only have a placeholder of.
+	 */
 	private void sendFiles(UUID peerUUID, List<String> filePaths) {
-		for (String filePath : filePaths)
-			sendFile(peerUUID, filePath);
+		for (String filePath : filePaths) {
+			// Also the ones just received that the watcher didn't add yet, e.g. relayed.
+			if (!hasContent(filePath))
+				continue;
+			long size = new File(userDir, filePath).length();
+			byte[] digest = fileDigest(filePath);
+			sendVersion(peerUUID, filePath);
+			if (selectivePeers.contains(peerUUID) || contents.hasCopy(filePath, digest))
+				node.sendToPeer(peerUUID, new MessageWriter(MessageType.MATERIALIZE)
+						.writeString(filePath)
+						.writeVarLong(size)
+						.writeBytes(digest)
+						.finish());
+			else if (size >= SwarmDownload.MIN_SWARM_SIZE)
+				node.sendToPeer(peerUUID, new MessageWriter(MessageType.FILE_AVAILABLE)
+						.writeString(filePath)
+						.writeVarLong(size)
+						.writeBytes(digest)
+						.finish());
+			else
+				sendFile(peerUUID, filePath);
+		}
+
+		if (!filePaths.isEmpty())
+			System.out.println("Queued " + filePaths.size() + " files for " + peerUUID
+					+ ", " + node.getQueueDepth(peerUUID) + " waiting.");
+	}
+
+	/**
+	 * A peer has a file I'm missing, start pulling it in ranges,
+	 * or add the peer to the ones it's already being pulled from.
+	 *
+	 * @param peerUUID UUID of the peer that has the file.
+	 * @param msg      The msg holding the filename, its size and its hash.
+	 */
+	public void receiveFileAvailable(UUID peerUUID, MessageReader msg) {
+		String filename = msg.readString();
+		long size = msg.readVarLong();
+		byte[] digest = msg.readBytes();
+		if (isInFileList(filename) || isStale(filename))
+			return;
+
+		if (ContentCache.isEnabled() && !fetches.containsKey(filename))
+			placeholder(filename, size);
+		else
+			download(peerUUID, filename, size, digest);
+	}
+
+	/**
+	 * @param digest Hash of the content the peer has, it's only pulled from the peers with the same one.
+	 */
+	private void download(UUID peerUUID, String filename, long size, byte[] digest) {
+		SwarmDownload download;
+		synchronized (downloads) {
+			download = downloads.get(filename);
+			if (download != null && !download.hasDigest(digest)) {
+				// Another version, the one I took the version of wins, the other peers catch up later.
+				Version version = versions.get(filename);
+				if (version == null || !Arrays.equals(version.getDigest(), digest))
+					return;
+				downloads.remove(filename);
+				download.discard();
+				download = null;
+			}
+			if (download == null) {
+				try {
+					download = new SwarmDownload(filename, size, digest, newTempFile());
+				} catch (IOException e) {
+					e.printStackTrace();
+					return;
+				}
+				downloads.put(filename, download);
+				pending(filename);
+				System.out.println("Downloading " + filename + " (" + size + " bytes) from the swarm.");
+			}
+		}
+		requestRanges(peerUUID, download, download.addPeer(peerUUID));
+	}
+
+	private void requestRanges(UUID peerUUID, SwarmDownload download, List<Integer> ranges) {
+		for (int range : ranges)
+			node.sendToPeer(peerUUID, new MessageWriter(MessageType.RANGE_REQUEST)
+					.writeString(download.getFilename())
+					.writeVarLong(download.getOffset(range))
+					.writeVarInt(download.getLength(range))
+					.finish());
+	}
+
+	/**
+	 * A peer pulling a file from the swarm asks me for a range of it.
+	 *
+	 * @param peerUUID UUID of the peer asking.
+	 * @param msg      The msg holding the filename, offset and length of the range.
+	 */
+	public void receiveRangeRequest(UUID peerUUID, MessageReader msg) {
+		String filename = msg.readString();
+		long offset = msg.readVarLong();
+		int length = msg.readVarInt();
+		// Evicted since I announced it.
+		if (!hasContent(filename))
+			return;
+		try {
+			FileChannel fileChannel = FileChannel.open(Paths.get(userDir, filename), StandardOpenOption.READ);
+			node.sendRange(peerUUID, fileChannel, filename, offset, length);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * A range transfer ended, ask the same peer for the next one,
+	 * or move the file into place if it was the last one and its hash is the one announced.
+	 * Otherwise (e.g. a peer's copy changed while it was sending ranges) the ranges are dropped
+	 * and the whole file is asked for from this peer, checked like any other (see "PartialFile").
+	 *
+	 * @param completed False if the transfer was cancelled or failed.
+	 */
+	public void rangeReceived(UUID peerUUID, SwarmDownload download, int range, boolean completed) {
+		// Replaced by a download of another version.
+		if (downloads.get(download.getFilename()) != download)
+			return;
+		List<Integer> next = download.rangeEnded(peerUUID, range, completed);
+		if (!download.isComplete()) {
+			requestRanges(peerUUID, download, next);
+			return;
+		}
+
+		// The last range may arrive from two peers in the endgame, only finish once.
+		if (!downloads.remove(download.getFilename(), download))
+			return;
+
+		try {
+			Path path = Paths.get(userDir, download.getFilename());
+			Path partialFile = download.finish();
+			byte[] digest;
+			try (FileChannel fileChannel = FileChannel.open(partialFile, StandardOpenOption.READ)) {
+				digest = Helpers.hashFile(fileChannel);
+			}
+			if (!download.hasDigest(digest)) {
+				System.out.println("Received a corrupt copy of " + download.getFilename()
+						+ " from the swarm, asking for all of it.");
+				Files.deleteIfExists(partialFile);
+				node.sendToPeer(peerUUID, new MessageWriter(MessageType.RESUME_REQUEST)
+						.writeString(download.getFilename())
+						.writeVarLong(0)
+						.writeBytes(download.getDigest())
+						.finish());
+				return;
+			}
+			path.getParent().toFile().mkdirs();
+
+			//Add files received via network to this list (so it won't be re-broadcast-ed by the watcher).
+			receivedFiles.add(download.getFilename());
+			commits.submit(partialFile, path, () -> {
+				System.out.println("Downloaded " + download.getFilename() + " from the swarm.");
+				converged(download.getFilename());
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * My transfer of a range from this peer was stopped because my disk was behind, ask it for ranges again.
+	 */
+	public void resumeRanges(UUID peerUUID, SwarmDownload download) {
+		if (downloads.get(download.getFilename()) == download)
+			requestRanges(peerUUID, download, download.addPeer(peerUUID));
+	}
+
+	/**
+	 * A peer has a file with content I may already have under another path,
+	 * copy it from there, otherwise ask the peer for the file itself.
+	 *
+	 * @param peerUUID UUID of the peer that has the file.
+	 * @param msg      The msg holding the filename, its size and its hash.
+	 */
+	public void receiveMaterialize(UUID peerUUID, MessageReader msg) {
+		String filename = msg.readString();
+		long size = msg.readVarLong();
+		byte[] digest = msg.readBytes();
+		if (isInFileList(filename) || isStale(filename))
+			return;
+
+		fetch(peerUUID, filename, size, digest);
+	}
+
+	/**
+	 * Gets a file I don't have from a local copy of its content, or from the peer,
+	 * or only keeps a placeholder of it if I don't keep all the files.
+	 */
+	private void fetch(UUID peerUUID, String filename, long size, byte[] digest) {
+		pending(filename);
+		// Copying can take a while, and it's not the network's business.
+		IoExecutor.execute(() -> {
+			if (materialize(filename, size, digest))
+				return;
+			// Unless it was opened, then that version is fetched.
+			if (ContentCache.isEnabled() && !fetches.containsKey(filename))
+				placeholder(filename, size);
+			else if (size >= SwarmDownload.MIN_SWARM_SIZE)
+				download(peerUUID, filename, size, digest);
+			else
+				node.sendToPeer(peerUUID, new MessageWriter(MessageType.RESUME_REQUEST)
+						.writeString(filename)
+						.writeVarLong(0)
+						.writeBytes(digest)
+						.finish());
+		});
+	}
+
+	/**
+	 * Keeps only a placeholder of a file a peer has, with the version announced.
+	 */
+	private void placeholder(String filename, long size) {
+		try {
+			cache.placeholder(filename, size, newTempFile());
+			converged(filename);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets the content of a file, if I only have its placeholder the peers are asked which
+	 * of them have it: it's pulled from all of them if it's big, from the first one otherwise.
+	 * Opening it again while it's being fetched asks again, e.g. if the peers were away.
+	 *
+	 * @param path Path of the file, relative to the root directory.
+	 * @return Completed with the path of the file once it's here, or with null if there's no such file.
+	 */
+	public CompletableFuture<Path> open(String path) {
+		// Also if it was just fetched and the watcher didn't add it yet.
+		if (isInFileList(path) || hasContent(path)) {
+			cache.used(path);
+			return CompletableFuture.completedFuture(Paths.get(userDir, path));
+		}
+
+		Version version = versions.get(path);
+		if (version == null || version.isDeleted() || !cache.isPlaceholder(path))
+			return CompletableFuture.completedFuture(null);
+
+		CompletableFuture<Path> fetch = fetches.computeIfAbsent(path, p -> new CompletableFuture<>());
+		// So that the content isn't refused as older than my version.
+		incomingVersions.putIfAbsent(path, version);
+		pending(path);
+		fetchingFrom.remove(path);
+		node.broadcastToUser(username, new MessageWriter(MessageType.HAVE_REQUEST)
+				.writeVarInt(1)
+				.writeString(path)
+				.writeBytes(version.getDigest())
+				.finish());
+		return fetch;
+	}
+
+	/**
+	 * A peer asks which of these files I have the content of, answer with the ones I have.
+	 * Not the ones I'm evicting myself, so that two peers don't evict a file counting on each other.
+	 * My copies may have to be hashed, that's done on the "IoExecutor".
+	 *
+	 * @param peerUUID UUID of the peer asking
+	 * @param msg      The msg holding the filenames and their hashes
+	 */
+	public void receiveHaveRequest(UUID peerUUID, MessageReader msg) {
+		Map<String, byte[]> asked = new LinkedHashMap<>();
+		for (int i = msg.readVarInt(); i > 0; i--)
+			asked.put(msg.readString(), msg.readBytes());
+		IoExecutor.execute(() -> sendHave(peerUUID, asked));
+	}
+
+	private void sendHave(UUID peerUUID, Map<String, byte[]> asked) {
+		List<String> held = new ArrayList<>();
+		for (Map.Entry<String, byte[]> entry : asked.entrySet()) {
+			String filename = entry.getKey();
+			if (isInFileList(filename) && !evictions.containsKey(filename)
+					&& Arrays.equals(fileDigest(filename), entry.getValue()))
+				held.add(filename);
+		}
+		if (held.isEmpty())
+			return;
+
+		MessageWriter writer = new MessageWriter(MessageType.HAVE, 16 + held.size() * 64).writeVarInt(held.size());
+		for (String filename : held)
+			writer.writeString(filename).writeVarLong(new File(userDir, filename).length());
+		node.sendToPeer(peerUUID, writer.finish());
+	}
+
+	/**
+	 * A peer has the content of these files: the ones I'm fetching are pulled from it,
+	 * the ones I'm evicting are evicted once enough peers have them.
+	 *
+	 * @param peerUUID UUID of the peer that has them
+	 * @param msg      The msg holding the filenames and their sizes
+	 */
+	public void receiveHave(UUID peerUUID, MessageReader msg) {
+		for (int i = msg.readVarInt(); i > 0; i--) {
+			String filename = msg.readString();
+			long size = msg.readVarLong();
+			if (fetches.containsKey(filename)) {
+				// Only the peers with the content I asked for answer (see "receiveHaveRequest()").
+				if (size >= SwarmDownload.MIN_SWARM_SIZE)
+					download(peerUUID, filename, size, versions.get(filename).getDigest());
+				else if (fetchingFrom.putIfAbsent(filename, peerUUID) == null)
+					node.sendToPeer(peerUUID, new MessageWriter(MessageType.RESUME_REQUEST)
+							.writeString(filename)
+							.writeVarLong(0)
+							.writeBytes(versions.get(filename).getDigest())
+							.finish());
+				continue;
+			}
+
+			Eviction eviction = evictions.get(filename);
+			if (eviction == null)
+				continue;
+			synchronized (eviction) {
+				eviction.holders.add(peerUUID);
+				if (eviction.holders.size() < ContentCache.MIN_REPLICAS)
+					continue;
+			}
+			if (evictions.remove(filename, eviction))
+				IoExecutor.execute(() -> evict(filename, eviction.digest));
+		}
+	}
+
+	/**
+	 * Once the content of the files takes more than the quota, asks the peers which of the
+	 * least recently used ones they have, the ones at least "ContentCache.MIN_REPLICAS" of them have
+	 * are evicted as the answers come. The others are picked again if they're still the least
+	 * recently used after "EVICTION_TIMEOUT_MS", more recently used ones meanwhile.
+	 */
+	private void evictOverQuota() {
+		if (!cache.isOverQuota())
+			return;
+
+		long now = System.currentTimeMillis();
+		evictions.values().removeIf(eviction -> now - eviction.since > EVICTION_TIMEOUT_MS);
+		List<String> candidates = cache.overQuota(evictions.keySet());
+		if (candidates.isEmpty() || node.getPeers(username).isEmpty())
+			return;
+
+		MessageWriter writer = new MessageWriter(MessageType.HAVE_REQUEST, 16 + candidates.size() * 80)
+				.writeVarInt(candidates.size());
+		for (String filename : candidates) {
+			byte[] digest = fileDigest(filename);
+			evictions.put(filename, new Eviction(digest));
+			writer.writeString(filename).writeBytes(digest);
+		}
+		node.broadcastToUser(username, writer.finish());
+	}
+
+	/**
+	 * Drops the content of a file and keeps a placeholder of it instead, its version stays the same.
+	 *
+	 * @param digest Hash of the content the peers have.
+	 */
+	private void evict(String filename, byte[] digest) {
+		File file = new File(userDir, filename);
+		// Used, or changed, since I asked the peers.
+		if (!cache.isOverQuota() || !isInFileList(filename) || !Arrays.equals(fileDigest(filename), digest))
+			return;
+
+		try {
+			long size = file.length();
+			synchronized (this) {
+				// Out of the file list first, the watcher then leaves its placeholder alone.
+				fileList.remove(filename);
+				contents.remove(filename);
+				index.remove(filename);
+				cache.uncached(filename);
+			}
+			cache.placeholder(filename, size, newTempFile());
+			System.out.println("File Evicted! Kept a placeholder of " + filename);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Copies a local file with this content to "filename", checking the hash
+	 * of what was copied on the way, or takes it out of the trash.
+	 *
+	 * @return False if there's no file with this content (anymore).
+	 */
+	private boolean materialize(String filename, long size, byte[] digest) {
+		Path trashed = contents.untrash(digest);
+		if (trashed != null) {
+			try {
+				Path path = Paths.get(userDir, filename);
+				path.getParent().toFile().mkdirs();
+				receivedFiles.add(filename);
+				// Over its placeholder, if there's one.
+				Files.move(trashed, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				System.out.println("File Materialized! Moved " + filename + " back from the trash");
+				converged(filename);
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		for (String source : contents.find(digest)) {
+			File sourceFile = new File(userDir, source);
+			FileIndex.Entry entry = index.get(source);
+			if (entry == null || entry.size != size || !entry.matches(sourceFile))
+				continue;
+
+			Path staging = null;
+			try {
+				staging = newTempFile();
+				if (!copy(sourceFile.toPath(), staging, digest))
+					continue;
+
+				Path path = Paths.get(userDir, filename);
+				path.getParent().toFile().mkdirs();
+
+				//Add files received via network to this list (so it won't be re-broadcast-ed by the watcher).
+				receivedFiles.add(filename);
+				commits.submit(staging, path, () -> {
+					System.out.println("File Materialized! Copied " + source + " to " + filename);
+					converged(filename);
+				});
+				// It's the commit's now.
+				staging = null;
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				try {
+					if (staging != null)
+						Files.deleteIfExists(staging);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return False if the content copied doesn't have this hash, e.g. the source changed meanwhile.
+	 */
+	private static boolean copy(Path source, Path target, byte[] digest) throws IOException {
+		MessageDigest copied = BlockSignatures.md5();
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+		     FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+			while (in.read(buffer) > 0) {
+				buffer.flip();
+				copied.update(buffer.duplicate());
+				while (buffer.hasRemaining())
+					out.write(buffer);
+				buffer.clear();
+			}
+		}
+		return Arrays.equals(copied.digest(), digest);
+	}
+
+	public SwarmDownload getDownload(String filename) {
+		return downloads.get(filename);
+	}
+
+	/**
+	 * A peer went offline, the ranges it was sending go to the other peers.
+	 */
+	public void peerRemoved(UUID peerUUID) {
+		for (SwarmDownload download : downloads.values())
+			download.removePeer(peerUUID).forEach((peer, ranges) -> requestRanges(peer, download, ranges));
+		synchronized (syncRounds) {
+			syncRounds.remove(peerUUID);
+		}
+		peerJournals.remove(peerUUID);
+		// Asked again from the same mark next time.
+		catchUps.remove(peerUUID);
+		selectivePeers.remove(peerUUID);
+	}
+
+	/**
+	 * Gets the partial file a peer's transfer of "filename" is written to,
+	 * resumed from its checkpoint if it's the same version of the file.
+	 *
+	 * @param size   Size of the whole file.
+	 * @param digest Hash of the whole file.
+	 * @return Null if it's not newer than my version, if an older version is still being received,
+	 * if it's already all there, or on error.
+	 */
+	public PartialFile openPartial(String filename, long size, byte[] digest) {
+		if (isStale(filename))
+			return null;
+
+		synchronized (partials) {
+			PartialFile partial = partials.get(filename);
+			if (partial != null && partial.getSize() == size && Arrays.equals(partial.getDigest(), digest))
+				return partial;
+
+			if (partial != null) {
+				if (partial.isClaimed())
+					return null;
+				partial.discard();
+			}
+
+			try {
+				partial = PartialFile.open(Paths.get(tempDir, "partial"), filename, size, digest);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+			partials.put(filename, partial);
+			pending(filename);
+
+			// Everything arrived before a crash, it just wasn't moved into place.
+			if (partial.getOffset() == size && partial.claim(size)) {
+				partialReceived(partial, true);
+				return null;
+			}
+
+			if (partial.getOffset() > 0)
+				System.out.println("Resuming " + filename + " at " + partial.getOffset() + " of " + size + " bytes.");
+			return partial;
+		}
 	}
 
-	// Send filePath to all online peers.
-	private Boolean broadcastFile(String filePath) {
+	/**
+	 * The writes of the last transfer into a partial file are done, move the file into place
+	 * if all of it arrived intact, or keep what arrived if the transfer was cut off.
+	 * Its "incomingFiles" mark is cleared once that's done.
+	 *
+	 * @param completed False if the transfer was cancelled or the connection dropped.
+	 */
+	public void partialReceived(PartialFile partial, boolean completed) {
+		String filename = partial.getFilename();
+		if (!completed) {
+			partial.release();
+			incomingFiles.remove(filename);
+			return;
+		}
+
+		synchronized (partials) {
+			// Replaced by another transfer of the file, which clears the mark.
+			if (!partials.remove(filename, partial))
+				return;
+		}
+
+		if (!partial.isComplete()) {
+			System.out.println("Received a corrupt copy of " + filename + ", dropped it.");
+			partial.discard();
+			incomingFiles.remove(filename);
+			failed(filename);
+			return;
+		}
 
-		List<RemotePeer> peerList = node.getRemotePeers().get(username);
+		try {
+			Path path = Paths.get(userDir, filename);
+			Path data = partial.finish();
+			path.getParent().toFile().mkdirs();
+
+			//Add files received via network to this list (so it won't be re-broadcast-ed by the watcher).
+			receivedFiles.add(filename);
+			// Only taken as a local change again once it's in place and the peer's version is mine,
+			// otherwise the watcher could count a change of mine concurrent with it.
+			commits.submit(data, path, () -> {
+				converged(filename);
+				incomingFiles.remove(filename);
+			}, () -> incomingFiles.remove(filename));
+		} catch (IOException e) {
+			e.printStackTrace();
+			incomingFiles.remove(filename);
+		}
+	}
 
-		if(peerList == null)
+	/**
+	 * A peer already has the beginning of a file I'm sending it, send the rest,
+	 * or all of it if my copy changed since.
+	 *
+	 * @param peerUUID UUID of the peer asking.
+	 * @param msg      The msg holding the filename, the offset and the hash of the whole file.
+	 */
+	public void receiveResumeRequest(UUID peerUUID, MessageReader msg) {
+		String filename = msg.readString();
+		long offset = msg.readVarLong();
+		byte[] digest = msg.readBytes();
+		// A file relayed to me may be asked for before the watcher lists it.
+		if (!isInFileList(filename) && !hasContent(filename))
+			return;
+
+		// My copy may have to be hashed.
+		IoExecutor.execute(() -> node.sendFile(peerUUID, filename, Paths.get(userDir, filename),
+				Arrays.equals(digest, fileDigest(filename)) ? offset : 0));
+	}
+
+	/**
+	 * Sends new files to all online peers, through a tree of relays once there are
+	 * more than "RELAY_FANOUT" of them, so my uplink sends each file about "RELAY_FANOUT" times
+	 * and every peer has it after a number of hops that grows with the log of the number of peers.
+	 */
+	private Boolean broadcastFiles(List<String> filePaths) {
+		List<RemotePeer> peerList = node.getPeers(username);
+
+		if(peerList.isEmpty())
 			return false;
 
+		if (RELAY_FANOUT <= 0 || peerList.size() <= RELAY_FANOUT) {
+			for (RemotePeer remotePeer : peerList) {
+				sendFiles(remotePeer.getUniqueIdentifier(), filePaths);
+			}
+			return true;
+		}
+
+		// Moved or copied files are copied locally by each peer, there's nothing to relay.
+		List<String> copies = new ArrayList<>();
+		List<String> relayed = new ArrayList<>();
+		for (String filePath : filePaths)
+			(contents.hasCopy(filePath, fileDigest(filePath)) ? copies : relayed).add(filePath);
+
+		List<UUID> peers = new ArrayList<>();
 		for (RemotePeer remotePeer : peerList) {
-			sendFile(remotePeer.getUniqueIdentifier(), filePath);
+			UUID peerUUID = remotePeer.getUniqueIdentifier();
+			// They're only told about the files, there's nothing for them to relay.
+			if (selectivePeers.contains(peerUUID)) {
+				sendFiles(peerUUID, filePaths);
+				continue;
+			}
+			peers.add(peerUUID);
+			if (!copies.isEmpty())
+				sendFiles(peerUUID, copies);
 		}
+		if (!relayed.isEmpty() && !peers.isEmpty())
+			relay(relayed, peers);
 
 		return true;
 	}
 
-	// Send all file-paths to all online peers.
-	private void broadcastFiles(List<String> filePaths) {
-		List<RemotePeer> peerList = node.getRemotePeers().get(username);
-		for (RemotePeer remotePeer : peerList) {
-			sendFiles(remotePeer.getUniqueIdentifier(), filePaths);
+	/**
+	 * Splits the peers in "RELAY_FANOUT" groups, sends the files to the first peer of each group
+	 * and asks it to relay them to the rest of its group, which it splits the same way.
+	 * A peer whose relay goes offline gets the files with its next sync.
+	 */
+	private void relay(List<String> filePaths, List<UUID> peers) {
+		int groupSize = (peers.size() + RELAY_FANOUT - 1) / RELAY_FANOUT;
+		for (int start = 0; start < peers.size(); start += groupSize) {
+			List<UUID> group = peers.subList(start, Math.min(peers.size(), start + groupSize));
+			sendFiles(group.get(0), filePaths);
+			if (group.size() == 1)
+				continue;
+
+			MessageWriter writer = new MessageWriter(MessageType.RELAY, 64 + group.size() * 20 + filePaths.size() * 64)
+					.writeVarInt(group.size() - 1);
+			for (UUID peer : group.subList(1, group.size()))
+				writer.writeVarLong(peer.getMostSignificantBits()).writeVarLong(peer.getLeastSignificantBits());
+			writer.writeVarInt(filePaths.size());
+			for (String filePath : filePaths)
+				writer.writeString(filePath);
+			node.sendToPeer(group.get(0), writer.finish());
+		}
+	}
+
+	/**
+	 * A peer sent me files (or is sending them), and asks me to relay them to these peers
+	 * once I have them, see "relay()".
+	 *
+	 * @param peerUUID UUID of the peer sending the files
+	 * @param msg      The msg holding the peers and the filenames
+	 */
+	public void receiveRelay(UUID peerUUID, MessageReader msg) {
+		List<UUID> peers = new ArrayList<>();
+		for (int i = msg.readVarInt(); i > 0; i--)
+			peers.add(new UUID(msg.readVarLong(), msg.readVarLong()));
+
+		for (int i = msg.readVarInt(); i > 0; i--) {
+			String filename = msg.readString();
+			relays.put(filename, peers);
+			// Already here, or not coming because mine beats it, otherwise it's relayed once it's here.
+			if (!incomingVersions.containsKey(filename))
+				forward(filename);
 		}
 	}
 
 	/**
-	 * Broadcast your fileList to all peers, by-which they're going to send you their last committed files.
+	 * Relays a file I just got to the peers I was asked to, if any.
+	 */
+	private void forward(String filename) {
+		List<UUID> peers = relays.remove(filename);
+		// Deleted meanwhile, the peers catch up with their next sync.
+		if (peers == null || !hasContent(filename))
+			return;
+
+		Set<UUID> online = new HashSet<>();
+		for (RemotePeer remotePeer : node.getPeers(username))
+			online.add(remotePeer.getUniqueIdentifier());
+		List<UUID> reachable = new ArrayList<>(peers);
+		reachable.retainAll(online);
+		if (!reachable.isEmpty())
+			relay(Collections.singletonList(filename), reachable);
+	}
+
+	/**
+	 * Asks all peers with my username for their changes since I last asked (see "ChangeJournal"),
+	 * by-which they're going to send you their last committed files.
 	 */
 	public synchronized void sync() {
-		sendFileList();
+		for (RemotePeer peer : node.getPeers(username))
+			requestJournal(peer.getUniqueIdentifier());
 		System.out.println("Synchronization Successful!");
 	}
 
 	/**
-	 * Non-recursive function, scans the root directory for new files,
-	 * it currently feels the existence of files only, not the changes.
+	 * Scans the root directory for new, deleted and modified files.
+	 * Only the directories that changed since they were indexed are listed
+	 * and only the files that changed are hashed again (see "FileIndex"),
+	 * both in parallel (see "DirectoryScan").
 	 */
 	public synchronized void checkout() {
+		long start = System.nanoTime();
 		File file = new File(userDir);
 
 		// Create the root directory if it doesn't exist
 		if (!file.exists())
 			file.mkdirs();
 
-		Collection<String> directory = new ArrayList<>();
+		Set<String> directory = ConcurrentHashMap.newKeySet();
+
+		if (index.isEmpty())
+			DirectoryScan.scan(file.toPath(), "", directory, index);
+		else
+			scanIndexed(directory);
+		// Not files of mine, their versions are kept anyway.
+		directory.removeIf(cache::isPlaceholder);
+
+		// On startup the files deleted while I was away are the indexed ones.
+		Collection<String> known       = fileList.isEmpty() ? index.files() : fileList;
+		List<String>       newFiles    = directory.stream().filter(x -> !fileList.contains(x)).collect(Collectors.toList());
+		Collection<String> deleteFiles = known.stream().filter(x -> !directory.contains(x)).collect(Collectors.toList());
+
+		// Modified since they were indexed, the new ones aren't indexed at all.
+		Collection<String> changedFiles = ConcurrentHashMap.newKeySet();
+		Collection<String> unindexedFiles = ConcurrentHashMap.newKeySet();
+		DirectoryScan.forEach(directory, filePath -> {
+			FileIndex.Entry entry = index.get(filePath);
+			if (entry == null)
+				unindexedFiles.add(filePath);
+			if (entry == null || !entry.matches(new File(userDir, filePath)))
+				changedFiles.add(filePath);
+		});
 
-		scan(file, "", directory);
+		// Hash in parallel, adding them below then just reads the index.
+		DirectoryScan.forEach(changedFiles, this::fileDigest);
 
-		//Print new Files
-		Collection<String> newFiles    = directory.stream().filter(x -> !fileList.contains(x)).collect(Collectors.toList());
-		Collection<String> deleteFiles = fileList.stream().filter(x -> !directory.contains(x)).collect(Collectors.toList());
+		// What was used before a restart isn't known, the least recently modified are evicted first.
+		if (ContentCache.isEnabled())
+			newFiles.sort(Comparator.comparingLong(filePath -> new File(userDir, filePath).lastModified()));
 
 		for (String newFilePath : newFiles) {
 			addToFileList(newFilePath);
-			System.out.println("Checked in file: " + newFilePath);
+			log("Checked in file: ", newFilePath, newFiles.size());
 		}
 
+		// Only what changed since the last checkout goes to the journal, not every file on startup.
+		for (String filePath : changedFiles)
+			journal.append(unindexedFiles.contains(filePath) ? ChangeJournal.ADDED : ChangeJournal.MODIFIED, filePath);
+
 		for (String deleteFilePath : deleteFiles) {
 			removeFromFileList(deleteFilePath);
-			System.out.println("Checked out file: " + deleteFilePath);
+			journal.append(ChangeJournal.DELETED, deleteFilePath);
+			log("Checked out file: ", deleteFilePath, deleteFiles.size());
 		}
 
-		System.out.println("All files are checked-out and updated! Total: " + fileList.size() + " files.");
+		changedFiles.removeAll(newFiles);
+		for (String filePath : changedFiles) {
+			addToFileList(filePath);
+			log("Updated file: ", filePath, changedFiles.size());
+		}
+
+		// Tombstones past the horizon.
+		for (String expired : versions.expire())
+			merkleTree.remove(expired);
+
+		index.flush();
+		journal.flush();
+		versions.flush();
+		evictOverQuota();
+		Metrics.getInstance().getCheckout().record(System.nanoTime() - start);
+		System.out.println("All files are checked-out and updated! Total: " + fileList.size() + " files ("
+				+ newFiles.size() + " new, " + deleteFiles.size() + " deleted, " + changedFiles.size() + " modified).");
+	}
+
+	// Printing a million lines takes longer than the checkout itself.
+	private static void log(String msg, String filePath, int total) {
+		if (total <= 100)
+			System.out.println(msg + filePath);
+	}
+
+	/**
+	 * Same as a full scan but starts from the index: the indexed files that still
+	 * exist, plus the content of the directories modified since they were listed,
+	 * adding or removing a file changes the last modified time of its directory.
+	 *
+	 * @param newPaths Filled with the relative paths of all the files, must be thread safe.
+	 */
+	private void scanIndexed(Collection<String> newPaths) {
+		DirectoryScan.forEach(index.files(), filePath -> {
+			if (new File(userDir, filePath).isFile())
+				newPaths.add(filePath);
+		});
+
+		Collection<String> modifiedDirectories = ConcurrentHashMap.newKeySet();
+		DirectoryScan.forEach(index.directories(), directoryPath -> {
+			File directory = new File(userDir, directoryPath);
+			if (!directory.isDirectory())
+				index.removeDirectory(directoryPath);
+			else if (directory.lastModified() != index.getDirectory(directoryPath))
+				modifiedDirectories.add(directoryPath);
+		});
+
+		DirectoryScan.list(Paths.get(userDir), modifiedDirectories, newPaths, index);
+	}
+
+	/**
+	 * Receives the net changes of the "ChangePipeline" once the files stopped changing,
+	 * new files are broadcast in a single batch.
+	 */
+	private void applyChanges(List<String> created, List<String> modified, List<String> deleted) {
+		// My own placeholders, put in place or over an evicted file.
+		created.removeIf(cache::isPlaceholder);
+		modified.removeIf(cache::isPlaceholder);
+
+		List<String> broadcast = new ArrayList<>();
+		for (String relativePath : created) {
+			if (watcherCreatedFile(relativePath))
+				broadcast.add(relativePath);
+		}
+
+		for (String relativePath : modified)
+			watcherModifiedFile(relativePath);
+
+		// Before the deletes, so a moved file is still known under its old path and the peers copy it locally.
+		if (!broadcast.isEmpty()) {
+			System.out.println("Broadcasting " + broadcast.size() + " files to all online peers...");
+			if (broadcastFiles(broadcast))
+				System.out.println("Files broadcast-ed to all peers!");
+			else
+				System.out.println("Broadcasting failed, no peers online.");
+		}
+
+		for (String relativePath : deleted)
+			watcherDeletedFile(relativePath);
+
+		index.flush();
+		journal.flush();
+		versions.flush();
+		evictOverQuota();
 	}
 
 	/**
-	 * Scans directory tree starting at "file" and
-	 * stores the relative path (relative to the root folder)
-	 * of each file in "fileList".
+	 * Called when a new file is created.
 	 *
-	 * @param file     Starts recurring from that file
-	 * @param rootPath The path relative to the root directory,
-	 *                 it starts as "/" and gets manually built.
+	 * @return True if it should be broadcast.
 	 */
-	private void scan(File file, String rootPath, Collection<String> newPaths) {
-		File[] files = file.listFiles();
+	private boolean watcherCreatedFile(String relativePath) {
+		//Save to files table.
+		addToFileList(relativePath);
+		journal.append(ChangeJournal.ADDED, relativePath);
+
+		//Check if file is not created by an another peer push ( so that no-need to broadcast it back)
+		if (!receivedFiles.contains(relativePath)) {
+			//if not received it means it's a new file! -> print and broadcast.
+			System.out.println("File Created! Added: " + relativePath);
+			return true;
+		}
 
-		for (File curFile : files) {
+		System.out.println("File Received! Added: " + relativePath);
+		return false;
+	}
+
+	/**
+	 * Called when a known file is modified.
+	 * Offers the new version to all peers, the ones with an older copy
+	 * answer with its block signatures and only get the changed parts (see "Delta").
+	 */
+	private void watcherModifiedFile(String relativePath) {
+		FileIndex.Entry previous = index.get(relativePath);
 
-			String fileRelativePath = rootPath + "/" + curFile.getName();
+		// Hashes the new version once, for both the Merkle tree and the offer.
+		addToFileList(relativePath);
 
-			//If file is a Directory/Folder, recurse and explore it.
-			if (curFile.isDirectory())
-				scan(curFile, fileRelativePath, newPaths);
+		// e.g. touched, or rewritten with the same content.
+		if (previous != null && Arrays.equals(previous.hash, fileDigest(relativePath)))
+			return;
 
-			//If file is a... file.
-			else {
-				//Add new found file
-				newPaths.add(fileRelativePath);
+		journal.append(ChangeJournal.MODIFIED, relativePath);
+		node.broadcastToUser(username, encodeVersion(relativePath, versions.get(relativePath)));
+		node.broadcastToUser(username, encodeOffer(relativePath));
+		System.out.println("File Modified! Offered delta: " + relativePath);
+	}
+
+	/**
+	 * A peer has a new version of a file, if my copy is different
+	 * send it my block signatures so it sends back only what changed.
+	 * Reading my copy for them is left to the "IoExecutor".
+	 *
+	 * @param peerUUID UUID of the peer offering the new version.
+	 * @param msg      The msg holding a "DeltaOffer".
+	 */
+	public void receiveDeltaOffer(UUID peerUUID, MessageReader msg) {
+		DeltaOffer offer = DeltaOffer.read(msg);
+		IoExecutor.execute(() -> requestDelta(peerUUID, offer));
+	}
+
+	/**
+	 * Sends the block signatures of my copy of a file to the peer that has the version "offer" describes.
+	 *
+	 * @return False if I can't ask for it.
+	 */
+	private boolean requestDelta(UUID peerUUID, DeltaOffer offer) {
+		Path path = Paths.get(userDir, offer.getFilename());
+
+		// New files are handled by sync(), and don't touch files being received.
+		if (!hasContent(offer.getFilename()) || incomingFiles.contains(offer.getFilename())
+				|| isStale(offer.getFilename()))
+			return false;
+
+		try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+			BlockSignatures signatures = BlockSignatures.compute(fileChannel, offer.getFilename());
+			if (signatures.matches(offer.getDigest())) {
+				converged(offer.getFilename());
+				return true;
 			}
+			pending(offer.getFilename());
+			MessageWriter writer = new MessageWriter(MessageType.BLOCK_SIGNATURES, signatures.encodedSize());
+			signatures.write(writer);
+			node.sendToPeer(peerUUID, writer.finish());
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
 		}
 	}
 
-	//Called when Directory watcher detects a new created file.
-	private void watcherCreatedFile(Path path) {
-		Path rootPath = Paths.get(userDir);                              // Replace to standardize URI(s) to UNIX uris.
-		String relativePath = '/' + rootPath.relativize(path).toString().replace('\\', '/');
-		File newFile = new File(userDir, relativePath);
-		if (!newFile.isDirectory()) {
-			//Save to files table.
-			addToFileList(relativePath);
+	/**
+	 * My transfer of a delta from this peer was stopped because my disk was behind, ask for it again.
+	 */
+	public void retryDelta(UUID peerUUID, String filename) {
+		Version version = incomingVersions.get(filename);
+		if (version != null && !requestDelta(peerUUID, new DeltaOffer(filename, version.getDigest())))
+			failed(filename);
+	}
 
-			//Check if file is not created by an another peer push ( so that no-need to broadcast it back)
-			if (!receivedFiles.contains(relativePath)) {
-				//if not received it means it's a new file! -> print and broadcast.
-				System.out.println("File Created! Added: " + relativePath);
+	/**
+	 * A peer sent the signatures of its copy of a file I offered,
+	 * encode my version against them and send the delta, on the "IoExecutor".
+	 *
+	 * @param peerUUID UUID of the peer that needs the new version.
+	 * @param msg      The msg holding the "BlockSignatures".
+	 */
+	public void receiveSignatures(UUID peerUUID, MessageReader msg) {
+		BlockSignatures signatures = BlockSignatures.read(msg);
+		IoExecutor.execute(() -> sendDelta(peerUUID, signatures));
+	}
+
+	private void sendDelta(UUID peerUUID, BlockSignatures signatures) {
+		Path path = Paths.get(userDir, signatures.getFilename());
+		if (!hasContent(signatures.getFilename()))
+			return;
 
-				System.out.println("Broadcasting File: '" + newFile.getName() + "' to all online peers...");
+		try {
+			Path deltaFile = newTempFile();
+			byte[] digest;
+			try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+				digest = Delta.compute(fileChannel, signatures, deltaFile);
+			}
 
-				if(broadcastFile(relativePath))
-					System.out.println("File broadcast-ed to all peers!");
-				else
-					System.out.println("Broadcasting failed, no peers online.");
+			// Changed back in the meantime, nothing to send.
+			if (signatures.matches(digest)) {
+				Files.delete(deltaFile);
+				return;
+			}
 
-			} else
-				System.out.println("File Received! Added: " + relativePath);
+			FileChannel deltaChannel = FileChannel.open(deltaFile, StandardOpenOption.READ);
+			System.out.println("Sending delta of " + signatures.getFilename() + ": "
+					+ deltaChannel.size() + " bytes instead of " + path.toFile().length());
+			node.sendDelta(peerUUID, deltaChannel, signatures.getFilename(), deltaChannel.size(), deltaFile);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 
-	//TODO - Called when Directory watcher detects modify change.
-	private void watcherModifiedFile() {
+	/**
+	 * Rebuilds a file from my copy and a received delta in "tempDir",
+	 * then moves it into place (see "GroupCommit").
+	 *
+	 * @param filename  Path of the file, relative to the root directory.
+	 * @param deltaFile The received delta.
+	 */
+	public void applyDelta(String filename, Path deltaFile) {
+		Path path = Paths.get(userDir, filename);
+		Path staging = null;
+		try {
+			staging = newTempFile();
+			if (!Delta.apply(path, deltaFile, staging)) {
+				System.out.println("Delta of " + filename + " doesn't match, my copy changed in the meantime.");
+				failed(filename);
+				return;
+			}
+
+			//Add files received via network to this list (so it won't be re-broadcast-ed by the watcher).
+			receivedFiles.add(filename);
+			commits.submit(staging, path, () -> {
+				System.out.println("File Updated! Applied delta: " + filename);
+				converged(filename);
+			});
+			// It's the commit's now.
+			staging = null;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				Files.deleteIfExists(deltaFile);
+				if (staging != null)
+					Files.deleteIfExists(staging);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 
-	private void watcherDeletedFile(Path path) {
-		Path rootPath = Paths.get(userDir);                              // Replace to standardize URI(s) to UNIX uris.
-		String relativePath = '/' + rootPath.relativize(path).toString().replace('\\', '/');
-		File newFile = new File(userDir, relativePath);
-		if (!newFile.isDirectory()) {
+	/**
+	 * @return A new empty file in "tempDir".
+	 */
+	public Path newTempFile() throws IOException {
+		return Files.createTempFile(Paths.get(tempDir), "drds", ".tmp");
+	}
+
+	/**
+	 * Called when a path is gone, if it was a directory all the files under it are removed.
+	 */
+	private void watcherDeletedFile(String relativePath) {
+		// A placeholder deleted here deletes the file, like deleting its directory does.
+		Version version = versions.get(relativePath);
+		boolean placeholder = version != null && !version.isDeleted();
+		cache.removePlaceholder(relativePath);
+
+		Collection<String> removed = isInFileList(relativePath) || placeholder
+				? Collections.singletonList(relativePath)
+				: merkleTree.files(relativePath);
+
+		for (String filePath : removed) {
 			//Save to files table.
-			removeFromFileList(relativePath);
-			System.out.println("Removed file: " + relativePath);
-			//TODO send a remove request to all other peers.
+			Version tombstone = removeFromFileList(filePath);
+			journal.append(ChangeJournal.DELETED, filePath);
+			System.out.println("Removed file: " + filePath);
+
+			// Deleted here and not by a peer, the others delete it too.
+			if (tombstone != null)
+				node.broadcastToUser(username, encodeVersion(filePath, tombstone));
 		}
 	}
 
 	private void watchDirectoryPath(String pathString) throws IOException {
 		Path pathToWatch = Paths.get(pathString);
 
+		// Events only mark paths as changed, "applyChanges()" gets the net changes.
 		DirectoryWatcher watcher = DirectoryWatcher.create(pathToWatch, event -> {
-			switch (event.eventType()) {
-				case CREATE:
-					watcherCreatedFile(event.path());
-					break;
-				case MODIFY:
-					watcherModifiedFile();
-					break;
-				case DELETE:
-					watcherDeletedFile(event.path());
-					break;
-			}
+			Path rootPath = Paths.get(userDir);                              // Replace to standardize URI(s) to UNIX uris.
+			String relativePath = '/' + rootPath.relativize(event.path()).toString().replace('\\', '/');
+			changePipeline.submit(relativePath);
 		});
 
 		//start watching ((blocking))
@@ -324,18 +1701,95 @@ public class FileManager {
 	protected void finalize() throws Throwable {
 		if (watcherThread.isAlive())
 			watcherThread.interrupt();
+		changePipeline.stop();
+	}
+
+	public synchronized boolean isInFileList(String path) {
+		return fileList.contains(path);
+	}
+
+	/**
+	 * @return True if the content of the file is here, not only its placeholder,
+	 * also if it was just received and the watcher didn't add it yet.
+	 */
+	private boolean hasContent(String path) {
+		return new File(userDir, path).isFile() && !cache.isPlaceholder(path);
 	}
 
+	/**
+	 * Adds a file or updates it, its version counts a change of mine if its content isn't the one of its version.
+	 */
 	public synchronized void addToFileList(String path) {
+		byte[] digest = fileDigest(path);
 		fileList.add(path);
+		merkleTree.add(path, versions.changed(path, digest, journal.getId()));
+		contents.add(path, digest);
+		cache.removePlaceholder(path);
+		cache.cached(path, new File(userDir, path).length());
 	}
 
-	public synchronized void removeFromFileList(String path) {
+	/**
+	 * Removes a file, it's kept in the Merkle tree as a tombstone.
+	 *
+	 * @return The tombstone if I deleted it, null if a peer did.
+	 */
+	public synchronized Version removeFromFileList(String path) {
 		fileList.remove(path);
+		contents.remove(path);
+		index.remove(path);
+		cache.uncached(path);
+		Version tombstone = versions.deleted(path, journal.getId());
+		merkleTree.add(path, versions.get(path));
+		return tombstone;
+	}
+
+	/**
+	 * Content hash of a file, taken from the index if the file
+	 * didn't change since it was last hashed.
+	 */
+	private byte[] fileDigest(String path) {
+		File file = new File(userDir, path);
+		FileIndex.Entry entry = index.get(path);
+		if (entry != null && entry.matches(file))
+			return entry.hash;
+
+		// Read before hashing, if the file changes meanwhile it just gets hashed again next time.
+		long size = file.length();
+		long lastModified = file.lastModified();
+		try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			byte[] hash = Helpers.hashFile(fileChannel);
+			index.put(path, size, lastModified, hash);
+			return hash;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new byte[16];
+		}
 	}
 
 	//SETTERS & GETTERS
 
+	/**
+	 * @return Content hash of a file in "userDir".
+	 */
+	public byte[] getDigest(String path) {
+		return fileDigest(path);
+	}
+
+	public UUID getJournalId() {
+		return journal.getId();
+	}
+
+	public void setPeerJournal(UUID peerUUID, UUID peerJournal) {
+		peerJournals.put(peerUUID, peerJournal);
+	}
+
+	public void setPeerSelective(UUID peerUUID, boolean selective) {
+		if (selective)
+			selectivePeers.add(peerUUID);
+		else
+			selectivePeers.remove(peerUUID);
+	}
+
 	public String getUserDir() {
 		return userDir;
 	}
@@ -356,7 +1810,18 @@ public class FileManager {
 		return receivedFiles;
 	}
 
+	public Collection<String> getIncomingFiles() {
+		return incomingFiles;
+	}
+
 	public Collection<String> getFileList() {
 		return fileList;
 	}
+
+	/**
+	 * @return The files I only have a placeholder of (see "ContentCache").
+	 */
+	public Collection<String> getPlaceholders() {
+		return cache.placeholders();
+	}
 }
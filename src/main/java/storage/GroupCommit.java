@@ -0,0 +1,161 @@
+package storage;
+
+import controllers.IoExecutor;
+import controllers.Metrics;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Moves received files from "tempDir" into place, durably and in batches.
+ * <p>
+ * The data of every file of a batch is forced to disk first, all at once on the "IoExecutor"
+ * so the disk gets them together, then they're renamed into place, then each directory
+ * they were renamed into is forced once. A file is only renamed once its data is on disk,
+ * so after a crash it's either all of the new version or the old one.
+ * <p>
+ * A batch is everything received while the previous one was being committed,
+ * so a lone file isn't held back, and a burst of small files costs a few rounds
+ * of fsyncs instead of one synchronous fsync per file on the thread receiving them.
+ */
+public class GroupCommit {
+	// Max files per batch.
+	private static final int MAX_BATCH = 1024;
+
+	private static class Pending {
+		final Path staged;
+		final Path target;
+		final Runnable onLanded;
+		final Runnable onFailed;
+
+		Pending(Path staged, Path target, Runnable onLanded, Runnable onFailed) {
+			this.staged = staged;
+			this.target = target;
+			this.onLanded = onLanded;
+			this.onFailed = onFailed;
+		}
+	}
+
+	private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "group-commit");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Queues a complete file to be moved into place, replacing what's there.
+	 *
+	 * @param staged   The file in "tempDir", deleted if it can't be moved.
+	 * @param target   Where it goes, its directory must exist.
+	 * @param onLanded Invoked once it's in place and on disk.
+	 */
+	public void submit(Path staged, Path target, Runnable onLanded) {
+		submit(staged, target, onLanded, () -> {});
+	}
+
+	/**
+	 * @param onFailed Invoked if it couldn't be moved into place (it's deleted).
+	 */
+	public void submit(Path staged, Path target, Runnable onLanded, Runnable onFailed) {
+		queue.add(new Pending(staged, target, onLanded, onFailed));
+		// Finds the queue empty if an earlier one took this file in its batch.
+		executor.execute(this::commit);
+	}
+
+	private void commit() {
+		List<Pending> batch = new ArrayList<>();
+		Pending next;
+		while (batch.size() < MAX_BATCH && (next = queue.poll()) != null)
+			batch.add(next);
+		if (batch.isEmpty())
+			return;
+
+		long start = System.nanoTime();
+
+		// The data first.
+		List<Callable<Boolean>> forces = new ArrayList<>();
+		for (Pending pending : batch)
+			forces.add(() -> force(pending.staged, false));
+		List<Future<Boolean>> forced;
+		try {
+			forced = IoExecutor.getExecutor().invokeAll(forces);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		List<Pending> landed = new ArrayList<>();
+		List<Pending> failed = new ArrayList<>();
+		Set<Path> directories = new HashSet<>();
+		for (int i = 0; i < batch.size(); i++) {
+			Pending pending = batch.get(i);
+			try {
+				if (!forced.get(i).get())
+					throw new IOException("Couldn't force " + pending.staged + " to disk");
+				Files.move(pending.staged, pending.target, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				directories.add(pending.target.getParent());
+				landed.add(pending);
+			} catch (IOException | ExecutionException e) {
+				e.printStackTrace();
+				failed.add(pending);
+				try {
+					Files.deleteIfExists(pending.staged);
+				} catch (IOException ignored) {
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		// Then the renames.
+		for (Path directory : directories)
+			force(directory, true);
+		Metrics.getInstance().getCommit().record(System.nanoTime() - start);
+
+		for (Pending pending : landed)
+			run(pending.onLanded);
+		for (Pending pending : failed)
+			run(pending.onFailed);
+	}
+
+	private static void run(Runnable callback) {
+		try {
+			callback.run();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param path      A file, or a directory to force its entries, which not every platform supports
+	 *                  (e.g. Windows), the renames are then as durable as the OS makes them.
+	 * @param directory True if "path" is a directory.
+	 * @return False if the file couldn't be forced.
+	 */
+	private static boolean force(Path path, boolean directory) {
+		try (FileChannel channel = FileChannel.open(path,
+				directory ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+			channel.force(directory);
+			return true;
+		} catch (IOException e) {
+			if (!directory)
+				e.printStackTrace();
+			return directory;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package storage;
+
+import controllers.MessageReader;
+import controllers.MessageWriter;
+
+/**
+ * One level of a "MerkleTree": a directory's hash, the hashes of its subdirectories
+ * and the versions of its files.
+ * Peers exchange these top-down, only descending into children whose hashes differ.
+ */
+public class MerkleListing {
+	private static final int HASH_LENGTH = 16;
+
+	// Path of the directory relative to the root directory, "" is the root itself.
+	private String path;
+
+	// Hash of the whole subtree, null if the directory doesn't exist.
+	private byte[] hash;
+
+	private String[] names;
+	private boolean[] directories;
+
+	// Of the subdirectories, null for the files.
+	private byte[][] hashes;
+
+	// Of the files, null for the subdirectories.
+	private Version[] versions;
+
+	MerkleListing(String path, byte[] hash, String[] names, boolean[] directories, byte[][] hashes,
+	              Version[] versions) {
+		this.path = path;
+		this.hash = hash;
+		this.names = names;
+		this.directories = directories;
+		this.hashes = hashes;
+		this.versions = versions;
+	}
+
+	public void write(MessageWriter writer) {
+		writer.writeString(path);
+		writer.writeBoolean(hash != null);
+		if (hash != null)
+			writer.writeRaw(hash);
+
+		writer.writeVarInt(names.length);
+		for (int i = 0; i < names.length; i++) {
+			writer.writeString(names[i]);
+			writer.writeBoolean(directories[i]);
+			if (directories[i])
+				writer.writeRaw(hashes[i]);
+			else
+				versions[i].write(writer);
+		}
+	}
+
+	public static MerkleListing read(MessageReader reader) {
+		String path = reader.readString();
+		byte[] hash = reader.readBoolean() ? reader.readRaw(HASH_LENGTH) : null;
+
+		int size = reader.readVarInt();
+		String[] names = new String[size];
+		boolean[] directories = new boolean[size];
+		byte[][] hashes = new byte[size][];
+		Version[] versions = new Version[size];
+		for (int i = 0; i < size; i++) {
+			names[i] = reader.readString();
+			directories[i] = reader.readBoolean();
+			if (directories[i])
+				hashes[i] = reader.readRaw(HASH_LENGTH);
+			else
+				versions[i] = Version.read(reader);
+		}
+		return new MerkleListing(path, hash, names, directories, hashes, versions);
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public byte[] getHash() {
+		return hash;
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	public String getName(int child) {
+		return names[child];
+	}
+
+	public boolean isDirectory(int child) {
+		return directories[child];
+	}
+
+	public byte[] getHash(int child) {
+		return hashes[child];
+	}
+
+	public Version getVersion(int child) {
+		return versions[child];
+	}
+}
@@ -0,0 +1,235 @@
+package storage;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Mirrors the directory structure of "fileList", every file has a "Version"
+ * and every directory a hash of its children, so two peers can find
+ * what differs between them by comparing hashes top-down, without
+ * exchanging the whole file list.
+ * Deleted files stay in the tree as tombstones, until their version is dropped.
+ * <p>
+ * Directory hashes are recomputed lazily, adding or removing a file only
+ * marks the directories on its path as dirty.
+ */
+public class MerkleTree {
+	private Directory root = new Directory();
+
+	private static abstract class Entry {
+		byte[] hash;
+	}
+
+	private static class FileEntry extends Entry {
+		Version version;
+
+		FileEntry(Version version) {
+			this.version = version;
+			this.hash = version.hash();
+		}
+	}
+
+	private static class Directory extends Entry {
+		TreeMap<String, Entry> children = new TreeMap<>();
+		boolean dirty = true;
+	}
+
+	/**
+	 * Adds a file or updates its version, a deleted version is kept as a tombstone.
+	 *
+	 * @param path    Path relative to the root directory, e.g "/folder1/file.txt".
+	 * @param version Version of the file.
+	 */
+	public synchronized void add(String path, Version version) {
+		String[] parts = split(path);
+		if (parts.length == 0)
+			return;
+
+		Directory directory = root;
+		for (int i = 0; i < parts.length - 1; i++) {
+			directory.dirty = true;
+			Entry child = directory.children.get(parts[i]);
+			if (!(child instanceof Directory)) {
+				child = new Directory();
+				directory.children.put(parts[i], child);
+			}
+			directory = (Directory) child;
+		}
+		directory.dirty = true;
+		directory.children.put(parts[parts.length - 1], new FileEntry(version));
+	}
+
+	/**
+	 * Removes a file or a tombstone, and its parent directories if they become empty.
+	 */
+	public synchronized void remove(String path) {
+		remove(root, split(path), 0);
+	}
+
+	private boolean remove(Directory directory, String[] parts, int depth) {
+		if (depth == parts.length)
+			return false;
+
+		Entry child = directory.children.get(parts[depth]);
+		boolean removed;
+		if (depth == parts.length - 1)
+			removed = child instanceof FileEntry && directory.children.remove(parts[depth]) != null;
+		else if (child instanceof Directory) {
+			removed = remove((Directory) child, parts, depth + 1);
+			if (removed && ((Directory) child).children.isEmpty())
+				directory.children.remove(parts[depth]);
+		} else
+			removed = false;
+
+		if (removed)
+			directory.dirty = true;
+		return removed;
+	}
+
+	/**
+	 * @param path Path of a directory relative to the root directory, "" for the root.
+	 * @return Hash of this directory and its children, null if it doesn't exist.
+	 */
+	public synchronized byte[] hash(String path) {
+		Directory directory = find(path);
+		return directory == null ? null : hash(directory);
+	}
+
+	private static byte[] hash(Entry entry) {
+		if (!(entry instanceof Directory))
+			return entry.hash;
+
+		Directory directory = (Directory) entry;
+		if (directory.dirty) {
+			MessageDigest digest = BlockSignatures.md5();
+			for (Map.Entry<String, Entry> child : directory.children.entrySet()) {
+				digest.update(child.getKey().getBytes(StandardCharsets.UTF_8));
+				digest.update(child.getValue() instanceof Directory ? (byte) 1 : (byte) 0);
+				digest.update(hash(child.getValue()));
+			}
+			directory.hash = digest.digest();
+			directory.dirty = false;
+		}
+		return directory.hash;
+	}
+
+	/**
+	 * @param path Path of a directory relative to the root directory, "" for the root.
+	 * @return One level of the tree at "path", to be sent to a peer.
+	 */
+	public synchronized MerkleListing list(String path) {
+		Directory directory = find(path);
+		if (directory == null)
+			return new MerkleListing(path, null, new String[0], new boolean[0], new byte[0][], new Version[0]);
+
+		int size = directory.children.size();
+		String[] names = new String[size];
+		boolean[] directories = new boolean[size];
+		byte[][] hashes = new byte[size][];
+		Version[] versions = new Version[size];
+
+		int i = 0;
+		for (Map.Entry<String, Entry> child : directory.children.entrySet()) {
+			names[i] = child.getKey();
+			directories[i] = child.getValue() instanceof Directory;
+			if (directories[i])
+				hashes[i] = hash(child.getValue());
+			else
+				versions[i] = ((FileEntry) child.getValue()).version;
+			i++;
+		}
+		return new MerkleListing(path, hash(directory), names, directories, hashes, versions);
+	}
+
+	/**
+	 * Compares a peer's listing with the same directory in this tree,
+	 * only the files whose version beats the peer's count (see "Version.beats()").
+	 *
+	 * @param listing   The peer's listing.
+	 * @param missing   Filled with the files I have under this directory and the peer doesn't, or deleted,
+	 *                  including where the peer has a directory instead of my file, or a file instead of my directory.
+	 * @param newer     Filled with the files the peer has an older version of.
+	 * @param versions  Filled with the files the peer only needs my version of: the ones I deleted and it still has,
+	 *                  and the ones with the same content but counted differently (e.g. both had them before they had versions).
+	 * @param different Filled with the subdirectories both have but with different hashes,
+	 *                  their listings should be requested next.
+	 */
+	public synchronized void compare(MerkleListing listing, Collection<String> missing, Collection<String> newer,
+	                                 Collection<String> versions, Collection<String> different) {
+		Directory directory = find(listing.getPath());
+		if (directory == null || Arrays.equals(hash(directory), listing.getHash()))
+			return;
+
+		Map<String, Integer> remote = new HashMap<>();
+		for (int i = 0; i < listing.size(); i++)
+			remote.put(listing.getName(i), i);
+
+		for (Map.Entry<String, Entry> child : directory.children.entrySet()) {
+			String childPath = listing.getPath() + "/" + child.getKey();
+			Integer i = remote.get(child.getKey());
+			boolean isDirectory = child.getValue() instanceof Directory;
+
+			// Not there, or a file on one side and a directory on the other, either way the peer lacks what I have.
+			if (i == null || isDirectory != listing.isDirectory(i)) {
+				if (isDirectory)
+					collect((Directory) child.getValue(), childPath, missing);
+				else if (!((FileEntry) child.getValue()).version.isDeleted())
+					missing.add(childPath);
+			} else if (isDirectory) {
+				if (!Arrays.equals(hash(child.getValue()), listing.getHash(i)))
+					different.add(childPath);
+			} else {
+				Version mine = ((FileEntry) child.getValue()).version;
+				Version theirs = listing.getVersion(i);
+				if (!mine.beats(theirs)) {
+					if (mine.sameContent(theirs) && mine.compare(theirs) == Version.CONCURRENT)
+						versions.add(childPath);
+					continue;
+				}
+				if (mine.isDeleted())
+					versions.add(childPath);
+				else if (theirs.isDeleted())
+					missing.add(childPath);
+				else
+					newer.add(childPath);
+			}
+		}
+	}
+
+	/**
+	 * @param path Path of a directory relative to the root directory, "" for the root.
+	 * @return All the files under this directory, without the tombstones.
+	 */
+	public synchronized Collection<String> files(String path) {
+		Collection<String> files = new ArrayList<>();
+		Directory directory = find(path);
+		if (directory != null)
+			collect(directory, path, files);
+		return files;
+	}
+
+	private static void collect(Directory directory, String path, Collection<String> files) {
+		for (Map.Entry<String, Entry> child : directory.children.entrySet()) {
+			String childPath = path + "/" + child.getKey();
+			if (child.getValue() instanceof Directory)
+				collect((Directory) child.getValue(), childPath, files);
+			else if (!((FileEntry) child.getValue()).version.isDeleted())
+				files.add(childPath);
+		}
+	}
+
+	private Directory find(String path) {
+		Entry entry = root;
+		for (String part : split(path)) {
+			if (!(entry instanceof Directory))
+				return null;
+			entry = ((Directory) entry).children.get(part);
+		}
+		return entry instanceof Directory ? (Directory) entry : null;
+	}
+
+	private static String[] split(String path) {
+		return Arrays.stream(path.split("/")).filter(part -> !part.isEmpty()).toArray(String[]::new);
+	}
+}
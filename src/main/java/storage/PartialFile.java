@@ -0,0 +1,300 @@
+package storage;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * A file being received, written to "<key>.part" next to a "<key>.ckpt" checkpoint
+ * holding how much of it is on disk and the hash of that much,
+ * so a transfer that is cut off can be resumed from there instead of from zero.
+ * <p>
+ * The checkpoint is only written after the data before it is forced to disk.
+ * When resuming, the part before the checkpoint is hashed again and compared
+ * with the checkpoint, which also restores the hash of the whole file
+ * that is checked against the sender's before the file is moved into place.
+ */
+public class PartialFile {
+	// Bytes received between two checkpoints.
+	static final long CHECKPOINT_INTERVAL = 8 << 20;
+
+	private static final int DIGEST_LENGTH = 16;
+
+	private final String filename;
+	private final long size;
+
+	// Hash of the whole file, announced by the sender.
+	private final byte[] digest;
+
+	private final Path data;
+	private final Path checkpoint;
+	private final FileChannel fileChannel;
+
+	// Hash of the bytes received so far.
+	private final MessageDigest received = BlockSignatures.md5();
+
+	// Bytes written so far.
+	private long written = 0;
+	private long checkpointed = 0;
+
+	// Where the next transfer has to start, ahead of "written"
+	// while the writes of the previous one are still queued.
+	private long offset = 0;
+
+	// True while a transfer is writing to it.
+	private boolean claimed = false;
+
+	private PartialFile(Path directory, String filename, long size, byte[] digest) throws IOException {
+		String key = key(filename);
+		this.filename = filename;
+		this.size = size;
+		this.digest = digest;
+		this.data = directory.resolve(key + ".part");
+		this.checkpoint = directory.resolve(key + ".ckpt");
+		this.fileChannel = FileChannel.open(data, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Resumes the partial file of this version of "filename" if there's a valid checkpoint,
+	 * otherwise starts it over.
+	 *
+	 * @param directory Where the partial files are kept.
+	 * @param filename  Path of the file, relative to the root directory.
+	 * @param size      Size of the whole file.
+	 * @param digest    Hash of the whole file.
+	 */
+	public static PartialFile open(Path directory, String filename, long size, byte[] digest) throws IOException {
+		directory.toFile().mkdirs();
+		PartialFile partial = new PartialFile(directory, filename, size, digest);
+		if (!partial.restore()) {
+			partial.fileChannel.truncate(0);
+			preallocate(partial.fileChannel, size);
+			partial.received.reset();
+			partial.written = 0;
+			partial.offset = 0;
+			partial.checkpointed = 0;
+			Files.deleteIfExists(partial.checkpoint);
+		}
+		return partial;
+	}
+
+	/**
+	 * @return True if the checkpoint belongs to this version of the file
+	 * and the data before it is intact.
+	 */
+	private boolean restore() {
+		if (!Files.exists(checkpoint))
+			return false;
+
+		long saved;
+		byte[] savedHash = new byte[DIGEST_LENGTH];
+		byte[] savedDigest = new byte[DIGEST_LENGTH];
+		try (DataInputStream in = new DataInputStream(new FileInputStream(checkpoint.toFile()))) {
+			if (!in.readUTF().equals(filename) || in.readLong() != size)
+				return false;
+			in.readFully(savedDigest);
+			saved = in.readLong();
+			in.readFully(savedHash);
+		} catch (IOException e) {
+			// Torn or from an older version.
+			return false;
+		}
+
+		try {
+			if (!Arrays.equals(savedDigest, digest) || saved > size || fileChannel.size() < saved)
+				return false;
+
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			long position = 0;
+			while (position < saved) {
+				buffer.limit((int) Math.min(buffer.capacity(), saved - position));
+				int read = fileChannel.read(buffer, position);
+				if (read <= 0)
+					return false;
+				buffer.flip();
+				received.update(buffer);
+				buffer.clear();
+				position += read;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+
+		MessageDigest copy = copy(received);
+		if (!Arrays.equals(copy.digest(), savedHash))
+			return false;
+
+		written = offset = checkpointed = saved;
+		return true;
+	}
+
+	/**
+	 * Sets the length of an empty file to the size announced, so it doesn't grow with every write.
+	 * Java has no fallocate(), the filesystem allocates the blocks as they're written,
+	 * all at once when the file is forced on delayed allocation filesystems (e.g. ext4, XFS).
+	 */
+	static void preallocate(FileChannel fileChannel, long size) throws IOException {
+		if (size > 0 && fileChannel.size() < size)
+			fileChannel.write(ByteBuffer.allocate(1), size - 1);
+	}
+
+	/**
+	 * Only one transfer writes to a partial file at a time.
+	 *
+	 * @param from Where the transfer starts.
+	 * @return False if another transfer is writing it, or it doesn't start at "from".
+	 */
+	public synchronized boolean claim(long from) {
+		if (claimed || from != offset)
+			return false;
+		return claimed = true;
+	}
+
+	public synchronized boolean isClaimed() {
+		return claimed;
+	}
+
+	/**
+	 * A transfer completed, the next one starts at "end"
+	 * even if its data isn't all written yet.
+	 */
+	public synchronized void transferred(long end) {
+		offset = end;
+		claimed = false;
+	}
+
+	/**
+	 * Appends the next chunk of the transfer.
+	 */
+	public synchronized void write(ByteBuffer chunk) {
+		ByteBuffer hashed = chunk.duplicate();
+		try {
+			while (chunk.hasRemaining())
+				written += fileChannel.write(chunk, written);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		received.update(hashed);
+
+		if (written - checkpointed >= CHECKPOINT_INTERVAL)
+			checkpoint();
+	}
+
+	/**
+	 * Forces the data to disk, then records how much of it there is.
+	 */
+	public synchronized void checkpoint() {
+		if (written == checkpointed)
+			return;
+		try {
+			fileChannel.force(false);
+
+			Path saved = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new FileOutputStream(saved.toFile()))) {
+				out.writeUTF(filename);
+				out.writeLong(size);
+				out.write(digest);
+				out.writeLong(written);
+				out.write(copy(received).digest());
+			}
+			Files.move(saved, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			checkpointed = written;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * The transfer was cut off, keep what was written for the next one.
+	 */
+	public synchronized void release() {
+		checkpoint();
+		offset = written;
+		claimed = false;
+	}
+
+	/**
+	 * @return True if all of the file was received and its hash is the sender's.
+	 */
+	public synchronized boolean isComplete() {
+		return written == size && Arrays.equals(copy(received).digest(), digest);
+	}
+
+	/**
+	 * Closes the file and drops the checkpoint, the file is then forced to disk
+	 * and moved into place by the caller (see "GroupCommit").
+	 *
+	 * @return Path of the received file.
+	 */
+	public synchronized Path finish() throws IOException {
+		fileChannel.close();
+		Files.deleteIfExists(checkpoint);
+		return data;
+	}
+
+	/**
+	 * Deletes the partial file and its checkpoint.
+	 */
+	public synchronized void discard() {
+		try {
+			fileChannel.close();
+			Files.deleteIfExists(data);
+			Files.deleteIfExists(checkpoint);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public byte[] getDigest() {
+		return digest;
+	}
+
+	/**
+	 * @return Where the next transfer has to start.
+	 */
+	public synchronized long getOffset() {
+		return offset;
+	}
+
+	public synchronized long getWritten() {
+		return written;
+	}
+
+	/**
+	 * The hash of the bytes so far without ending "received".
+	 */
+	private static MessageDigest copy(MessageDigest digest) {
+		try {
+			return (MessageDigest) digest.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Filenames can be nested and long, the partial files are named by their hash instead.
+	 */
+	private static String key(String filename) {
+		byte[] hash = BlockSignatures.md5().digest(filename.getBytes(StandardCharsets.UTF_8));
+		return String.format("%032x", new BigInteger(1, hash));
+	}
+}
@@ -0,0 +1,58 @@
+package storage;
+
+/**
+ * The rsync weak checksum, cheap enough to be updated byte by byte
+ * as a window slides over a file.
+ * <p>
+ * a = sum of the bytes in the window
+ * b = sum of the "a"s of every prefix of the window
+ * both modulo 2^16, the checksum is (b << 16) | a.
+ */
+class RollingChecksum {
+	private int a;
+	private int b;
+	private int length;
+
+	/**
+	 * Starts a new window over "data[offset, offset + length)".
+	 */
+	void reset(byte[] data, int offset, int length) {
+		a = 0;
+		b = 0;
+		this.length = length;
+		for (int i = 0; i < length; i++) {
+			a += data[offset + i] & 0xff;
+			b += (length - i) * (data[offset + i] & 0xff);
+		}
+	}
+
+	/**
+	 * Slides the window one byte forward.
+	 *
+	 * @param out The byte leaving the window.
+	 * @param in  The byte entering the window.
+	 */
+	void roll(byte out, byte in) {
+		a += (in & 0xff) - (out & 0xff);
+		b += a - length * (out & 0xff);
+	}
+
+	/**
+	 * Shrinks the window by dropping its first byte, used at the end of a file.
+	 */
+	void drop(byte out) {
+		a -= out & 0xff;
+		b -= length * (out & 0xff);
+		length--;
+	}
+
+	int value() {
+		return (b << 16) | (a & 0xffff);
+	}
+
+	static int of(byte[] data, int offset, int length) {
+		RollingChecksum checksum = new RollingChecksum();
+		checksum.reset(data, offset, length);
+		return checksum.value();
+	}
+}
@@ -0,0 +1,221 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A file being pulled in ranges from all the peers that have it at the same time.
+ * <p>
+ * Each peer has at most "MAX_REQUESTS_PER_PEER" ranges requested at a time and asks
+ * for the next one when a range arrives, so faster peers end up sending more ranges.
+ * When no range is left to request, idle peers also request the ranges still
+ * in flight from others (endgame), so one slow peer can't hold back the whole file.
+ */
+public class SwarmDownload {
+	public static final int RANGE_SIZE = 4 << 20;
+
+	// Smaller files are pushed whole by a single peer.
+	public static final long MIN_SWARM_SIZE = 4L * RANGE_SIZE;
+
+	private static final int MAX_REQUESTS_PER_PEER = 2;
+
+	private final String filename;
+	private final long size;
+
+	// Hash of the content, only the peers that announced the same one are asked for ranges.
+	private final byte[] digest;
+
+	// Where the ranges are written, moved into place when complete.
+	private final Path partialFile;
+	private final FileChannel fileChannel;
+
+	private final int rangeCount;
+	private final BitSet done;
+	private final ArrayDeque<Integer> pending = new ArrayDeque<>();
+
+	// Range -> peers it's currently requested from
+	private final Map<Integer, Set<UUID>> requested = new HashMap<>();
+
+	// Peer -> number of ranges currently requested from it
+	private final Map<UUID, Integer> outstanding = new HashMap<>();
+
+	/**
+	 * @param filename    Path of the file, relative to the root directory.
+	 * @param size        Size announced by the peers.
+	 * @param digest      Hash announced by the peers, checked once all the ranges arrived.
+	 * @param partialFile An empty temp file to write the ranges to.
+	 */
+	public SwarmDownload(String filename, long size, byte[] digest, Path partialFile) throws IOException {
+		this.filename = filename;
+		this.size = size;
+		this.digest = digest;
+		this.partialFile = partialFile;
+		this.fileChannel = FileChannel.open(partialFile, StandardOpenOption.WRITE);
+		PartialFile.preallocate(fileChannel, size);
+		this.rangeCount = (int) ((size + RANGE_SIZE - 1) / RANGE_SIZE);
+		this.done = new BitSet(rangeCount);
+		for (int i = 0; i < rangeCount; i++)
+			pending.add(i);
+	}
+
+	/**
+	 * A peer announced it has the file.
+	 *
+	 * @return The ranges to request from it now.
+	 */
+	public synchronized List<Integer> addPeer(UUID peer) {
+		outstanding.putIfAbsent(peer, 0);
+		return nextRanges(peer);
+	}
+
+	/**
+	 * A peer went offline, its ranges go back to the others.
+	 *
+	 * @return The ranges to request from each of the remaining peers now.
+	 */
+	public synchronized Map<UUID, List<Integer>> removePeer(UUID peer) {
+		if (outstanding.remove(peer) == null)
+			return Collections.emptyMap();
+
+		for (Map.Entry<Integer, Set<UUID>> range : requested.entrySet()) {
+			if (range.getValue().remove(peer) && range.getValue().isEmpty())
+				pending.addFirst(range.getKey());
+		}
+		requested.values().removeIf(Set::isEmpty);
+
+		Map<UUID, List<Integer>> next = new HashMap<>();
+		for (UUID other : outstanding.keySet())
+			next.put(other, nextRanges(other));
+		return next;
+	}
+
+	/**
+	 * A range transfer from this peer ended.
+	 *
+	 * @param completed False if the transfer was cancelled or failed.
+	 * @return The ranges to request from this peer next.
+	 */
+	public synchronized List<Integer> rangeEnded(UUID peer, int range, boolean completed) {
+		Set<UUID> peers = requested.get(range);
+		if (peers != null)
+			peers.remove(peer);
+		outstanding.computeIfPresent(peer, (p, count) -> count - 1);
+
+		if (completed) {
+			done.set(range);
+			requested.remove(range);
+		} else if (peers != null && peers.isEmpty() && !done.get(range)) {
+			requested.remove(range);
+			pending.addFirst(range);
+		}
+
+		// Don't keep asking a peer that failed.
+		return completed && outstanding.containsKey(peer) ? nextRanges(peer) : Collections.emptyList();
+	}
+
+	private List<Integer> nextRanges(UUID peer) {
+		List<Integer> ranges = new ArrayList<>();
+		while (outstanding.get(peer) < MAX_REQUESTS_PER_PEER) {
+			Integer range = pending.poll();
+			if (range == null)
+				range = endgameRange(peer);
+			if (range == null)
+				break;
+			if (done.get(range))
+				continue;
+
+			requested.computeIfAbsent(range, r -> new HashSet<>()).add(peer);
+			outstanding.put(peer, outstanding.get(peer) + 1);
+			ranges.add(range);
+		}
+		return ranges;
+	}
+
+	/**
+	 * @return The in flight range requested from the fewest peers, not already requested from "peer".
+	 */
+	private Integer endgameRange(UUID peer) {
+		Integer best = null;
+		int bestPeers = Integer.MAX_VALUE;
+		for (Map.Entry<Integer, Set<UUID>> range : requested.entrySet()) {
+			if (!range.getValue().contains(peer) && range.getValue().size() < bestPeers) {
+				best = range.getKey();
+				bestPeers = range.getValue().size();
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Writes a chunk of a range at its position in the file.
+	 */
+	public void write(long position, ByteBuffer data) {
+		// Discarded while the range was on its way.
+		if (!fileChannel.isOpen())
+			return;
+		try {
+			while (data.hasRemaining())
+				position += fileChannel.write(data, position);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized boolean isComplete() {
+		return done.cardinality() == rangeCount;
+	}
+
+	/**
+	 * Closes the partial file.
+	 *
+	 * @return The complete file, to be moved into place (see "GroupCommit").
+	 */
+	public Path finish() throws IOException {
+		fileChannel.close();
+		return partialFile;
+	}
+
+	/**
+	 * Drops what arrived, the ranges still in flight find the download gone.
+	 */
+	public void discard() {
+		try {
+			fileChannel.close();
+			Files.deleteIfExists(partialFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return True if a peer announced this same content.
+	 */
+	public boolean hasDigest(byte[] digest) {
+		return Arrays.equals(this.digest, digest);
+	}
+
+	public byte[] getDigest() {
+		return digest;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public long getOffset(int range) {
+		return (long) range * RANGE_SIZE;
+	}
+
+	public int getLength(int range) {
+		return (int) Math.min(RANGE_SIZE, size - getOffset(range));
+	}
+
+	public int getRange(long offset) {
+		return (int) (offset / RANGE_SIZE);
+	}
+}
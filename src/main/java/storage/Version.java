@@ -0,0 +1,201 @@
+package storage;
+
+import controllers.MessageReader;
+import controllers.MessageWriter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Version of a file: how many times each node changed it (a version vector, keyed by the id
+ * of the node's "ChangeJournal"), and the hash of its content, or when it was deleted.
+ * <p>
+ * A version that counts at least as many changes of every node as another one is newer,
+ * if neither is, both were changed independently and "beats()" picks the same one on every node.
+ * A deleted file keeps its version as a tombstone, so a peer that still has an older copy
+ * deletes it too instead of sending it back.
+ */
+public class Version {
+	public static final int EQUAL = 0;
+	public static final int OLDER = -1;
+	public static final int NEWER = 1;
+	public static final int CONCURRENT = 2;
+
+	// Node -> number of changes, sorted so that equal versions are encoded the same.
+	private final TreeMap<UUID, Long> counters;
+
+	// Hash of the content, null if the file was deleted.
+	private final byte[] digest;
+
+	// When it was deleted, in ms, for tombstones to be dropped after a while (see "VersionStore").
+	private final long deleted;
+
+	private Version(TreeMap<UUID, Long> counters, byte[] digest, long deleted) {
+		this.counters = counters;
+		this.digest = digest;
+		this.deleted = deleted;
+	}
+
+	/**
+	 * @return The version after "node" changed the content to "digest".
+	 */
+	public static Version changed(Version previous, UUID node, byte[] digest) {
+		return new Version(increment(previous, node), digest, 0);
+	}
+
+	/**
+	 * @return The version after "node" deleted the file.
+	 */
+	public static Version deleted(Version previous, UUID node) {
+		return new Version(increment(previous, node), null, System.currentTimeMillis());
+	}
+
+	private static TreeMap<UUID, Long> increment(Version previous, UUID node) {
+		TreeMap<UUID, Long> counters = previous == null ? new TreeMap<>() : new TreeMap<>(previous.counters);
+		counters.merge(node, 1L, Long::sum);
+		return counters;
+	}
+
+	/**
+	 * @return This version, counting all the changes "other" counts too.
+	 */
+	public Version merge(Version other) {
+		if (other == null)
+			return this;
+		TreeMap<UUID, Long> merged = new TreeMap<>(counters);
+		other.counters.forEach((node, count) -> merged.merge(node, count, Math::max));
+		return new Version(merged, digest, deleted);
+	}
+
+	/**
+	 * @return "NEWER" if this version counts all the changes "other" does and more, "OLDER" if the opposite,
+	 * "EQUAL" or "CONCURRENT" if each counts changes the other doesn't.
+	 */
+	public int compare(Version other) {
+		boolean more = false;
+		boolean less = false;
+		Set<UUID> nodes = new HashSet<>(counters.keySet());
+		nodes.addAll(other.counters.keySet());
+		for (UUID node : nodes) {
+			long mine = counters.getOrDefault(node, 0L);
+			long theirs = other.counters.getOrDefault(node, 0L);
+			more |= mine > theirs;
+			less |= mine < theirs;
+		}
+		return more ? (less ? CONCURRENT : NEWER) : (less ? OLDER : EQUAL);
+	}
+
+	/**
+	 * @return True if this version should replace "other", the same answer on every node:
+	 * newer ones do, and of two concurrent ones the content wins over a delete, then the higher hash.
+	 */
+	public boolean beats(Version other) {
+		if (other == null)
+			return true;
+		int order = compare(other);
+		if (order != CONCURRENT)
+			return order == NEWER;
+		if (isDeleted() != other.isDeleted())
+			return !isDeleted();
+		return !isDeleted() && ByteBuffer.wrap(digest).compareTo(ByteBuffer.wrap(other.digest)) > 0;
+	}
+
+	/**
+	 * @return True if both are the same content, or both deleted.
+	 */
+	public boolean sameContent(Version other) {
+		return other != null && Arrays.equals(digest, other.digest);
+	}
+
+	public boolean isDeleted() {
+		return digest == null;
+	}
+
+	public byte[] getDigest() {
+		return digest;
+	}
+
+	public long getDeleted() {
+		return deleted;
+	}
+
+	/**
+	 * @return Hash of the content and the counters, for the "MerkleTree".
+	 */
+	public byte[] hash() {
+		MessageDigest hash = BlockSignatures.md5();
+		hash.update(digest == null ? new byte[1] : digest);
+		ByteBuffer counter = ByteBuffer.allocate(24);
+		for (Map.Entry<UUID, Long> entry : counters.entrySet()) {
+			counter.clear();
+			counter.putLong(entry.getKey().getMostSignificantBits())
+					.putLong(entry.getKey().getLeastSignificantBits())
+					.putLong(entry.getValue());
+			hash.update(counter.array());
+		}
+		return hash.digest();
+	}
+
+	public void write(MessageWriter writer) {
+		writer.writeBoolean(digest != null);
+		if (digest != null)
+			writer.writeBytes(digest);
+		else
+			writer.writeVarLong(deleted);
+
+		writer.writeVarInt(counters.size());
+		for (Map.Entry<UUID, Long> entry : counters.entrySet())
+			writer.writeVarLong(entry.getKey().getMostSignificantBits())
+					.writeVarLong(entry.getKey().getLeastSignificantBits())
+					.writeVarLong(entry.getValue());
+	}
+
+	public static Version read(MessageReader reader) {
+		byte[] digest = null;
+		long deleted = 0;
+		if (reader.readBoolean())
+			digest = reader.readBytes();
+		else
+			deleted = reader.readVarLong();
+
+		TreeMap<UUID, Long> counters = new TreeMap<>();
+		for (int i = reader.readVarInt(); i > 0; i--)
+			counters.put(new UUID(reader.readVarLong(), reader.readVarLong()), reader.readVarLong());
+		return new Version(counters, digest, deleted);
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeBoolean(digest != null);
+		if (digest != null) {
+			out.writeByte(digest.length);
+			out.write(digest);
+		} else
+			out.writeLong(deleted);
+
+		out.writeInt(counters.size());
+		for (Map.Entry<UUID, Long> entry : counters.entrySet()) {
+			out.writeLong(entry.getKey().getMostSignificantBits());
+			out.writeLong(entry.getKey().getLeastSignificantBits());
+			out.writeLong(entry.getValue());
+		}
+	}
+
+	static Version read(DataInput in) throws IOException {
+		byte[] digest = null;
+		long deleted = 0;
+		if (in.readBoolean()) {
+			digest = new byte[in.readUnsignedByte()];
+			in.readFully(digest);
+		} else
+			deleted = in.readLong();
+
+		TreeMap<UUID, Long> counters = new TreeMap<>();
+		for (int i = in.readInt(); i > 0; i--)
+			counters.put(new UUID(in.readLong(), in.readLong()), in.readLong());
+		return new Version(counters, digest, deleted);
+	}
+}
@@ -0,0 +1,195 @@
+package storage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Persistent "Version" of every file, and the tombstones of the deleted ones
+ * until they're older than "HORIZON_DAYS" (-Ddrds.tombstones.days).
+ * A peer that was away longer than that may bring a deleted file back.
+ * <p>
+ * Stored like the "FileIndex", as an append-only log of records, replayed on load,
+ * and rewritten when most of it is outdated.
+ */
+public class VersionStore {
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	public static final long HORIZON_DAYS = Long.getLong("drds.tombstones.days", 30);
+
+	private final Path file;
+	private DataOutputStream log;
+
+	private final Map<String, Version> versions = new HashMap<>();
+
+	// Records in the log, compared to the live entries to decide when to rewrite it.
+	private int records = 0;
+
+	private VersionStore(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Loads the versions, or creates an empty store the first time.
+	 *
+	 * @param file Where the versions are stored.
+	 */
+	public static VersionStore open(Path file) throws IOException {
+		VersionStore store = new VersionStore(file);
+		file.getParent().toFile().mkdirs();
+
+		boolean torn = false;
+		if (Files.exists(file)) {
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file.toFile()), 1 << 16))) {
+				while (true) {
+					int op = in.read();
+					if (op < 0)
+						break;
+					String path = in.readUTF();
+					if (op == PUT)
+						store.versions.put(path, Version.read(in));
+					else if (op == REMOVE)
+						store.versions.remove(path);
+					else
+						throw new EOFException("Unknown record " + op);
+					store.records++;
+				}
+			} catch (EOFException e) {
+				// The last record was cut short by a crash, it's dropped by the rewrite below.
+				torn = true;
+			}
+		}
+
+		if (torn || store.records > 2 * store.versions.size() + 1024)
+			store.compact();
+		else
+			store.log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile(), true), 1 << 16));
+
+		return store;
+	}
+
+	/**
+	 * @return The version of the file, a tombstone if it was deleted, or null if I never heard of it.
+	 */
+	public synchronized Version get(String path) {
+		return versions.get(path);
+	}
+
+	public synchronized void put(String path, Version version) {
+		versions.put(path, version);
+		try {
+			log.writeByte(PUT);
+			log.writeUTF(path);
+			version.write(log);
+			records++;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * The file at "path" has this content now.
+	 *
+	 * @return Its version, a new one counting a change of "node" if the content isn't the one of its version.
+	 */
+	public synchronized Version changed(String path, byte[] digest, UUID node) {
+		Version version = versions.get(path);
+		if (version != null && Arrays.equals(version.getDigest(), digest))
+			return version;
+		version = Version.changed(version, node, digest);
+		put(path, version);
+		return version;
+	}
+
+	/**
+	 * The file at "path" is gone.
+	 *
+	 * @return Its tombstone, counting a delete of "node", or null if it already was one (e.g. deleted by a peer).
+	 */
+	public synchronized Version deleted(String path, UUID node) {
+		Version version = versions.get(path);
+		if (version != null && version.isDeleted())
+			return null;
+		version = Version.deleted(version, node);
+		put(path, version);
+		return version;
+	}
+
+	/**
+	 * Drops the tombstones older than the horizon.
+	 *
+	 * @return The paths of the dropped tombstones.
+	 */
+	public synchronized List<String> expire() {
+		long horizon = System.currentTimeMillis() - HORIZON_DAYS * 24 * 60 * 60 * 1000;
+		List<String> expired = new ArrayList<>();
+		for (Map.Entry<String, Version> entry : versions.entrySet())
+			if (entry.getValue().isDeleted() && entry.getValue().getDeleted() < horizon)
+				expired.add(entry.getKey());
+
+		for (String path : expired) {
+			versions.remove(path);
+			try {
+				log.writeByte(REMOVE);
+				log.writeUTF(path);
+				records++;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * @return A copy of the paths of the tombstones.
+	 */
+	public synchronized Collection<String> tombstones() {
+		List<String> tombstones = new ArrayList<>();
+		versions.forEach((path, version) -> {
+			if (version.isDeleted())
+				tombstones.add(path);
+		});
+		return tombstones;
+	}
+
+	/**
+	 * Writes the buffered records to disk, called after each batch of changes.
+	 */
+	public synchronized void flush() {
+		try {
+			log.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (records > 2 * versions.size() + 1024)
+			compact();
+	}
+
+	/**
+	 * Rewrites the log with only the live entries, then atomically replaces the old one.
+	 */
+	private void compact() {
+		try {
+			if (log != null)
+				log.close();
+
+			Path rewritten = file.resolveSibling(file.getFileName() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(rewritten.toFile()), 1 << 16))) {
+				log = out;
+				records = 0;
+				Map<String, Version> live = new HashMap<>(versions);
+				live.forEach(this::put);
+			}
+			Files.move(rewritten, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile(), true), 1 << 16));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
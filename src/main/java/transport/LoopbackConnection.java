@@ -0,0 +1,137 @@
+package transport;
+
+import de.tum.in.www1.jReto.module.api.Connection;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * One end of a connection between two "LoopbackModule"s, packets are delivered
+ * whole and in order like on the "WlanModule"'s TCP connections.
+ */
+public class LoopbackConnection implements Connection {
+	// Same as the "WlanModule".
+	private static final int PACKET_SIZE = 32 << 10;
+
+	private final LoopbackModule local;
+	private final LoopbackModule remote;
+	private final LoopbackNetwork network;
+
+	private Handler handler;
+	private volatile boolean connected = false;
+
+	// The other end, set once connected.
+	private LoopbackConnection other;
+
+	// Packets on their way to this end, delivered in order whichever of their timers fires first.
+	private final Queue<ByteBuffer> inFlight = new ArrayDeque<>();
+
+	// When the last packet to the other end arrives, the ones after it can't overtake it.
+	private long lastArrival = 0;
+
+	LoopbackConnection(LoopbackModule local, LoopbackModule remote) {
+		this.local = local;
+		this.remote = remote;
+		this.network = local.getNetwork();
+	}
+
+	@Override
+	public void setHandler(Handler handler) {
+		this.handler = handler;
+	}
+
+	@Override
+	public Handler getHandler() {
+		return handler;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return connected;
+	}
+
+	@Override
+	public int getRecommendedPacketSize() {
+		return PACKET_SIZE;
+	}
+
+	/**
+	 * Takes a round trip, like a TCP handshake.
+	 */
+	@Override
+	public void connect() {
+		long latency = network.getLatencyNanos();
+		network.schedule(() -> {
+			LoopbackConnection accepted = new LoopbackConnection(remote, local);
+			accepted.other = this;
+			accepted.connected = true;
+			if (!remote.accept(accepted)) {
+				network.schedule(() -> local.execute(() -> handler.onClose(this)), System.nanoTime() + latency);
+				return;
+			}
+			network.schedule(() -> {
+				other = accepted;
+				connected = true;
+				local.execute(() -> handler.onConnect(this));
+			}, System.nanoTime() + latency);
+		}, System.nanoTime() + latency);
+	}
+
+	@Override
+	public void close() {
+		if (!connected)
+			return;
+		connected = false;
+		local.execute(() -> handler.onClose(this));
+
+		LoopbackConnection other = this.other;
+		network.schedule(other::closed, System.nanoTime() + network.getLatencyNanos());
+	}
+
+	/**
+	 * The other end closed the connection.
+	 */
+	private void closed() {
+		if (!connected)
+			return;
+		connected = false;
+		local.execute(() -> handler.onClose(this));
+	}
+
+	@Override
+	public void writeData(ByteBuffer data) {
+		if (!connected)
+			return;
+
+		// The caller reuses its buffer once it's sent,
+		// and jReto reads packets as little endian, like the "WlanModule" hands them over.
+		ByteBuffer packet = ByteBuffer.allocate(data.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+		packet.put(data).flip();
+
+		int length = packet.remaining();
+		long departure = local.transmit(length);
+		long arrival;
+		synchronized (this) {
+			arrival = lastArrival = Math.max(lastArrival,
+					departure + network.getLatencyNanos() + network.sent(length));
+		}
+
+		LoopbackConnection other = this.other;
+		synchronized (other.inFlight) {
+			other.inFlight.add(packet);
+		}
+		network.schedule(() -> local.execute(() -> handler.onDataSent(this)), departure);
+		network.schedule(() -> remote.execute(other::deliver), arrival);
+	}
+
+	private void deliver() {
+		ByteBuffer packet;
+		synchronized (inFlight) {
+			packet = inFlight.poll();
+		}
+		if (packet != null && connected)
+			handler.onDataReceived(this, packet);
+	}
+}
@@ -0,0 +1,174 @@
+package transport;
+
+import de.tum.in.www1.jReto.module.api.Address;
+import de.tum.in.www1.jReto.module.api.Advertiser;
+import de.tum.in.www1.jReto.module.api.Browser;
+import de.tum.in.www1.jReto.module.api.Connection;
+import de.tum.in.www1.jReto.module.api.Module;
+
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * A jReto module on a "LoopbackNetwork" instead of the LAN, one per node,
+ * used in place of the "WlanModule" with -Ddrds.transport=loopback.
+ * <p>
+ * All the handlers are called on the executor of the local peer, like the other modules do.
+ */
+public class LoopbackModule implements Module {
+	private final LoopbackNetwork network;
+	private final LoopbackAdvertiser advertiser = new LoopbackAdvertiser();
+	private final LoopbackBrowser browser = new LoopbackBrowser();
+	private Executor executor;
+
+	// When the uplink is free again, in "System.nanoTime()".
+	private long uplinkFreeAt = 0;
+
+	public LoopbackModule(LoopbackNetwork network) {
+		this.network = network;
+	}
+
+	@Override
+	public Advertiser getAdvertiser() {
+		return advertiser;
+	}
+
+	@Override
+	public Browser getBrowser() {
+		return browser;
+	}
+
+	@Override
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	LoopbackNetwork getNetwork() {
+		return network;
+	}
+
+	void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Queues a packet on the uplink.
+	 *
+	 * @return When it has left this node.
+	 */
+	synchronized long transmit(int length) {
+		uplinkFreeAt = Math.max(System.nanoTime(), uplinkFreeAt) + network.transmissionTime(length);
+		return uplinkFreeAt;
+	}
+
+	void discovered(LoopbackModule module, UUID identifier) {
+		if (browser.browsing)
+			execute(() -> browser.handler.onAddressDiscovered(browser, new LoopbackAddress(module), identifier));
+	}
+
+	void removed(LoopbackModule module, UUID identifier) {
+		if (browser.browsing)
+			execute(() -> browser.handler.onAddressRemoved(browser, new LoopbackAddress(module), identifier));
+	}
+
+	/**
+	 * A connection from another node arrived.
+	 *
+	 * @return False if this node isn't accepting connections.
+	 */
+	boolean accept(LoopbackConnection connection) {
+		if (!network.isAdvertising(this))
+			return false;
+		execute(() -> advertiser.handler.onConnection(advertiser, connection));
+		return true;
+	}
+
+	private class LoopbackAdvertiser implements Advertiser {
+		private Handler handler;
+		private volatile boolean advertising = false;
+
+		@Override
+		public void setAdvertiserHandler(Handler handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public Handler getAdvertiserHandler() {
+			return handler;
+		}
+
+		@Override
+		public boolean isAdvertising() {
+			return advertising;
+		}
+
+		@Override
+		public void startAdvertisingWithPeerIdentifier(UUID identifier) {
+			advertising = true;
+			execute(() -> handler.onAdvertisingStarted(this));
+			network.advertise(LoopbackModule.this, identifier);
+		}
+
+		@Override
+		public void stopAdvertising() {
+			advertising = false;
+			network.stopAdvertising(LoopbackModule.this);
+			execute(() -> handler.onAdvertisingStopped(this));
+		}
+	}
+
+	private class LoopbackBrowser implements Browser {
+		private Handler handler;
+		private volatile boolean browsing = false;
+
+		@Override
+		public void setBrowserHandler(Handler handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public Handler getBrowserHandler() {
+			return handler;
+		}
+
+		@Override
+		public boolean isBrowsing() {
+			return browsing;
+		}
+
+		@Override
+		public void startBrowsing() {
+			browsing = true;
+			execute(() -> handler.onBrowsingStarted(this));
+			network.browse(LoopbackModule.this);
+		}
+
+		@Override
+		public void stopBrowsing() {
+			browsing = false;
+			network.stopBrowsing(LoopbackModule.this);
+			execute(() -> handler.onBrowsingStopped(this, null));
+		}
+	}
+
+	/**
+	 * Where another node can be reached.
+	 */
+	private class LoopbackAddress implements Address {
+		private final LoopbackModule remote;
+
+		LoopbackAddress(LoopbackModule remote) {
+			this.remote = remote;
+		}
+
+		@Override
+		public Connection createConnection() {
+			return new LoopbackConnection(LoopbackModule.this, remote);
+		}
+
+		@Override
+		public int getCost() {
+			return 1;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package transport;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process network the "LoopbackModule"s of one JVM find and connect to each other on,
+ * so several nodes can replicate without a LAN (see "benchmarks.Simulation").
+ * <p>
+ * Every node has an uplink of "bandwidth" bytes per second shared by its connections,
+ * packets arrive "latency" after they left it. The connections are reliable streams,
+ * like the TCP ones of the "WlanModule", so a lost packet isn't dropped but retransmitted:
+ * it arrives a retransmission timeout later, holding up the packets behind it.
+ */
+public class LoopbackNetwork {
+	private static LoopbackNetwork ourInstance = new LoopbackNetwork();
+
+	// Minimum retransmission timeout, as in TCP.
+	private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(200);
+
+	// Advertising modules by the identifier of their peer
+	private final Map<LoopbackModule, UUID> advertisers = new ConcurrentHashMap<>();
+	private final Map<LoopbackModule, Boolean> browsers = new ConcurrentHashMap<>();
+
+	// Delivers the packets and connection events once they're due.
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "loopback");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private volatile long latency = 0;
+	private volatile long bandwidth = 0;
+	private volatile double loss = 0;
+
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong packets = new AtomicLong();
+	private final AtomicLong lost = new AtomicLong();
+
+	private LoopbackNetwork() {}
+
+	public static LoopbackNetwork getInstance() {
+		return ourInstance;
+	}
+
+	/**
+	 * @param latency One way, in milliseconds.
+	 */
+	public void setLatency(long latency) {
+		this.latency = TimeUnit.MILLISECONDS.toNanos(latency);
+	}
+
+	/**
+	 * @param bandwidth Uplink of each node in bytes per second, 0 for unlimited.
+	 */
+	public void setBandwidth(long bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * @param loss Probability of each packet being lost, from 0 to 1.
+	 */
+	public void setLoss(double loss) {
+		this.loss = loss;
+	}
+
+	void advertise(LoopbackModule module, UUID identifier) {
+		advertisers.put(module, identifier);
+		for (LoopbackModule browser : browsers.keySet())
+			if (browser != module)
+				browser.discovered(module, identifier);
+	}
+
+	void stopAdvertising(LoopbackModule module) {
+		UUID identifier = advertisers.remove(module);
+		if (identifier == null)
+			return;
+		for (LoopbackModule browser : browsers.keySet())
+			if (browser != module)
+				browser.removed(module, identifier);
+	}
+
+	void browse(LoopbackModule module) {
+		browsers.put(module, true);
+		for (Map.Entry<LoopbackModule, UUID> advertiser : advertisers.entrySet())
+			if (advertiser.getKey() != module)
+				module.discovered(advertiser.getKey(), advertiser.getValue());
+	}
+
+	void stopBrowsing(LoopbackModule module) {
+		browsers.remove(module);
+	}
+
+	boolean isAdvertising(LoopbackModule module) {
+		return advertisers.containsKey(module);
+	}
+
+	/**
+	 * @param at When to run it, in "System.nanoTime()".
+	 */
+	void schedule(Runnable task, long at) {
+		scheduler.schedule(task, Math.max(0, at - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return How long "length" bytes take to go through an uplink, in nanoseconds.
+	 */
+	long transmissionTime(int length) {
+		long bandwidth = this.bandwidth;
+		return bandwidth == 0 ? 0 : length * 1_000_000_000L / bandwidth;
+	}
+
+	/**
+	 * Counts a packet that left its node.
+	 *
+	 * @return The extra delay before it arrives, if it got lost on the way.
+	 */
+	long sent(int length) {
+		bytes.addAndGet(length);
+		packets.incrementAndGet();
+		if (loss == 0 || ThreadLocalRandom.current().nextDouble() >= loss)
+			return 0;
+		lost.incrementAndGet();
+		return Math.max(MIN_RTO, 2 * latency);
+	}
+
+	long getLatencyNanos() {
+		return latency;
+	}
+
+	/**
+	 * @return Total bytes sent by all nodes.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public long getPackets() {
+		return packets.get();
+	}
+
+	public long getLost() {
+		return lost.get();
+	}
+}
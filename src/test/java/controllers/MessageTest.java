@@ -0,0 +1,150 @@
+package controllers;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * What "MessageWriter" encodes, "MessageReader" decodes back.
+ */
+public class MessageTest {
+	private static final int[] INTS = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+
+	private static final long[] LONGS = {0, 1, 127, 128, 1L << 35, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+
+	private static final String[] STRINGS = {"", "ascii", "/folder1/file.txt", "\u00e9", "\u65e5\u672c\u8a9e", "\ud83d\ude00 emoji", "\u0000"};
+
+	@Test
+	public void varIntRoundTrip() throws IOException {
+		MessageWriter writer = new MessageWriter(MessageType.LOGIN);
+		for (int value : INTS)
+			writer.writeVarInt(value);
+
+		MessageReader reader = new MessageReader(writer.finish());
+		assertEquals(MessageType.LOGIN, reader.getType());
+		for (int value : INTS)
+			assertEquals(value, reader.readVarInt());
+		assertFalse(reader.hasRemaining());
+	}
+
+	@Test
+	public void varLongRoundTrip() throws IOException {
+		MessageWriter writer = new MessageWriter(MessageType.FILE);
+		for (long value : LONGS)
+			writer.writeVarLong(value);
+
+		MessageReader reader = new MessageReader(writer.finish());
+		for (long value : LONGS)
+			assertEquals(value, reader.readVarLong());
+		assertFalse(reader.hasRemaining());
+	}
+
+	@Test
+	public void stringRoundTrip() throws IOException {
+		MessageWriter writer = new MessageWriter(MessageType.FILE, 0);
+		for (String value : STRINGS)
+			writer.writeString(value);
+
+		MessageReader reader = new MessageReader(writer.finish());
+		for (String value : STRINGS)
+			assertEquals(value, reader.readString());
+		assertFalse(reader.hasRemaining());
+	}
+
+	@Test
+	public void stringIsUtf8() throws IOException {
+		String value = "a\u00e9\u65e5\ud83d\ude00";
+		MessageReader reader = new MessageReader(new MessageWriter(MessageType.FILE).writeString(value).finish());
+		assertArrayEquals(value.getBytes(StandardCharsets.UTF_8), reader.readBytes());
+	}
+
+	@Test
+	public void unpairedSurrogateIsReplaced() throws IOException {
+		MessageReader reader = new MessageReader(new MessageWriter(MessageType.FILE)
+				.writeString("a\ud800b")
+				.writeString("c\udc00")
+				.finish());
+		assertEquals("a?b", reader.readString());
+		assertEquals("c?", reader.readString());
+	}
+
+	@Test
+	public void mixedFieldsRoundTrip() throws IOException {
+		byte[] digest = new byte[16];
+		digest[3] = 42;
+		MessageReader reader = new MessageReader(new MessageWriter(MessageType.DELTA_OFFER)
+				.writeString("/file")
+				.writeBoolean(true)
+				.writeInt(-5)
+				.writeBytes(digest)
+				.writeRaw(digest)
+				.writeByte((byte) 7)
+				.finish());
+		assertEquals("/file", reader.readString());
+		assertEquals(true, reader.readBoolean());
+		assertEquals(-5, reader.readInt());
+		assertArrayEquals(digest, reader.readBytes());
+		assertArrayEquals(digest, reader.readRaw(16));
+		assertEquals(7, reader.readByte());
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedHeader() throws IOException {
+		new MessageReader(ByteBuffer.wrap(new byte[MessageWriter.HEADER_LENGTH - 1]));
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedBody() throws IOException {
+		ByteBuffer data = new MessageWriter(MessageType.FILE).writeString("/folder1/file.txt").finish();
+		data.limit(data.limit() - 1);
+		new MessageReader(data);
+	}
+
+	@Test(expected = IOException.class)
+	public void otherProtocolVersion() throws IOException {
+		ByteBuffer data = new MessageWriter(MessageType.FILE).finish();
+		data.put(0, (byte) (MessageWriter.VERSION - 1));
+		new MessageReader(data);
+	}
+
+	@Test(expected = BufferUnderflowException.class)
+	public void readingPastTheEnd() throws IOException {
+		MessageReader reader = new MessageReader(new MessageWriter(MessageType.FILE).writeVarInt(300).finish());
+		reader.readVarInt();
+		reader.readVarInt();
+	}
+
+	@Test(expected = BufferUnderflowException.class)
+	public void varIntCutOff() throws IOException {
+		// A varint whose last byte is missing, the msg itself is complete.
+		MessageReader reader = new MessageReader(new MessageWriter(MessageType.FILE).writeByte((byte) 0x80).finish());
+		reader.readVarInt();
+	}
+
+	@Test(expected = BufferUnderflowException.class)
+	public void negativeBytesLength() throws IOException {
+		new MessageReader(new MessageWriter(MessageType.FILE).writeVarInt(-1).finish()).readBytes();
+	}
+
+	@Test(expected = BufferUnderflowException.class)
+	public void bytesLongerThanTheMsg() throws IOException {
+		// Thrown before 2 GB are allocated for it.
+		new MessageReader(new MessageWriter(MessageType.FILE).writeVarInt(Integer.MAX_VALUE).finish()).readBytes();
+	}
+
+	@Test(expected = BufferUnderflowException.class)
+	public void stringLongerThanTheMsg() throws IOException {
+		// The length says 10 bytes, only 3 follow, even though the buffer goes on after the msg.
+		ByteBuffer data = new MessageWriter(MessageType.FILE).writeVarInt(10).writeRaw("abc".getBytes(StandardCharsets.UTF_8))
+				.writeRaw(new byte[16]).finish();
+		data.putInt(2, 4);
+		new MessageReader(data).readString();
+	}
+}
@@ -0,0 +1,133 @@
+package storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * "BlockSignatures" of an old copy, "Delta" of a new one against them,
+ * then the delta applied to the old copy must give back the new one.
+ */
+public class DeltaTest {
+	private final Random random = new Random(7);
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("delta");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	public void unchanged() throws IOException {
+		byte[] old = bytes(100_000);
+		roundTrip(old, old);
+	}
+
+	@Test
+	public void insertion() throws IOException {
+		byte[] old = bytes(100_000);
+		roundTrip(old, concat(Arrays.copyOf(old, 30_001), bytes(777), Arrays.copyOfRange(old, 30_001, old.length)));
+	}
+
+	@Test
+	public void deletion() throws IOException {
+		byte[] old = bytes(100_000);
+		roundTrip(old, concat(Arrays.copyOf(old, 20_000), Arrays.copyOfRange(old, 25_123, old.length)));
+	}
+
+	@Test
+	public void editOnBlockBoundaries() throws IOException {
+		byte[] old = bytes(100_000);
+		int blockSize = BlockSignatures.blockSizeFor(old.length);
+		byte[] edited = old.clone();
+		// The last byte of a block, the first of the next one, and the very last byte.
+		edited[blockSize - 1] ^= 1;
+		edited[2 * blockSize] ^= 1;
+		edited[edited.length - 1] ^= 1;
+		roundTrip(old, edited);
+	}
+
+	@Test
+	public void appendedToAShortLastBlock() throws IOException {
+		byte[] old = bytes(3 * BlockSignatures.blockSizeFor(10_000) + 10);
+		roundTrip(old, concat(old, bytes(5_000)));
+	}
+
+	@Test
+	public void emptyOldCopy() throws IOException {
+		roundTrip(new byte[0], bytes(10_000));
+	}
+
+	@Test
+	public void emptyNewVersion() throws IOException {
+		roundTrip(bytes(10_000), new byte[0]);
+	}
+
+	@Test
+	public void shorterThanABlock() throws IOException {
+		byte[] old = bytes(100);
+		byte[] edited = old.clone();
+		edited[50] ^= 1;
+		roundTrip(old, edited);
+	}
+
+	private void roundTrip(byte[] old, byte[] edited) throws IOException {
+		Path basis = Files.write(dir.resolve("basis"), old);
+		Path source = Files.write(dir.resolve("source"), edited);
+		Path deltaFile = dir.resolve("delta");
+		Path target = dir.resolve("target");
+
+		BlockSignatures signatures;
+		try (FileChannel channel = FileChannel.open(basis, StandardOpenOption.READ)) {
+			signatures = BlockSignatures.compute(channel, "/file");
+		}
+		byte[] digest;
+		try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+			digest = Delta.compute(channel, signatures, deltaFile);
+		}
+
+		assertArrayEquals(BlockSignatures.md5().digest(edited), digest);
+		assertTrue(Delta.apply(basis, deltaFile, target));
+		assertArrayEquals(edited, Files.readAllBytes(target));
+	}
+
+	private byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts)
+			length += part.length;
+		byte[] all = new byte[length];
+		int offset = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, all, offset, part.length);
+			offset += part.length;
+		}
+		return all;
+	}
+}
@@ -0,0 +1,114 @@
+package storage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MerkleTreeTest {
+	private static final UUID NODE = new UUID(0, 1);
+
+	private final List<String> missing = new ArrayList<>();
+	private final List<String> newer = new ArrayList<>();
+	private final List<String> versions = new ArrayList<>();
+	private final List<String> different = new ArrayList<>();
+
+	@Test
+	public void sameFilesSameHash() {
+		MerkleTree mine = tree("/a", "/d/b");
+		MerkleTree theirs = tree("/d/b", "/a");
+		assertArrayEquals(mine.hash(""), theirs.hash(""));
+
+		mine.compare(theirs.list(""), missing, newer, versions, different);
+		assertTrue(missing.isEmpty() && newer.isEmpty() && versions.isEmpty() && different.isEmpty());
+	}
+
+	@Test
+	public void missingFileAndDifferentDirectory() {
+		MerkleTree mine = tree("/a", "/d/b", "/d/c");
+		MerkleTree theirs = tree("/d/b");
+
+		mine.compare(theirs.list(""), missing, newer, versions, different);
+		assertEquals(Collections.singletonList("/a"), missing);
+		assertEquals(Collections.singletonList("/d"), different);
+
+		missing.clear();
+		mine.compare(theirs.list("/d"), missing, newer, versions, different);
+		assertEquals(Collections.singletonList("/d/c"), missing);
+	}
+
+	@Test
+	public void newerVersion() {
+		MerkleTree mine = new MerkleTree();
+		MerkleTree theirs = new MerkleTree();
+		Version first = Version.changed(null, NODE, digest(1));
+		theirs.add("/a", first);
+		mine.add("/a", Version.changed(first, NODE, digest(2)));
+
+		mine.compare(theirs.list(""), missing, newer, versions, different);
+		assertEquals(Collections.singletonList("/a"), newer);
+		assertTrue(missing.isEmpty());
+	}
+
+	@Test
+	public void fileReplacedByADirectory() {
+		// "/x" is a file on their side, a directory with a file in it on mine.
+		MerkleTree mine = tree("/x/y");
+		MerkleTree theirs = tree("/x");
+
+		mine.compare(theirs.list(""), missing, newer, versions, different);
+		assertEquals(Collections.singletonList("/x/y"), missing);
+		assertTrue(different.isEmpty());
+	}
+
+	@Test
+	public void directoryReplacedByAFile() {
+		MerkleTree mine = tree("/x");
+		MerkleTree theirs = tree("/x/y");
+
+		mine.compare(theirs.list(""), missing, newer, versions, different);
+		assertEquals(Collections.singletonList("/x"), missing);
+		assertTrue(different.isEmpty());
+	}
+
+	@Test
+	public void deletedFileReplacedByADirectory() {
+		// My file is a tombstone, their directory is newer content, nothing to send.
+		MerkleTree mine = new MerkleTree();
+		mine.add("/x", Version.deleted(Version.changed(null, NODE, digest(1)), NODE));
+		MerkleTree theirs = tree("/x/y");
+
+		mine.compare(theirs.list(""), missing, newer, versions, different);
+		assertTrue(missing.isEmpty() && newer.isEmpty() && versions.isEmpty() && different.isEmpty());
+	}
+
+	@Test
+	public void removeDropsEmptyDirectories() {
+		MerkleTree tree = tree("/d/e/f");
+		tree.remove("/d/e/f");
+		assertEquals(0, tree.list("").size());
+		assertArrayEquals(new MerkleTree().hash(""), tree.hash(""));
+	}
+
+	private static MerkleTree tree(String... paths) {
+		MerkleTree tree = new MerkleTree();
+		for (String path : paths)
+			tree.add(path, Version.changed(null, NODE, digest(path.hashCode())));
+		return tree;
+	}
+
+	private static byte[] digest(int seed) {
+		byte[] digest = new byte[16];
+		digest[0] = (byte) seed;
+		digest[1] = (byte) (seed >> 8);
+		digest[2] = (byte) (seed >> 16);
+		digest[3] = (byte) (seed >> 24);
+		return digest;
+	}
+}
@@ -0,0 +1,51 @@
+package storage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class RollingChecksumTest {
+	private static final int WINDOW = 64;
+
+	private final byte[] data = new byte[4096];
+
+	public RollingChecksumTest() {
+		// Bytes over 0x7f too, they're summed unsigned.
+		new Random(42).nextBytes(data);
+	}
+
+	@Test
+	public void rollMatchesFullRecompute() {
+		RollingChecksum checksum = new RollingChecksum();
+		checksum.reset(data, 0, WINDOW);
+		for (int offset = 1; offset + WINDOW <= data.length; offset++) {
+			checksum.roll(data[offset - 1], data[offset + WINDOW - 1]);
+			assertEquals("offset " + offset, RollingChecksum.of(data, offset, WINDOW), checksum.value());
+		}
+	}
+
+	@Test
+	public void dropMatchesFullRecompute() {
+		RollingChecksum checksum = new RollingChecksum();
+		int start = data.length - WINDOW;
+		checksum.reset(data, start, WINDOW);
+		for (int offset = start + 1; offset < data.length; offset++) {
+			checksum.drop(data[offset - 1]);
+			assertEquals("offset " + offset, RollingChecksum.of(data, offset, data.length - offset), checksum.value());
+		}
+	}
+
+	@Test
+	public void windowOfAWholeBlockOfMaxBytes() {
+		// The sums overflow 16 bits, only their low bits count.
+		byte[] block = new byte[128 * 1024];
+		Arrays.fill(block, (byte) 0xff);
+		RollingChecksum checksum = new RollingChecksum();
+		checksum.reset(block, 0, block.length - 1);
+		checksum.roll(block[0], block[block.length - 1]);
+		assertEquals(RollingChecksum.of(block, 1, block.length - 1), checksum.value());
+	}
+}
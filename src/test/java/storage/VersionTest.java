@@ -0,0 +1,101 @@
+package storage;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VersionTest {
+	private static final UUID A = new UUID(0, 1);
+	private static final UUID B = new UUID(0, 2);
+
+	@Test
+	public void newerBeatsOlder() {
+		Version first = Version.changed(null, A, digest(1));
+		Version second = Version.changed(first, B, digest(2));
+
+		assertEquals(Version.NEWER, second.compare(first));
+		assertEquals(Version.OLDER, first.compare(second));
+		assertTrue(second.beats(first));
+		assertFalse(first.beats(second));
+		assertTrue(first.beats(null));
+	}
+
+	@Test
+	public void equalDoesNotBeat() {
+		Version version = Version.changed(null, A, digest(1));
+		Version same = Version.changed(null, A, digest(1));
+
+		assertEquals(Version.EQUAL, version.compare(same));
+		assertFalse(version.beats(same));
+		assertFalse(same.beats(version));
+	}
+
+	@Test
+	public void concurrentEditsPickTheSameWinnerOnBothSides() {
+		Version base = Version.changed(null, A, digest(1));
+		Version mine = Version.changed(base, A, digest(2));
+		Version theirs = Version.changed(base, B, digest(3));
+
+		assertEquals(Version.CONCURRENT, mine.compare(theirs));
+		assertEquals(Version.CONCURRENT, theirs.compare(mine));
+		// Exactly one of them wins, the higher hash.
+		assertNotEquals(mine.beats(theirs), theirs.beats(mine));
+		assertTrue(theirs.beats(mine));
+	}
+
+	@Test
+	public void concurrentEditBeatsDelete() {
+		Version base = Version.changed(null, A, digest(1));
+		Version deleted = Version.deleted(base, A);
+		Version edited = Version.changed(base, B, digest(2));
+
+		assertEquals(Version.CONCURRENT, deleted.compare(edited));
+		assertTrue(edited.beats(deleted));
+		assertFalse(deleted.beats(edited));
+	}
+
+	@Test
+	public void deleteAfterTheEditBeatsIt() {
+		Version edited = Version.changed(Version.changed(null, A, digest(1)), B, digest(2));
+		Version deleted = Version.deleted(edited, A);
+
+		assertTrue(deleted.isDeleted());
+		assertTrue(deleted.beats(edited));
+		assertFalse(edited.beats(deleted));
+	}
+
+	@Test
+	public void concurrentDeletesDontBeatEachOther() {
+		Version base = Version.changed(null, A, digest(1));
+		Version mine = Version.deleted(base, A);
+		Version theirs = Version.deleted(base, B);
+
+		assertEquals(Version.CONCURRENT, mine.compare(theirs));
+		assertTrue(mine.sameContent(theirs));
+		assertFalse(mine.beats(theirs));
+		assertFalse(theirs.beats(mine));
+	}
+
+	@Test
+	public void mergeCountsBoth() {
+		Version base = Version.changed(null, A, digest(1));
+		Version mine = Version.changed(base, A, digest(2));
+		Version theirs = Version.changed(base, B, digest(3));
+		Version merged = mine.merge(theirs);
+
+		assertEquals(Version.NEWER, merged.compare(mine));
+		assertEquals(Version.NEWER, merged.compare(theirs));
+		assertTrue(merged.sameContent(mine));
+	}
+
+	private static byte[] digest(int seed) {
+		byte[] digest = new byte[16];
+		digest[15] = (byte) seed;
+		return digest;
+	}
+}